@@ -0,0 +1,93 @@
+package unics.droid.core.android.imageloader
+
+import android.graphics.Bitmap
+import android.graphics.Color
+import android.graphics.drawable.BitmapDrawable
+import android.graphics.drawable.Drawable
+import android.view.ViewGroup
+import android.widget.ImageView
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import org.junit.Assert
+import org.junit.Test
+import org.junit.runner.RunWith
+import unics.okdroid.kit.imageloader.DecodePolicy
+import unics.okdroid.kit.imageloader.FetchCallback
+import unics.okdroid.kit.imageloader.ImageRequest
+import unics.okdroid.kit.imageloader.glide.GlideEngine
+import unics.okdroid.kit.imageloader.glide.PixelCapImageViewTarget
+import java.io.File
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+/**
+ * 最大像素数限制：转换（CENTER_CROP）后的结果也不能超过限制
+ */
+@RunWith(AndroidJUnit4::class)
+class DecodePolicyCapTest {
+
+    private val context = InstrumentationRegistry.getInstrumentation().targetContext
+
+    @Test
+    fun centerCropResultIsCapped() {
+        val file = File(context.cacheDir, "decode_policy_cap.png")
+        val source = Bitmap.createBitmap(1600, 1200, Bitmap.Config.ARGB_8888)
+        source.eraseColor(Color.RED)
+        file.outputStream().use {
+            source.compress(Bitmap.CompressFormat.PNG, 100, it)
+        }
+        source.recycle()
+
+        val latch = CountDownLatch(1)
+        var result: Drawable? = null
+        val request = ImageRequest(
+            file.absolutePath,
+            800,
+            800,
+            scaleType = ImageView.ScaleType.CENTER_CROP,
+            decodePolicy = DecodePolicy(allowHardware = false, maxPixels = MAX_PIXELS)
+        )
+        InstrumentationRegistry.getInstrumentation().runOnMainSync {
+            GlideEngine.fetch(context, request, object : FetchCallback {
+                override fun onReady(drawable: Drawable) {
+                    result = drawable
+                    latch.countDown()
+                }
+
+                override fun onFailed(e: Throwable?) {
+                    latch.countDown()
+                }
+
+                override fun onCleared() {
+                }
+            })
+        }
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS))
+        val bitmap = (result as BitmapDrawable).bitmap
+        //未限制请求尺寸时，CENTER_CROP会把缩小解码的结果放大回800x800
+        Assert.assertTrue("${bitmap.width}x${bitmap.height}", bitmap.width * bitmap.height <= MAX_PIXELS)
+        Assert.assertEquals(bitmap.width, bitmap.height)
+        file.delete()
+    }
+
+    @Test
+    fun unknownSizeTargetCapsRequestSize() {
+        var width = 0
+        var height = 0
+        InstrumentationRegistry.getInstrumentation().runOnMainSync {
+            val imageView = ImageView(context)
+            imageView.layoutParams = ViewGroup.LayoutParams(800, 600)
+            PixelCapImageViewTarget(imageView, MAX_PIXELS).getSize { w, h ->
+                width = w
+                height = h
+            }
+        }
+        Assert.assertTrue("${width}x$height", width > 0 && width * height <= MAX_PIXELS)
+        //保持宽高比
+        Assert.assertEquals(800f / 600, width.toFloat() / height, 0.02f)
+    }
+
+    companion object {
+        private const val MAX_PIXELS = 40_000
+    }
+}
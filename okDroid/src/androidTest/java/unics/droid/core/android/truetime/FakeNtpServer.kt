@@ -0,0 +1,86 @@
+package unics.droid.core.android.truetime
+
+import java.net.DatagramPacket
+import java.net.DatagramSocket
+import java.net.InetAddress
+import java.net.SocketException
+import kotlin.concurrent.thread
+
+/**
+ * 本地模拟的NTP服务器，用于测试
+ * @param address 绑定的回环地址，如127.0.0.2
+ * @param offsetMillis 服务器时间相对本机时间的偏移
+ * @param delayMillis 回复前等待的时间，用于模拟网络延迟
+ * @param silent 为true时不回复任何请求，用于模拟不可达的服务器
+ * @param port 绑定的端口，0表示随机端口
+ */
+class FakeNtpServer(
+    address: String,
+    private val offsetMillis: Long,
+    private val delayMillis: Long = 0,
+    private val silent: Boolean = false,
+    port: Int = 0
+) : AutoCloseable {
+
+    private val socket = DatagramSocket(port, InetAddress.getByName(address))
+
+    val port: Int get() = socket.localPort
+
+    @Volatile
+    var requestCount: Int = 0
+        private set
+
+    init {
+        thread(name = "FakeNtpServer-$address", isDaemon = true) {
+            val buffer = ByteArray(NTP_PACKET_SIZE)
+            while (!socket.isClosed) {
+                val request = DatagramPacket(buffer, buffer.size)
+                try {
+                    socket.receive(request)
+                } catch (e: SocketException) {
+                    break
+                }
+                requestCount++
+                if (silent)
+                    continue
+                if (delayMillis > 0)
+                    Thread.sleep(delayMillis)
+                val now = System.currentTimeMillis() + offsetMillis
+                //originate = 客户端的transmit
+                System.arraycopy(buffer, TRANSMIT_TIME_OFFSET, buffer, ORIGINATE_TIME_OFFSET, 8)
+                buffer[0] = (0 shl 6 or (3 shl 3) or 4).toByte()//leap=0,version=3,mode=server
+                buffer[1] = 1//stratum
+                writeTimeStamp(buffer, REFERENCE_TIME_OFFSET, now)
+                writeTimeStamp(buffer, RECEIVE_TIME_OFFSET, now)
+                writeTimeStamp(buffer, TRANSMIT_TIME_OFFSET, now)
+                try {
+                    socket.send(DatagramPacket(buffer, buffer.size, request.socketAddress))
+                } catch (e: SocketException) {
+                    break
+                }
+            }
+        }
+    }
+
+    override fun close() {
+        socket.close()
+    }
+
+    companion object {
+        private const val NTP_PACKET_SIZE = 48
+        private const val REFERENCE_TIME_OFFSET = 16
+        private const val ORIGINATE_TIME_OFFSET = 24
+        private const val RECEIVE_TIME_OFFSET = 32
+        private const val TRANSMIT_TIME_OFFSET = 40
+        private const val OFFSET_1900_TO_1970 = (365L * 70L + 17L) * 24L * 60L * 60L
+
+        private fun writeTimeStamp(buffer: ByteArray, offset: Int, time: Long) {
+            val seconds = time / 1000L + OFFSET_1900_TO_1970
+            val fraction = (time % 1000L) * 0x100000000L / 1000L
+            for (i in 0 until 4) {
+                buffer[offset + i] = (seconds shr (24 - i * 8)).toByte()
+                buffer[offset + 4 + i] = (fraction shr (24 - i * 8)).toByte()
+            }
+        }
+    }
+}
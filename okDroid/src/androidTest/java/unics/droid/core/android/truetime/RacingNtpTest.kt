@@ -0,0 +1,47 @@
+package unics.droid.core.android.truetime
+
+import android.os.SystemClock
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.Assert
+import org.junit.Test
+import org.junit.runner.RunWith
+import unics.okdroid.kit.truetime.TrueTime
+import kotlin.math.abs
+
+/**
+ * 多服务器竞速同步测试：三个模拟服务器绑定在同一端口的不同回环地址上
+ */
+@RunWith(AndroidJUnit4::class)
+class RacingNtpTest {
+
+    @Test
+    fun pickLowestRoundTripAndBoundedBySingleTimeout() {
+        val timeout = 1000
+        val fast = FakeNtpServer("127.0.0.1", HOUR)
+        //固定端口，保证三个服务器端口一致
+        val port = fast.port
+        val slow = FakeNtpServer("127.0.0.2", 2 * HOUR, delayMillis = 300, port = port)
+        val dead = FakeNtpServer("127.0.0.3", 3 * HOUR, silent = true, port = port)
+        try {
+            val synchronizer = TrueTime.RacingNtpTimeSynchronizer(
+                arrayOf("127.0.0.3", "127.0.0.2", "127.0.0.1"), port, timeout, 3, 3
+            )
+            val start = SystemClock.elapsedRealtime()
+            val synced = synchronizer.sync()
+            val cost = SystemClock.elapsedRealtime() - start
+            //不可达的服务器只会消耗一个超时时间，而不是串行累加
+            Assert.assertTrue("cost=$cost", cost < timeout + 300)
+            //选取RTT最小的服务器
+            Assert.assertTrue(abs(synced - System.currentTimeMillis() - HOUR) < 200)
+            Assert.assertEquals(1, dead.requestCount)
+        } finally {
+            fast.close()
+            slow.close()
+            dead.close()
+        }
+    }
+
+    companion object {
+        private const val HOUR = 60 * 60 * 1000L
+    }
+}
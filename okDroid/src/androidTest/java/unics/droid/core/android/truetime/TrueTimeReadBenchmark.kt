@@ -0,0 +1,108 @@
+package unics.droid.core.android.truetime
+
+import android.os.Bundle
+import android.os.Debug
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import org.junit.Assert
+import org.junit.Test
+import org.junit.runner.RunWith
+import unics.okdroid.kit.truetime.TrueTime
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.concurrent.thread
+import kotlin.math.abs
+
+/**
+ * TrueTime读取性能测试：并发同步时，[TrueTime.currentTimeMillis]的耗时应保持不变，且不会读到不一致的值
+ */
+@RunWith(AndroidJUnit4::class)
+class TrueTimeReadBenchmark {
+
+    @Test
+    fun readCostStaysConstantUnderConcurrentResync() {
+        //独立实例：模拟的同步器与同步状态不影响全局实例及其他测试
+        val trueTime = TrueTime.newIsolatedInstance()
+        trueTime.setSynchronizer { System.currentTimeMillis() + OFFSET }
+        trueTime.sync()
+
+        //预热
+        measureRead(trueTime, ITERATIONS)
+        val idle = measureRead(trueTime, ITERATIONS)
+
+        val running = AtomicBoolean(true)
+        val resyncCount = AtomicInteger()
+        val writer = thread(name = "resync") {
+            while (running.get()) {
+                trueTime.sync()
+                resyncCount.incrementAndGet()
+            }
+        }
+        val contended: Double
+        val allocations: Int
+        try {
+            contended = measureRead(trueTime, ITERATIONS)
+            allocations = countReadAllocations(trueTime, ITERATIONS)
+        } finally {
+            running.set(false)
+            writer.join()
+        }
+        //结果输出到instrumentation状态中，可在测试报告中查看
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, Bundle().apply {
+            putDouble("idle_ns_per_op", idle)
+            putDouble("contended_ns_per_op", contended)
+            putInt("resync_count", resyncCount.get())
+            putInt("read_allocations", allocations)
+        })
+        Assert.assertTrue(resyncCount.get() > 0)
+        //读取只读取一次volatile引用，不分配对象
+        Assert.assertEquals(0, allocations)
+        //并发同步时读取不需要等待锁，只允许缓存行失效带来的少量开销
+        Assert.assertTrue("idle=$idle contended=$contended", contended < idle * 2 + 20)
+    }
+
+    /**
+     * @return 读取过程中当前线程分配的对象数
+     */
+    @Suppress("DEPRECATION")
+    private fun countReadAllocations(trueTime: TrueTime, iterations: Int): Int {
+        var sink = 0L
+        val count: Int
+        Debug.startAllocCounting()
+        try {
+            Debug.resetThreadAllocCount()
+            for (i in 0 until iterations) {
+                sink = sink xor trueTime.currentTimeMillis()
+            }
+            count = Debug.getThreadAllocCount()
+        } finally {
+            Debug.stopAllocCounting()
+        }
+        //使用读取结果，避免循环被优化掉
+        Assert.assertNotEquals(-1L, sink)
+        return count
+    }
+
+    /**
+     * @return 每次读取的平均耗时（纳秒）
+     */
+    private fun measureRead(trueTime: TrueTime, iterations: Int): Double {
+        var maxDeviation = 0L
+        val start = System.nanoTime()
+        for (i in 0 until iterations) {
+            val value = trueTime.currentTimeMillis()
+            if (i and 0x3FF == 0) {
+                maxDeviation = maxOf(maxDeviation, abs(value - System.currentTimeMillis() - OFFSET))
+            }
+        }
+        val cost = (System.nanoTime() - start).toDouble() / iterations
+        //读到不一致的状态时，偏差会远大于误差范围
+        Assert.assertTrue("maxDeviation=$maxDeviation", maxDeviation < 1000)
+        return cost
+    }
+
+    companion object {
+        private const val OFFSET = 24 * 60 * 60 * 1000L
+        private const val ITERATIONS = 1_000_000
+    }
+}
@@ -0,0 +1,186 @@
+package unics.okdroid.kit.imageloader
+
+import java.net.URLDecoder
+import java.util.Locale
+
+/**
+ * 缓存key解析结果
+ * @param url 实际请求的地址（可能改写了宽度参数）
+ * @param cacheKey 磁盘缓存使用的key，不包含签名、过期时间等易变参数
+ */
+class ImageCacheKey(val url: String, val cacheKey: String) {
+
+    override fun toString(): String {
+        return "ImageCacheKey(url=$url, cacheKey=$cacheKey)"
+    }
+}
+
+/**
+ * 缓存key策略：同一张图片的地址因签名、过期时间、统计参数等不同时，使用相同的缓存key，
+ * 避免重复缓存以及token刷新后缓存失效。
+ *
+ * 通过[Configs.cacheKeyStrategy]设置，Glide实现需要使用[unics.okdroid.kit.imageloader.glide.GlideEngineModule]。
+ * 缓存命中情况可通过[ImageMetrics]查看。
+ */
+interface CacheKeyStrategy {
+
+    /**
+     * 是否处理该地址，默认只处理http/https地址
+     */
+    fun handles(url: String): Boolean {
+        return url.startsWith("http://", true) || url.startsWith("https://", true)
+    }
+
+    /**
+     * 解析请求地址与缓存key；在加载线程中调用
+     * @param width 请求的宽度，未知时为0
+     * @param height 请求的高度，未知时为0
+     */
+    fun resolve(url: String, width: Int, height: Int): ImageCacheKey
+}
+
+/**
+ * 默认的缓存key策略：
+ * - 缓存key中去掉[volatileParams]以及以[volatilePrefixes]开头的参数，其余参数按名字排序，去掉#后的内容；
+ * - 地址中包含[widthParams]宽度参数时，优先使用已经请求过的（大概率已缓存的）不小于该宽度的尺寸，
+ * 其次使用不小于该宽度[reuseRatio]倍的已请求尺寸，否则向上取整到[sizeBuckets]中的尺寸；
+ * 请求地址与缓存key同时改写，保证缓存内容与key一致。
+ */
+open class CanonicalCacheKeyStrategy @JvmOverloads constructor(
+    volatileParams: Collection<String> = DEFAULT_VOLATILE_PARAMS,
+    volatilePrefixes: Collection<String> = DEFAULT_VOLATILE_PREFIXES,
+    widthParams: Collection<String> = DEFAULT_WIDTH_PARAMS,
+    private val sizeBuckets: IntArray = DEFAULT_SIZE_BUCKETS,
+    private val reuseRatio: Float = DEFAULT_REUSE_RATIO
+) : CacheKeyStrategy {
+
+    private val volatileParams = volatileParams.mapTo(HashSet()) { it.lowercase(Locale.ROOT) }
+    private val volatilePrefixes = volatilePrefixes.map { it.lowercase(Locale.ROOT) }
+    private val widthParams = widthParams.mapTo(HashSet()) { it.lowercase(Locale.ROOT) }
+
+    //不含宽度参数的key -> 已请求过的宽度（升序）
+    private val knownWidths = object : LinkedHashMap<String, MutableList<Int>>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, MutableList<Int>>?): Boolean {
+            return size > MAX_KNOWN_KEYS
+        }
+    }
+
+    private class Param(val name: String, val raw: String)
+
+    override fun resolve(url: String, width: Int, height: Int): ImageCacheKey {
+        val fragmentIndex = url.indexOf('#')
+        val address = if (fragmentIndex >= 0) url.substring(0, fragmentIndex) else url
+        val queryIndex = address.indexOf('?')
+        if (queryIndex < 0)
+            return ImageCacheKey(url, address)
+
+        val path = address.substring(0, queryIndex)
+        val params = address.substring(queryIndex + 1)
+            .split('&')
+            .filter { it.isNotEmpty() }
+            .map { Param(decodeName(it), it) }
+
+        val widthParam = params.firstOrNull { it.name in widthParams && valueOf(it.raw)?.toIntOrNull() != null }
+        val keyParams = params.filter { it !== widthParam && !isVolatile(it.name) }
+            .map { it.raw }
+            .sorted()
+        val baseKey = if (keyParams.isEmpty()) path else path + "?" + keyParams.joinToString("&")
+        if (widthParam == null)
+            return ImageCacheKey(url, baseKey)
+
+        val requested = valueOf(widthParam.raw)!!.toInt()
+        val chosen = chooseWidth(baseKey, requested)
+        val widthPair = widthParam.raw.substringBefore('=') + "=" + chosen
+        val fetchUrl = if (chosen == requested) url else buildString {
+            append(path).append('?')
+            params.joinTo(this, "&") { if (it === widthParam) widthPair else it.raw }
+            if (fragmentIndex >= 0) append(url, fragmentIndex, url.length)
+        }
+        val cacheKey = path + "?" + (keyParams + widthPair).sorted().joinToString("&")
+        return ImageCacheKey(fetchUrl, cacheKey)
+    }
+
+    protected open fun isVolatile(name: String): Boolean {
+        return name in volatileParams || volatilePrefixes.any { name.startsWith(it) }
+    }
+
+    /**
+     * 选择实际请求的宽度，并记录为已请求的宽度
+     */
+    protected open fun chooseWidth(baseKey: String, requested: Int): Int {
+        synchronized(knownWidths) {
+            val known = knownWidths.getOrPut(baseKey) { ArrayList(2) }
+            val chosen = known.firstOrNull { it >= requested }
+                ?: known.lastOrNull { it >= requested * reuseRatio }
+                ?: bucketOf(requested)
+            val index = known.binarySearch(chosen)
+            if (index < 0) {
+                known.add(-index - 1, chosen)
+                if (known.size > MAX_KNOWN_WIDTHS)
+                    known.removeAt(0)
+            }
+            return chosen
+        }
+    }
+
+    private fun bucketOf(width: Int): Int {
+        for (bucket in sizeBuckets) {
+            if (bucket >= width)
+                return bucket
+        }
+        return width
+    }
+
+    private fun decodeName(pair: String): String {
+        val name = pair.substringBefore('=')
+        return try {
+            URLDecoder.decode(name, "UTF-8")
+        } catch (e: Exception) {
+            name
+        }.lowercase(Locale.ROOT)
+    }
+
+    private fun valueOf(pair: String): String? {
+        val index = pair.indexOf('=')
+        return if (index < 0) null else pair.substring(index + 1)
+    }
+
+    companion object {
+
+        /**
+         * 默认的易变参数：只包含明确表示签名、过期时间的参数。
+         * 通用的短参数名（例如t、_）在部分服务中携带内容（?t=thumb与?t=large是不同的图片），不在默认列表中，
+         * 确认只用于防缓存时可以加上[CACHE_BUSTER_PARAMS]
+         */
+        @JvmField
+        val DEFAULT_VOLATILE_PARAMS: Set<String> = setOf(
+            "sign", "signature", "auth_key", "expires",
+            "ossaccesskeyid", "x-oss-signature", "x-oss-expires", "x-oss-date", "x-oss-credential",
+            "q-sign-algorithm", "q-ak", "q-sign-time", "q-key-time", "q-header-list", "q-url-param-list", "q-signature"
+        )
+
+        /**
+         * 常见的防缓存时间戳参数，需要时显式加入：
+         * `CanonicalCacheKeyStrategy(DEFAULT_VOLATILE_PARAMS + CACHE_BUSTER_PARAMS)`
+         */
+        @JvmField
+        val CACHE_BUSTER_PARAMS: Set<String> = setOf("t", "_", "ts", "timestamp")
+
+        @JvmField
+        val DEFAULT_VOLATILE_PREFIXES: List<String> = listOf("utm_", "x-amz-", "x-oss-", "q-sign-")
+
+        /**
+         * 默认的CDN宽度参数
+         */
+        @JvmField
+        val DEFAULT_WIDTH_PARAMS: Set<String> = setOf("w", "width", "imagewidth")
+
+        @JvmField
+        val DEFAULT_SIZE_BUCKETS = intArrayOf(120, 160, 240, 320, 480, 640, 720, 960, 1080, 1280, 1440, 1920, 2560, 3840)
+
+        const val DEFAULT_REUSE_RATIO = 0.8f
+
+        private const val MAX_KNOWN_KEYS = 512
+        private const val MAX_KNOWN_WIDTHS = 6
+    }
+}
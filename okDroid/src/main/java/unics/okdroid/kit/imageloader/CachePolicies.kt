@@ -0,0 +1,103 @@
+package unics.okdroid.kit.imageloader
+
+import android.content.ComponentCallbacks2
+import java.io.File
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * 内存缓存的分级缩减策略：根据[ComponentCallbacks2.onTrimMemory]的级别决定保留的比例，
+ * 而不是一律清空，内存紧张程度较低时仍保留最近使用的图片。
+ */
+fun interface MemoryTrimPolicy {
+
+    /**
+     * @param level [ComponentCallbacks2]中的TRIM_MEMORY_XXX
+     * @return 保留的缓存比例：1表示不缩减，0表示清空
+     */
+    fun retainFraction(level: Int): Float
+
+    companion object {
+
+        /**
+         * 默认策略：
+         * 前台运行时按内存紧张程度保留75%/50%/25%；
+         * 界面不可见时保留50%，进入后台LRU列表后保留25%，处于LRU列表中间时保留10%，即将被杀死时清空
+         */
+        @JvmField
+        val DEFAULT = MemoryTrimPolicy { level ->
+            when {
+                level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE -> 0f
+                level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE -> 0.1f
+                level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND -> 0.25f
+                level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN -> 0.5f
+                level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL -> 0.25f
+                level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW -> 0.5f
+                level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE -> 0.75f
+                else -> 1f
+            }
+        }
+    }
+}
+
+/**
+ * 磁盘缓存大小策略：在后台定期重新计算
+ */
+fun interface DiskCacheSizePolicy {
+
+    /**
+     * @param directory 缓存目录
+     * @param currentSize 当前已使用的大小，单位字节
+     * @param currentMaxSize 当前的最大大小，首次计算时为0
+     * @return 新的最大大小，单位字节
+     */
+    fun computeSize(directory: File, currentSize: Long, currentMaxSize: Long): Long
+}
+
+/**
+ * 根据可用空间与使用情况计算磁盘缓存大小：
+ * - 默认为缓存目录所在分区可用空间（包括缓存已占用的空间）的[fraction]；
+ * - 缓存已经用满时说明需求大于容量，在不超过[saturatedFraction]的前提下扩大25%；
+ * - 可用空间低于[lowSpaceThreshold]时只使用[lowSpaceFraction]；
+ * - 结果限制在[minSize]与[maxSize]之间，但不会超过可用空间的一半。
+ */
+class AdaptiveDiskCacheSizePolicy @JvmOverloads constructor(
+    private val minSize: Long = DEFAULT_MIN_SIZE,
+    private val maxSize: Long = DEFAULT_MAX_SIZE,
+    private val fraction: Float = DEFAULT_FRACTION,
+    private val saturatedFraction: Float = DEFAULT_SATURATED_FRACTION,
+    private val lowSpaceThreshold: Long = DEFAULT_LOW_SPACE_THRESHOLD,
+    private val lowSpaceFraction: Float = DEFAULT_LOW_SPACE_FRACTION
+) : DiskCacheSizePolicy {
+
+    override fun computeSize(directory: File, currentSize: Long, currentMaxSize: Long): Long {
+        val usable = directory.usableSpace
+        //缓存已占用的空间也可以继续用于缓存
+        val available = usable + currentSize
+        var size: Long
+        if (usable < lowSpaceThreshold) {
+            size = (available * lowSpaceFraction).toLong()
+        } else {
+            size = (available * fraction).toLong()
+            if (currentMaxSize > 0 && currentSize >= currentMaxSize * SATURATED_RATIO) {
+                size = max(size, min((currentMaxSize * GROW_FACTOR).toLong(), (available * saturatedFraction).toLong()))
+            }
+        }
+        size = size.coerceIn(minSize, max(minSize, maxSize))
+        return min(size, max(available / 2, 1))
+    }
+
+    companion object {
+
+        const val DEFAULT_MIN_SIZE = 16L * 1024 * 1024
+        const val DEFAULT_MAX_SIZE = 2 * DEFAULT_DISK_CACHE_SIZE
+        const val DEFAULT_FRACTION = 0.02f
+        const val DEFAULT_SATURATED_FRACTION = 0.05f
+        const val DEFAULT_LOW_SPACE_THRESHOLD = 1024L * 1024 * 1024
+        const val DEFAULT_LOW_SPACE_FRACTION = 0.01f
+
+        //使用量达到最大大小的该比例时视为已用满
+        private const val SATURATED_RATIO = 0.9f
+        private const val GROW_FACTOR = 1.25f
+    }
+}
@@ -0,0 +1,554 @@
+package unics.okdroid.kit.imageloader
+
+import android.content.Context
+import android.graphics.drawable.Animatable
+import android.graphics.drawable.Drawable
+import android.view.View
+import android.widget.ImageView
+import androidx.annotation.DrawableRes
+import androidx.annotation.MainThread
+import androidx.appcompat.content.res.AppCompatResources
+import unics.okdroid.R
+import unics.okdroid.kit.debugger.MessageHandler
+
+/**
+ * 合并请求的引擎：包装任意支持[Engine.fetch]的引擎，同一时间地址、尺寸、转换都相同的加载只发起一次获取与解码，
+ * 结果分发给所有等待的ImageView（每个ImageView使用[Drawable.ConstantState.newDrawable]得到的独立Drawable，共享同一个Bitmap）。
+ *
+ * - 每个ImageView可以单独取消：重新加载或调用[clear]时只移除该ImageView，所有ImageView都移除后才取消共享的请求；
+ * - 共享的结果在还有ImageView显示时一直持有，新的相同请求直接复用；
+ * - 无法确定尺寸的ImageView（未测量且没有固定的LayoutParams）、地址为空、以及引擎不支持[Engine.fetch]时直接交给[delegate]加载；
+ * - 通过[stats]获取合并的效果。
+ *
+ * 使用：
+ * ```
+ * initImageLoader(ctx, engine = CoalescingEngine(GlideEngine))
+ * ```
+ * 所有方法都必须在主线程调用。
+ *
+ * @param delegate 实际加载图片的引擎
+ */
+class CoalescingEngine(val delegate: Engine) : Engine {
+
+    //进行中或者正在显示的共享请求
+    private val shared = HashMap<ImageRequest, Shared>()
+
+    //引擎是否支持fetch
+    private var isFetchSupported = true
+
+    private var requestCount = 0L
+    private var fetchCount = 0L
+
+    /**
+     * 合并效果统计
+     * @param requestCount 可合并的加载次数
+     * @param fetchCount 实际发起的获取次数
+     * @param activeCount 当前进行中或者正在显示的共享请求数
+     */
+    class Stats(
+        val requestCount: Long,
+        val fetchCount: Long,
+        val activeCount: Int
+    ) {
+
+        /**
+         * 去重率：被合并掉的加载占比
+         */
+        val dedupRatio: Float
+            get() = if (requestCount == 0L) 0f else 1f - fetchCount.toFloat() / requestCount
+
+        override fun toString(): String {
+            return "CoalescingEngine(request=$requestCount, fetch=$fetchCount, active=$activeCount, dedup=${"%.1f".format(dedupRatio * 100)}%)"
+        }
+    }
+
+    @MainThread
+    fun stats(): Stats {
+        return Stats(requestCount, fetchCount, shared.size)
+    }
+
+    @MainThread
+    fun resetStats() {
+        requestCount = 0
+        fetchCount = 0
+    }
+
+    /**
+     * 输出统计信息
+     */
+    @JvmOverloads
+    @MainThread
+    fun report(handler: MessageHandler = MessageHandler.Printer) {
+        handler.handle(TAG, stats().toString())
+    }
+
+    override fun clearDiskCache(ctx: Context) {
+        delegate.clearDiskCache(ctx)
+    }
+
+    override fun clearMemoryCache(ctx: Context) {
+        delegate.clearMemoryCache(ctx)
+    }
+
+    override fun trimMemory(ctx: Context, level: Int) {
+        delegate.trimMemory(ctx, level)
+    }
+
+    override fun clear(view: View) {
+        if (view is ImageView && view.getTag(R.id.ucs_image_tag_request) is Binding) {
+            detach(view)
+            return
+        }
+        view.setTag(R.id.ucs_image_tag_request, null)
+        delegate.clear(view)
+    }
+
+    override fun fetch(ctx: Context, request: ImageRequest, callback: FetchCallback): FetchHandle? {
+        return delegate.fetch(ctx, request, callback)
+    }
+
+    override fun preload(
+        ctx: Context,
+        request: ImageRequest,
+        priority: LoadPriority,
+        callback: PreloadCallback?
+    ): FetchHandle? {
+        return delegate.preload(ctx, request, priority, callback)
+    }
+
+    override fun load(imageView: ImageView, url: String?) {
+        //与GlideEngine一致：不设置占位图，使用centerCrop
+        enqueue(imageView, url, Shape.ORIGINAL, 0, ImageView.ScaleType.CENTER_CROP, null, null) {
+            delegate.load(imageView, url)
+        }
+    }
+
+    override fun load(imageView: ImageView, url: String?, @DrawableRes placeHolder: Int) {
+        enqueue(imageView, url, Shape.ORIGINAL, 0, imageView.scaleType, drawableOf(imageView, placeHolder), null) {
+            delegate.load(imageView, url, placeHolder)
+        }
+    }
+
+    override fun load(imageView: ImageView, url: String?, placeHolder: Drawable?) {
+        enqueue(imageView, url, Shape.ORIGINAL, 0, imageView.scaleType, placeHolder, null) {
+            delegate.load(imageView, url, placeHolder)
+        }
+    }
+
+    override fun load(
+        imageView: ImageView,
+        url: String?,
+        @DrawableRes placeHolder: Int,
+        @DrawableRes errorPlaceHolder: Int
+    ) {
+        enqueue(
+            imageView, url, Shape.ORIGINAL, 0, imageView.scaleType,
+            drawableOf(imageView, placeHolder), drawableOf(imageView, errorPlaceHolder)
+        ) {
+            delegate.load(imageView, url, placeHolder, errorPlaceHolder)
+        }
+    }
+
+    override fun load(
+        imageView: ImageView,
+        url: String?,
+        placeHolder: Drawable?,
+        errorPlaceHolder: Drawable?
+    ) {
+        enqueue(imageView, url, Shape.ORIGINAL, 0, imageView.scaleType, placeHolder, errorPlaceHolder) {
+            delegate.load(imageView, url, placeHolder, errorPlaceHolder)
+        }
+    }
+
+    override fun load(
+        imageView: ImageView,
+        url: String?,
+        @DrawableRes placeHolder: Int,
+        errorPlaceHolder: Drawable?
+    ) {
+        enqueue(
+            imageView, url, Shape.ORIGINAL, 0, imageView.scaleType,
+            drawableOf(imageView, placeHolder), errorPlaceHolder
+        ) {
+            delegate.load(imageView, url, placeHolder, errorPlaceHolder)
+        }
+    }
+
+    override fun load(
+        imageView: ImageView,
+        url: String?,
+        placeHolder: Drawable?,
+        @DrawableRes errorPlaceHolder: Int
+    ) {
+        enqueue(
+            imageView, url, Shape.ORIGINAL, 0, imageView.scaleType,
+            placeHolder, drawableOf(imageView, errorPlaceHolder)
+        ) {
+            delegate.load(imageView, url, placeHolder, errorPlaceHolder)
+        }
+    }
+
+    /**
+     * 渐进加载包含缩略图与原图两个请求，直接交给[delegate]加载
+     */
+    override fun loadProgressive(
+        imageView: ImageView,
+        url: String?,
+        thumbnailUrl: String?,
+        @DrawableRes placeHolder: Int
+    ) {
+        loadDirectly(imageView) {
+            delegate.loadProgressive(imageView, url, thumbnailUrl, placeHolder)
+        }
+    }
+
+    override fun loadProgressive(
+        imageView: ImageView,
+        url: String?,
+        thumbnailUrl: String?,
+        placeHolder: Drawable?
+    ) {
+        loadDirectly(imageView) {
+            delegate.loadProgressive(imageView, url, thumbnailUrl, placeHolder)
+        }
+    }
+
+    override fun loadRounded(imageView: ImageView, url: String?, roundingRadius: Int) {
+        enqueue(imageView, url, Shape.ROUNDED, roundingRadius, null, null, null) {
+            delegate.loadRounded(imageView, url, roundingRadius)
+        }
+    }
+
+    override fun loadRounded(
+        imageView: ImageView,
+        url: String?,
+        roundingRadius: Int,
+        @DrawableRes placeHolder: Int
+    ) {
+        enqueue(imageView, url, Shape.ROUNDED, roundingRadius, null, drawableOf(imageView, placeHolder), null) {
+            delegate.loadRounded(imageView, url, roundingRadius, placeHolder)
+        }
+    }
+
+    override fun loadRounded(
+        imageView: ImageView,
+        url: String?,
+        roundingRadius: Int,
+        placeHolder: Drawable?
+    ) {
+        enqueue(imageView, url, Shape.ROUNDED, roundingRadius, null, placeHolder, null) {
+            delegate.loadRounded(imageView, url, roundingRadius, placeHolder)
+        }
+    }
+
+    override fun loadRounded(
+        imageView: ImageView,
+        url: String?,
+        roundingRadius: Int,
+        placeHolder: Drawable?,
+        error: Drawable?
+    ) {
+        enqueue(imageView, url, Shape.ROUNDED, roundingRadius, null, placeHolder, error) {
+            delegate.loadRounded(imageView, url, roundingRadius, placeHolder, error)
+        }
+    }
+
+    /**
+     * 占位图需要转换时直接交给[delegate]加载
+     */
+    override fun loadRounded(
+        imageView: ImageView,
+        url: String?,
+        roundingRadius: Int,
+        @DrawableRes placeHolder: Int,
+        applyPlaceHolder: Boolean
+    ) {
+        if (applyPlaceHolder) {
+            loadDirectly(imageView) {
+                delegate.loadRounded(imageView, url, roundingRadius, placeHolder, true)
+            }
+        } else {
+            loadRounded(imageView, url, roundingRadius, placeHolder)
+        }
+    }
+
+    /**
+     * 占位图需要转换时直接交给[delegate]加载
+     */
+    override fun loadRounded(
+        imageView: ImageView,
+        url: String?,
+        roundingRadius: Int,
+        placeHolder: Drawable?,
+        applyPlaceHolder: Boolean
+    ) {
+        if (applyPlaceHolder && placeHolder != null) {
+            loadDirectly(imageView) {
+                delegate.loadRounded(imageView, url, roundingRadius, placeHolder, true)
+            }
+        } else {
+            loadRounded(imageView, url, roundingRadius, placeHolder)
+        }
+    }
+
+    override fun loadCircle(imageView: ImageView, url: String?) {
+        enqueue(imageView, url, Shape.CIRCLE, 0, null, null, null) {
+            delegate.loadCircle(imageView, url)
+        }
+    }
+
+    override fun loadCircle(imageView: ImageView, url: String?, @DrawableRes placeHolder: Int) {
+        enqueue(imageView, url, Shape.CIRCLE, 0, null, drawableOf(imageView, placeHolder), null) {
+            delegate.loadCircle(imageView, url, placeHolder)
+        }
+    }
+
+    override fun loadCircle(imageView: ImageView, url: String?, placeHolder: Drawable?) {
+        enqueue(imageView, url, Shape.CIRCLE, 0, null, placeHolder, null) {
+            delegate.loadCircle(imageView, url, placeHolder)
+        }
+    }
+
+    /**
+     * 占位图需要转换时直接交给[delegate]加载
+     */
+    override fun loadCircle(
+        imageView: ImageView,
+        url: String?,
+        @DrawableRes placeHolder: Int,
+        applyPlaceHolder: Boolean
+    ) {
+        if (applyPlaceHolder) {
+            loadDirectly(imageView) {
+                delegate.loadCircle(imageView, url, placeHolder, true)
+            }
+        } else {
+            loadCircle(imageView, url, placeHolder)
+        }
+    }
+
+    /**
+     * 占位图需要转换时直接交给[delegate]加载
+     */
+    override fun loadCircle(
+        imageView: ImageView,
+        url: String?,
+        placeHolder: Drawable?,
+        applyPlaceHolder: Boolean
+    ) {
+        if (applyPlaceHolder && placeHolder != null) {
+            loadDirectly(imageView) {
+                delegate.loadCircle(imageView, url, placeHolder, true)
+            }
+        } else {
+            loadCircle(imageView, url, placeHolder)
+        }
+    }
+
+    private inline fun enqueue(
+        view: ImageView,
+        url: String?,
+        shape: Shape,
+        radius: Int,
+        scaleType: ImageView.ScaleType?,
+        placeHolder: Drawable?,
+        error: Drawable?,
+        direct: () -> Unit
+    ) {
+        val request = if (url.isNullOrEmpty() || !isFetchSupported) null else requestOf(view, url, shape, radius, scaleType)
+        if (request == null) {
+            loadDirectly(view, direct)
+            return
+        }
+        val tag = view.getTag(R.id.ucs_image_tag_request)
+        if (tag is Binding) {
+            if (tag.owner.request == request && !tag.owner.isFailed) {
+                //重复加载同一个请求：只更新错误占位图
+                requestCount++
+                tag.error = error
+                return
+            }
+            detach(view)
+        } else if (tag === DIRECT) {
+            //取消之前直接交给delegate的加载
+            view.setTag(R.id.ucs_image_tag_request, null)
+            delegate.clear(view)
+        }
+
+        requestCount++
+        var owner = shared[request]
+        if (owner == null) {
+            owner = Shared(request)
+            shared[request] = owner
+            fetchCount++
+            view.setImageDrawable(placeHolder)
+            owner.attach(view, error)
+            val handle = delegate.fetch(view.context, request, owner)
+            if (handle == null) {
+                //不支持合并，之后的加载全部直接交给delegate
+                isFetchSupported = false
+                requestCount--
+                fetchCount--
+                owner.release()
+                loadDirectly(view, direct)
+                return
+            }
+            if (owner.isReleased) {
+                //同步回调中已经结束（例如加载失败且没有需要显示的View）
+                handle.cancel()
+            } else {
+                owner.handle = handle
+            }
+        } else {
+            owner.attach(view, error)
+            val result = owner.result
+            if (result != null) {
+                view.setImageDrawable(result.copyFor(view))
+            } else {
+                view.setImageDrawable(placeHolder)
+            }
+        }
+    }
+
+    private inline fun loadDirectly(view: ImageView, direct: () -> Unit) {
+        if (view.getTag(R.id.ucs_image_tag_request) is Binding)
+            detach(view)
+        view.setTag(R.id.ucs_image_tag_request, DIRECT)
+        direct()
+    }
+
+    /**
+     * 移除[view]，共享的请求没有需要显示的View时取消
+     */
+    private fun detach(view: ImageView) {
+        val binding = view.getTag(R.id.ucs_image_tag_request) as? Binding ?: return
+        view.setTag(R.id.ucs_image_tag_request, null)
+        val owner = binding.owner
+        if (owner.bindings.remove(binding) && owner.result != null) {
+            //共享的资源可能在之后被回收，不再显示
+            view.setImageDrawable(null)
+        }
+        if (owner.bindings.isEmpty()) {
+            owner.release()
+        }
+    }
+
+    /**
+     * 根据View的尺寸生成请求；无法确定尺寸时返回null
+     */
+    private fun requestOf(
+        view: ImageView,
+        url: String,
+        shape: Shape,
+        radius: Int,
+        scaleType: ImageView.ScaleType?
+    ): ImageRequest? {
+        val width = view.resolveTargetWidth()
+        val height = view.resolveTargetHeight()
+        if (width <= 0 || height <= 0)
+            return null
+        var policy = view.decodePolicy
+        if (view.layerType == View.LAYER_TYPE_SOFTWARE) {
+            //软件绘制的View无法显示硬件Bitmap
+            policy = (policy ?: configs.decodePolicy).copy(allowHardware = false)
+        }
+        return ImageRequest(url, width, height, shape, radius, scaleType, policy)
+    }
+
+    private fun drawableOf(view: ImageView, @DrawableRes resId: Int): Drawable? {
+        if (resId == 0)
+            return null
+        return AppCompatResources.getDrawable(view.context, resId)
+    }
+
+    /**
+     * 为每个View创建独立的Drawable，避免多个View同时修改同一个Drawable的状态（bounds、alpha等）
+     */
+    private fun Drawable.copyFor(view: ImageView): Drawable {
+        val copy = constantState?.newDrawable(view.resources) ?: return this
+        if (copy is Animatable)
+            copy.start()
+        return copy
+    }
+
+    private class Binding(val view: ImageView, val owner: Shared, var error: Drawable?)
+
+    /**
+     * 共享的请求：持有引擎返回的资源直到没有View显示
+     */
+    private inner class Shared(val request: ImageRequest) : FetchCallback {
+
+        val bindings = ArrayList<Binding>(2)
+
+        var handle: FetchHandle? = null
+
+        var result: Drawable? = null
+            private set
+
+        var isFailed = false
+            private set
+
+        var isReleased = false
+            private set
+
+        fun attach(view: ImageView, error: Drawable?) {
+            val binding = Binding(view, this, error)
+            bindings.add(binding)
+            view.setTag(R.id.ucs_image_tag_request, binding)
+        }
+
+        override fun onReady(drawable: Drawable) {
+            if (isReleased)
+                return
+            result = drawable
+            for (binding in bindings) {
+                binding.view.setImageDrawable(drawable.copyFor(binding.view))
+            }
+        }
+
+        override fun onFailed(e: Throwable?) {
+            if (isReleased)
+                return
+            isFailed = true
+            if (debuggable) {
+                logw("fetch failed: ${request.model}")
+            }
+            for (binding in bindings) {
+                binding.view.setTag(R.id.ucs_image_tag_request, null)
+                binding.view.setImageDrawable(binding.error)
+            }
+            bindings.clear()
+            release()
+        }
+
+        override fun onCleared() {
+            if (isReleased)
+                return
+            //资源已被引擎回收：不能继续显示
+            for (binding in bindings) {
+                binding.view.setTag(R.id.ucs_image_tag_request, null)
+                binding.view.setImageDrawable(null)
+            }
+            bindings.clear()
+            result = null
+            release()
+        }
+
+        fun release() {
+            if (isReleased)
+                return
+            isReleased = true
+            if (shared[request] === this)
+                shared.remove(request)
+            val handle = this.handle
+            this.handle = null
+            handle?.cancel()
+        }
+    }
+
+    private companion object {
+
+        //标记View是直接交给delegate加载的
+        val DIRECT = Any()
+    }
+}
@@ -45,6 +45,30 @@ class Configs internal constructor() {
     @JvmField
     var diskCacheFolderName: String? = null
 
+    /**
+     * 内存缓存的分级缩减策略
+     */
+    @JvmField
+    var memoryTrimPolicy: MemoryTrimPolicy = MemoryTrimPolicy.DEFAULT
+
+    /**
+     * disk 缓存大小策略，根据可用空间动态调整缓存大小
+     */
+    @JvmField
+    var diskCacheSizePolicy: DiskCacheSizePolicy = AdaptiveDiskCacheSizePolicy()
+
+    /**
+     * 缓存key策略，为空时直接使用图片地址作为缓存key，可使用[CanonicalCacheKeyStrategy]
+     */
+    @JvmField
+    var cacheKeyStrategy: CacheKeyStrategy? = null
+
+    /**
+     * 解码策略：Bitmap格式、是否允许硬件Bitmap、最大像素数
+     */
+    @JvmField
+    var decodePolicy: DecodePolicy = DecodePolicy.DEFAULT
+
     class Builder() {
         private var isDiskCacheEnabled = true
         private var isMemoryCacheEnabled: Boolean = true
@@ -52,6 +76,10 @@ class Configs internal constructor() {
         private var defaultImageRes: Int = R.drawable.ucs_image_placeholder
         private var defaultRoundedImageRes: Int =  R.drawable.ucs_image_placeholder_corner
         private var defaultCircleImageRes: Int = R.drawable.ucs_image_placeholder_circle
+        private var memoryTrimPolicy: MemoryTrimPolicy = MemoryTrimPolicy.DEFAULT
+        private var diskCacheSizePolicy: DiskCacheSizePolicy = AdaptiveDiskCacheSizePolicy()
+        private var cacheKeyStrategy: CacheKeyStrategy? = null
+        private var decodePolicy: DecodePolicy = DecodePolicy.DEFAULT
 
         /**
          * 是否启用Disk缓存
@@ -92,6 +120,38 @@ class Configs internal constructor() {
             return this
         }
 
+        /**
+         * 设置内存缓存的分级缩减策略
+         */
+        fun setMemoryTrimPolicy(policy: MemoryTrimPolicy): Builder {
+            this.memoryTrimPolicy = policy
+            return this
+        }
+
+        /**
+         * 设置Disk 缓存大小策略，固定大小可使用 DiskCacheSizePolicy { _, _, _ -> size }
+         */
+        fun setDiskCacheSizePolicy(policy: DiskCacheSizePolicy): Builder {
+            this.diskCacheSizePolicy = policy
+            return this
+        }
+
+        /**
+         * 设置缓存key策略，去掉签名等易变参数，提高缓存命中率
+         */
+        fun setCacheKeyStrategy(strategy: CacheKeyStrategy?): Builder {
+            this.cacheKeyStrategy = strategy
+            return this
+        }
+
+        /**
+         * 设置解码策略
+         */
+        fun setDecodePolicy(policy: DecodePolicy): Builder {
+            this.decodePolicy = policy
+            return this
+        }
+
         fun build(): Configs {
             return Configs().also {
                 it.isDiskCacheEnabled = this.isDiskCacheEnabled
@@ -100,6 +160,10 @@ class Configs internal constructor() {
                 it.defaultImageRes = this.defaultImageRes
                 it.defaultRoundedImageRes = this.defaultRoundedImageRes
                 it.defaultCircleImageRes = this.defaultCircleImageRes
+                it.memoryTrimPolicy = this.memoryTrimPolicy
+                it.diskCacheSizePolicy = this.diskCacheSizePolicy
+                it.cacheKeyStrategy = this.cacheKeyStrategy
+                it.decodePolicy = this.decodePolicy
             }
         }
     }
@@ -0,0 +1,75 @@
+package unics.okdroid.kit.imageloader
+
+import android.widget.ImageView
+import unics.okdroid.R
+
+/**
+ * 解码的Bitmap格式
+ */
+enum class BitmapFormat {
+
+    /**
+     * 自动选择：缩略图（目标像素不超过[DecodePolicy.thumbnailPixels]）与无法使用硬件Bitmap时，不透明图片使用RGB_565；
+     * 可以使用硬件Bitmap时，大图使用ARGB_8888保证画质（硬件Bitmap不占用Java堆内存）。
+     * 透明图片始终使用ARGB_8888
+     */
+    AUTO,
+
+    /**
+     * 始终使用ARGB_8888
+     */
+    ARGB_8888,
+
+    /**
+     * 不透明图片使用RGB_565，透明图片仍使用ARGB_8888
+     */
+    RGB_565
+}
+
+/**
+ * 解码策略，全局策略为[Configs.decodePolicy]，单个View可以通过[ImageView.decodePolicy]、单个请求可以通过[ImageRequest.decodePolicy]覆盖
+ * @param format Bitmap格式
+ * @param allowHardware 是否允许使用硬件Bitmap（API 26及以上）；需要读取像素的场景应该设置为false。
+ * View使用软件绘制（[android.view.View.LAYER_TYPE_SOFTWARE]）时自动禁止
+ * @param maxPixels 解码及转换结果的最大像素数，目标尺寸超过时等比缩小请求尺寸，由View按scaleType缩放显示；0表示不限制
+ * @param thumbnailPixels [BitmapFormat.AUTO]时视为缩略图的最大目标像素数
+ */
+data class DecodePolicy @JvmOverloads constructor(
+    val format: BitmapFormat = BitmapFormat.AUTO,
+    val allowHardware: Boolean = true,
+    val maxPixels: Int = 0,
+    val thumbnailPixels: Int = DEFAULT_THUMBNAIL_PIXELS
+) {
+
+    companion object {
+
+        const val DEFAULT_THUMBNAIL_PIXELS = 512 * 512
+
+        /**
+         * 默认策略
+         */
+        @JvmField
+        val DEFAULT = DecodePolicy()
+
+        /**
+         * 画质优先：ARGB_8888
+         */
+        @JvmField
+        val QUALITY = DecodePolicy(BitmapFormat.ARGB_8888)
+
+        /**
+         * 需要读取像素（例如取色、截图）：禁止硬件Bitmap
+         */
+        @JvmField
+        val SOFTWARE = DecodePolicy(allowHardware = false)
+    }
+}
+
+/**
+ * View的解码策略，为空时使用[Configs.decodePolicy]
+ */
+var ImageView.decodePolicy: DecodePolicy?
+    get() = getTag(R.id.ucs_image_tag_decode_policy) as? DecodePolicy
+    set(value) {
+        setTag(R.id.ucs_image_tag_decode_policy, value)
+    }
@@ -30,11 +30,50 @@ interface Engine {
     @MainThread
     fun clearMemoryCache(ctx: Context)
 
+    /**
+     * 按[level]缩减内存缓存，保留的比例由[Configs.memoryTrimPolicy]决定；
+     * 默认实现只在需要清空时调用[clearMemoryCache]。
+     * 引擎自身已经响应系统内存回调的缓存不应在这里再次缩减，否则同一次回调会缩减两次
+     *
+     * @param level [android.content.ComponentCallbacks2]中的TRIM_MEMORY_XXX
+     * @see android.content.ComponentCallbacks2.onTrimMemory
+     */
+    @MainThread
+    fun trimMemory(ctx: Context, level: Int) {
+        if (configs.memoryTrimPolicy.retainFraction(level) <= 0f) {
+            clearMemoryCache(ctx)
+        }
+    }
+
     /**
      * 清除[view]上的图片加载请求
      */
     fun clear(view: View)
 
+    /**
+     * 获取图片但不设置到View上，用于合并请求等场景
+     * @return 请求句柄；引擎不支持时返回null
+     * @see CoalescingEngine
+     */
+    @MainThread
+    fun fetch(ctx: Context, request: ImageRequest, callback: FetchCallback): FetchHandle? = null
+
+    /**
+     * 预加载图片到缓存（不持有结果），用于列表预取
+     * @param priority 优先级
+     * @param callback 预加载完成回调，在主线程回调
+     * @return 请求句柄，用于取消未完成的预加载；引擎不支持时返回null
+     * @see RecyclerPreloader
+     * @see FocusPreloader
+     */
+    @MainThread
+    fun preload(
+        ctx: Context,
+        request: ImageRequest,
+        priority: LoadPriority,
+        callback: PreloadCallback?
+    ): FetchHandle? = null
+
     fun load(imageView: ImageView, url: String?)
 
     fun load(imageView: ImageView, url: String?, @DrawableRes placeHolder: Int)
@@ -69,6 +108,29 @@ interface Engine {
         @DrawableRes errorPlaceHolder: Int
     )
 
+    /**
+     * 渐进加载大图：先显示缩略图，再以较低的优先级加载原图，加载完成后淡入替换缩略图
+     * @param thumbnailUrl 低分辨率版本的地址；为空时使用已缓存的原图数据按较小的尺寸解码作为缩略图
+     * 默认实现直接加载原图
+     */
+    fun loadProgressive(
+        imageView: ImageView,
+        url: String?,
+        thumbnailUrl: String?,
+        @DrawableRes placeHolder: Int
+    ) {
+        load(imageView, url, placeHolder)
+    }
+
+    fun loadProgressive(
+        imageView: ImageView,
+        url: String?,
+        thumbnailUrl: String?,
+        placeHolder: Drawable?
+    ) {
+        load(imageView, url, placeHolder)
+    }
+
     /**
      * @param roundingRadius 圆角半径，单位px
      */
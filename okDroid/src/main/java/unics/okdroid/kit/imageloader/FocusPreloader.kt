@@ -0,0 +1,252 @@
+package unics.okdroid.kit.imageloader
+
+import android.app.ActivityManager
+import android.content.Context
+import android.os.SystemClock
+import android.view.View
+import android.view.ViewTreeObserver
+import androidx.annotation.MainThread
+import androidx.recyclerview.widget.GridLayoutManager
+import androidx.recyclerview.widget.RecyclerView
+import kotlin.math.abs
+import kotlin.math.min
+
+/**
+ * 焦点预加载：用于TV等遥控器（D-pad）操作的列表/网格。
+ * 根据当前获得焦点的item与焦点移动方向，对下一次可能获得焦点的item的图片按可能性排序并提前加载：
+ *
+ * - 焦点移动方向上的item可能性最高，长按方向键（连续同方向移动）时沿该方向预加载更远；
+ * - 其次是与移动方向垂直的相邻item，最后是反方向的相邻item；
+ * - 排名靠前的使用[LoadPriority.HIGH]，其余使用[LoadPriority.LOW]；不再在候选中的未完成预加载会被取消；
+ * - 低内存设备（[ActivityManager.isLowRamDevice]）上减少预加载数量。
+ *
+ * 方向根据前后两次获得焦点的item在adapter中的位置计算，因此适用于任何基于RecyclerView的网格（包括leanback的BaseGridView），
+ * 网格的列数（横向网格为行数）无法从LayoutManager获取时需要通过[spanCount]指定。
+ *
+ * 使用：
+ * ```
+ * FocusPreloader(provider, spanCount = 5).attach(gridView)
+ * ```
+ *
+ * @param provider 图片请求提供者
+ * @param spanCount 每行（列）的item数，0表示从[GridLayoutManager]获取，获取不到时为1
+ * @param engine 加载引擎
+ */
+class FocusPreloader @JvmOverloads constructor(
+    private val provider: PreloadRequestProvider,
+    private val spanCount: Int = 0,
+    private val engine: Engine = unics.okdroid.kit.imageloader.engine
+) : ViewTreeObserver.OnGlobalFocusChangeListener {
+
+    private var recyclerView: RecyclerView? = null
+
+    private val entries = HashMap<Int, PreloadEntry>()
+
+    private var isSupported = true
+
+    //上一次焦点移动的步长（adapter位置差）与时间
+    private var lastStep = 0
+    private var lastMoveTime = 0L
+
+    /**
+     * 连续同方向移动的次数
+     */
+    var repeatCount: Int = 0
+        private set
+
+    //最大预加载数
+    private var budget = DEFAULT_BUDGET
+
+    //沿移动方向的基础预加载数
+    private var depth = DEFAULT_DEPTH
+
+    //候选位置与分数，数量很少，使用数组避免分配
+    private var candidates = IntArray(0)
+    private var scores = FloatArray(0)
+    private var candidateCount = 0
+
+    private val removing = ArrayList<Int>()
+
+    @MainThread
+    fun attach(recyclerView: RecyclerView) {
+        detach()
+        this.recyclerView = recyclerView
+        if (isLowRamDevice(recyclerView.context)) {
+            budget = LOW_RAM_BUDGET
+            depth = LOW_RAM_DEPTH
+        } else {
+            budget = DEFAULT_BUDGET
+            depth = DEFAULT_DEPTH
+        }
+        candidates = IntArray(budget + MAX_REPEAT_DEPTH + 4)
+        scores = FloatArray(candidates.size)
+        recyclerView.viewTreeObserver.addOnGlobalFocusChangeListener(this)
+    }
+
+    @MainThread
+    fun detach() {
+        recyclerView?.viewTreeObserver?.let {
+            if (it.isAlive)
+                it.removeOnGlobalFocusChangeListener(this)
+        }
+        recyclerView = null
+        reset()
+    }
+
+    /**
+     * 取消所有未完成的预加载
+     */
+    @MainThread
+    fun reset() {
+        for (entry in entries.values) {
+            entry.cancel()
+        }
+        entries.clear()
+        lastStep = 0
+        repeatCount = 0
+    }
+
+    override fun onGlobalFocusChanged(oldFocus: View?, newFocus: View?) {
+        val recyclerView = recyclerView ?: return
+        if (!isSupported || newFocus == null)
+            return
+        val newItem = recyclerView.findContainingItemView(newFocus) ?: return
+        val position = recyclerView.getChildAdapterPosition(newItem)
+        if (position == RecyclerView.NO_POSITION)
+            return
+        val oldItem = if (oldFocus == null) null else recyclerView.findContainingItemView(oldFocus)
+        val oldPosition = if (oldItem == null) RecyclerView.NO_POSITION else recyclerView.getChildAdapterPosition(oldItem)
+        val span = resolveSpanCount(recyclerView)
+        val step = if (oldPosition == RecyclerView.NO_POSITION || oldPosition == position) {
+            //焦点从外部进入：默认向后
+            span
+        } else {
+            val delta = position - oldPosition
+            if (abs(delta) >= span) Integer.signum(delta) * span else Integer.signum(delta)
+        }
+        val now = SystemClock.uptimeMillis()
+        repeatCount = if (step == lastStep && now - lastMoveTime <= KEY_REPEAT_INTERVAL) repeatCount + 1 else 0
+        lastStep = step
+        lastMoveTime = now
+        rank(recyclerView, position, step, span)
+        update(recyclerView)
+    }
+
+    /**
+     * 按下一次获得焦点的可能性对候选位置排序
+     */
+    private fun rank(recyclerView: RecyclerView, position: Int, step: Int, span: Int) {
+        val itemCount = recyclerView.adapter?.itemCount ?: 0
+        candidateCount = 0
+        //移动方向：长按时预加载更远，且分数更高
+        val along = depth + min(repeatCount, MAX_REPEAT_DEPTH)
+        val weight = if (repeatCount > 0) REPEAT_WEIGHT else 1f
+        for (k in 1..along) {
+            addCandidate(recyclerView, position + step * k, itemCount, weight / k)
+        }
+        //垂直方向与反方向的相邻item
+        val crossStep = if (abs(step) == span) 1 else span
+        if (crossStep != abs(step)) {
+            addCandidate(recyclerView, position + crossStep, itemCount, CROSS_WEIGHT)
+            addCandidate(recyclerView, position - crossStep, itemCount, CROSS_WEIGHT)
+        }
+        addCandidate(recyclerView, position - step, itemCount, BACKWARD_WEIGHT)
+        //插入排序：候选数量很少
+        for (i in 1 until candidateCount) {
+            val p = candidates[i]
+            val s = scores[i]
+            var j = i - 1
+            while (j >= 0 && scores[j] < s) {
+                candidates[j + 1] = candidates[j]
+                scores[j + 1] = scores[j]
+                j--
+            }
+            candidates[j + 1] = p
+            scores[j + 1] = s
+        }
+        candidateCount = min(candidateCount, budget)
+    }
+
+    private fun addCandidate(recyclerView: RecyclerView, position: Int, itemCount: Int, score: Float) {
+        if (position < 0 || position >= itemCount || candidateCount >= candidates.size)
+            return
+        //已经绑定的item正在正常加载，不需要预加载
+        if (recyclerView.findViewHolderForAdapterPosition(position) != null)
+            return
+        candidates[candidateCount] = position
+        scores[candidateCount] = score
+        candidateCount++
+    }
+
+    private fun update(recyclerView: RecyclerView) {
+        //取消不再是候选的预加载（降低优先级）
+        for ((position, entry) in entries) {
+            if (indexOfCandidate(position) < 0) {
+                entry.cancel()
+                removing.add(position)
+            }
+        }
+        for (position in removing) {
+            entries.remove(position)
+        }
+        removing.clear()
+        for (i in 0 until candidateCount) {
+            val position = candidates[i]
+            if (entries.containsKey(position))
+                continue
+            val entry = PreloadEntry()
+            entries[position] = entry
+            val priority = if (i < HIGH_PRIORITY_COUNT) LoadPriority.HIGH else LoadPriority.LOW
+            for (request in provider.getPreloadRequests(position)) {
+                val handle = engine.preload(recyclerView.context, request, priority, entry)
+                if (handle == null) {
+                    //引擎不支持预加载
+                    isSupported = false
+                    reset()
+                    return
+                }
+                entry.add(handle)
+            }
+        }
+    }
+
+    private fun indexOfCandidate(position: Int): Int {
+        for (i in 0 until candidateCount) {
+            if (candidates[i] == position)
+                return i
+        }
+        return -1
+    }
+
+    private fun resolveSpanCount(recyclerView: RecyclerView): Int {
+        if (spanCount > 0)
+            return spanCount
+        return (recyclerView.layoutManager as? GridLayoutManager)?.spanCount ?: 1
+    }
+
+    private fun isLowRamDevice(ctx: Context): Boolean {
+        val am = ctx.getSystemService(Context.ACTIVITY_SERVICE) as? ActivityManager ?: return false
+        return am.isLowRamDevice
+    }
+
+    companion object {
+
+        //长按方向键时系统的按键重复间隔约为50ms，焦点移动动画会拉长间隔
+        private const val KEY_REPEAT_INTERVAL = 300L
+
+        //长按时沿移动方向额外预加载的最大数量
+        private const val MAX_REPEAT_DEPTH = 4
+
+        private const val DEFAULT_BUDGET = 8
+        private const val DEFAULT_DEPTH = 3
+        private const val LOW_RAM_BUDGET = 4
+        private const val LOW_RAM_DEPTH = 2
+
+        //使用高优先级加载的候选数量
+        private const val HIGH_PRIORITY_COUNT = 2
+
+        private const val REPEAT_WEIGHT = 2f
+        private const val CROSS_WEIGHT = 0.4f
+        private const val BACKWARD_WEIGHT = 0.2f
+    }
+}
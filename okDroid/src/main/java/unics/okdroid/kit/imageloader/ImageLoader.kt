@@ -11,6 +11,7 @@ import androidx.annotation.DrawableRes
 import halo.android.permission.BuildConfig
 import unics.okdroid.R
 import unics.okdroid.kit.imageloader.glide.GlideEngine
+import unics.okdroid.tools.graphics.BitmapPool
 
 internal const val TAG = "OkImageLoader"
 
@@ -90,6 +91,16 @@ val defaultRoundedImageResAIL: Int
 val defaultCircleImageResAIL: Int
     get() = configs.defaultCircleImageRes
 
+/**
+ * 按系统内存状态缩减图片相关的内存缓存，在[android.content.ComponentCallbacks2.onTrimMemory]中调用：
+ * 缩减引擎自身不会响应系统回调的缓存（见各引擎的[Engine.trimMemory]）以及[BitmapPool.shared]
+ * @see Engine.trimMemory
+ */
+fun trimImageMemory(ctx: Context, level: Int) {
+    engine.trimMemory(ctx, level)
+    BitmapPool.shared.trimMemory(level)
+}
+
 /**
  * 加载图片（不会使用默认占位图）
  */
@@ -141,6 +152,27 @@ fun ImageView.load(
     engine.load(this, url, placeHolder, errorPlaceHolder)
 }
 
+/**
+ * 渐进加载大图：先显示缩略图，原图加载完成后淡入替换，用于详情页等大图场景
+ * @param thumbnailUrl 低分辨率版本的地址，为空时使用已缓存的原图数据解码缩略图
+ */
+@JvmOverloads
+fun ImageView.loadProgressive(
+    url: String?,
+    thumbnailUrl: String? = null,
+    @DrawableRes placeHolder: Int = defaultImageResAIL
+) {
+    engine.loadProgressive(this, url, thumbnailUrl, placeHolder)
+}
+
+fun ImageView.loadProgressive(
+    url: String?,
+    thumbnailUrl: String?,
+    placeHolder: Drawable?
+) {
+    engine.loadProgressive(this, url, thumbnailUrl, placeHolder)
+}
+
 /**
  * 加载圆角图片（不会使用默认占位图）
  * @param roundingRadius 圆角半径，单位px
@@ -0,0 +1,347 @@
+package unics.okdroid.kit.imageloader
+
+import unics.okdroid.kit.debugger.MessageHandler
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * 图片加载的数据来源
+ */
+enum class ImageDataSource {
+
+    /**
+     * 内存缓存
+     */
+    MEMORY_CACHE,
+
+    /**
+     * 转换后的磁盘缓存
+     */
+    RESOURCE_DISK_CACHE,
+
+    /**
+     * 原始数据的磁盘缓存
+     */
+    DATA_DISK_CACHE,
+
+    /**
+     * 网络
+     */
+    REMOTE,
+
+    /**
+     * 本地文件、资源等
+     */
+    LOCAL
+}
+
+/**
+ * 图片加载的阶段
+ */
+enum class ImageStage {
+
+    /**
+     * 开始加载到开始处理之间的等待（尺寸确定、线程池排队）
+     */
+    QUEUE,
+
+    /**
+     * 获取数据（网络、磁盘）
+     */
+    FETCH,
+
+    /**
+     * 解码
+     */
+    DECODE,
+
+    /**
+     * 转换（裁剪、圆角等）
+     */
+    TRANSFORM,
+
+    /**
+     * 从开始加载到显示的总耗时
+     */
+    TOTAL
+}
+
+/**
+ * 图片加载统计：各个[Engine]实现把每次加载的各阶段耗时、数据来源、解码尺寸上报到这里，
+ * 通过[snapshot]获取统计结果，或者通过[report]输出到[MessageHandler]。
+ *
+ * 汇总数据只使用原子计数器与固定的直方图（按2的幂分桶），[recordStage]等上报方法本身不加锁、不分配对象；
+ * 但Glide引擎在开启时会为每个请求创建监听，并为每次解码、转换创建记录保存在加锁的表中，开销与请求数量成正比，
+ * 因此默认关闭，需要时（调试或者抽样统计）通过[isEnabled]开启。
+ */
+object ImageMetrics {
+
+    /**
+     * 是否开启统计，默认关闭
+     */
+    @JvmStatic
+    @Volatile
+    var isEnabled: Boolean = false
+
+    /**
+     * 每次加载完成时输出单条记录，默认不输出；例如设置为[MessageHandler.Lazy]保存最近的记录
+     */
+    @JvmStatic
+    @Volatile
+    var traceHandler: MessageHandler? = null
+
+    /**
+     * 解码的像素数超过显示像素数的该倍数时视为浪费
+     */
+    const val OVERSIZE_FACTOR = 1.5f
+
+    private val stages = Array(ImageStage.values().size) { Histogram() }
+    private val sources = AtomicLongArray(ImageDataSource.values().size)
+    private val failures = AtomicLong()
+    private val decodedBytes = AtomicLong()
+    private val oversizeCount = AtomicLong()
+    private val wastedBytes = AtomicLong()
+
+    /**
+     * 记录某个阶段的耗时
+     */
+    @JvmStatic
+    fun recordStage(stage: ImageStage, millis: Long) {
+        if (!isEnabled || millis < 0)
+            return
+        stages[stage.ordinal].record(millis)
+    }
+
+    /**
+     * 记录一次成功的加载
+     * @param source 数据来源
+     * @param bytes 解码结果占用的字节数，未知时为0
+     * @param width 解码结果宽度
+     * @param height 解码结果高度
+     * @param viewWidth 显示宽度，未知时为0
+     * @param viewHeight 显示高度，未知时为0
+     */
+    @JvmStatic
+    fun recordResult(
+        source: ImageDataSource,
+        bytes: Long,
+        width: Int,
+        height: Int,
+        viewWidth: Int,
+        viewHeight: Int
+    ) {
+        if (!isEnabled)
+            return
+        sources.incrementAndGet(source.ordinal)
+        if (source == ImageDataSource.MEMORY_CACHE || bytes <= 0)
+            return
+        decodedBytes.addAndGet(bytes)
+        if (width <= 0 || height <= 0 || viewWidth <= 0 || viewHeight <= 0)
+            return
+        val pixels = width.toLong() * height
+        val viewPixels = viewWidth.toLong() * viewHeight
+        if (pixels > viewPixels * OVERSIZE_FACTOR) {
+            oversizeCount.incrementAndGet()
+            wastedBytes.addAndGet(bytes - bytes * viewPixels / pixels)
+        }
+    }
+
+    /**
+     * 记录一次失败的加载
+     */
+    @JvmStatic
+    fun recordFailure() {
+        if (!isEnabled)
+            return
+        failures.incrementAndGet()
+    }
+
+    /**
+     * 输出单条记录到[traceHandler]
+     */
+    @JvmStatic
+    fun trace(message: String) {
+        traceHandler?.handle(TAG, message)
+    }
+
+    /**
+     * 获取当前统计结果
+     */
+    @JvmStatic
+    fun snapshot(): Snapshot {
+        return Snapshot(
+            stages = ImageStage.values().associateWith { stages[it.ordinal].snapshot() },
+            sources = ImageDataSource.values().associateWith { sources.get(it.ordinal) },
+            failureCount = failures.get(),
+            decodedBytes = decodedBytes.get(),
+            oversizeCount = oversizeCount.get(),
+            wastedBytes = wastedBytes.get()
+        )
+    }
+
+    /**
+     * 输出统计结果
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun report(handler: MessageHandler = MessageHandler.Printer) {
+        handler.handle(TAG, snapshot().toString())
+    }
+
+    /**
+     * 清除统计数据
+     */
+    @JvmStatic
+    fun reset() {
+        stages.forEach { it.reset() }
+        for (i in 0 until sources.length()) {
+            sources.set(i, 0)
+        }
+        failures.set(0)
+        decodedBytes.set(0)
+        oversizeCount.set(0)
+        wastedBytes.set(0)
+    }
+
+    /**
+     * 单个阶段的耗时统计，百分位为所在分桶的上限
+     */
+    class StageStats(
+        val count: Long,
+        val averageMillis: Double,
+        val p50Millis: Long,
+        val p90Millis: Long,
+        val p99Millis: Long,
+        val maxMillis: Long
+    ) {
+        override fun toString(): String {
+            return "count=$count avg=${"%.1f".format(averageMillis)}ms p50<=${p50Millis}ms p90<=${p90Millis}ms p99<=${p99Millis}ms max=${maxMillis}ms"
+        }
+    }
+
+    /**
+     * 统计结果
+     * @param stages 各阶段耗时
+     * @param sources 各数据来源的加载次数
+     * @param decodedBytes 解码的总字节数（不含内存缓存）
+     * @param oversizeCount 解码尺寸明显大于显示尺寸的次数
+     * @param wastedBytes 超出显示尺寸部分的字节数
+     */
+    class Snapshot(
+        val stages: Map<ImageStage, StageStats>,
+        val sources: Map<ImageDataSource, Long>,
+        val failureCount: Long,
+        val decodedBytes: Long,
+        val oversizeCount: Long,
+        val wastedBytes: Long
+    ) {
+
+        /**
+         * 成功加载的次数
+         */
+        val successCount: Long
+            get() = sources.values.sum()
+
+        /**
+         * 内存缓存命中率
+         */
+        val memoryHitRatio: Float
+            get() = ratio(sources[ImageDataSource.MEMORY_CACHE] ?: 0)
+
+        /**
+         * 磁盘缓存命中率（包括转换后的缓存与原始数据缓存）
+         */
+        val diskHitRatio: Float
+            get() = ratio((sources[ImageDataSource.RESOURCE_DISK_CACHE] ?: 0) + (sources[ImageDataSource.DATA_DISK_CACHE] ?: 0))
+
+        private fun ratio(count: Long): Float {
+            val total = successCount
+            return if (total == 0L) 0f else count.toFloat() / total
+        }
+
+        override fun toString(): String {
+            val sb = StringBuilder("ImageMetrics:")
+            sb.append("\n  success=").append(successCount)
+                .append(" failure=").append(failureCount)
+                .append(" memoryHit=").append("%.1f".format(memoryHitRatio * 100)).append('%')
+                .append(" diskHit=").append("%.1f".format(diskHitRatio * 100)).append('%')
+            sb.append("\n  sources=").append(sources)
+            for ((stage, stats) in stages) {
+                if (stats.count > 0)
+                    sb.append("\n  ").append(stage).append(": ").append(stats)
+            }
+            sb.append("\n  decoded=").append(decodedBytes / 1024).append("KB")
+                .append(" oversize=").append(oversizeCount)
+                .append(" wasted=").append(wastedBytes / 1024).append("KB")
+            return sb.toString()
+        }
+    }
+
+    /**
+     * 按2的幂分桶的耗时直方图：[0,1] (1,2] (2,4] ... (2048,4096] (4096,∞)
+     */
+    private class Histogram {
+
+        private val buckets = AtomicLongArray(BUCKET_COUNT)
+        private val sum = AtomicLong()
+        private val max = AtomicLong()
+
+        fun record(millis: Long) {
+            buckets.incrementAndGet(bucketOf(millis))
+            sum.addAndGet(millis)
+            var current = max.get()
+            while (millis > current && !max.compareAndSet(current, millis)) {
+                current = max.get()
+            }
+        }
+
+        fun snapshot(): StageStats {
+            val counts = LongArray(BUCKET_COUNT) { buckets.get(it) }
+            val total = counts.sum()
+            val maxValue = max.get()
+            return StageStats(
+                count = total,
+                averageMillis = if (total == 0L) 0.0 else sum.get().toDouble() / total,
+                p50Millis = percentile(counts, total, 0.5, maxValue),
+                p90Millis = percentile(counts, total, 0.9, maxValue),
+                p99Millis = percentile(counts, total, 0.99, maxValue),
+                maxMillis = maxValue
+            )
+        }
+
+        fun reset() {
+            for (i in 0 until BUCKET_COUNT) {
+                buckets.set(i, 0)
+            }
+            sum.set(0)
+            max.set(0)
+        }
+
+        private fun percentile(counts: LongArray, total: Long, p: Double, maxValue: Long): Long {
+            if (total == 0L)
+                return 0
+            val target = Math.ceil(total * p).toLong()
+            var accumulated = 0L
+            for (i in counts.indices) {
+                accumulated += counts[i]
+                if (accumulated >= target) {
+                    return if (i == BUCKET_COUNT - 1) maxValue else minOf(1L shl i, maxValue)
+                }
+            }
+            return maxValue
+        }
+
+        private fun bucketOf(millis: Long): Int {
+            if (millis <= 1)
+                return 0
+            //(2^(i-1), 2^i]
+            val index = 64 - java.lang.Long.numberOfLeadingZeros(millis - 1)
+            return minOf(index, BUCKET_COUNT - 1)
+        }
+
+        companion object {
+            //最后一个分桶保存超过4096ms的记录
+            private const val BUCKET_COUNT = 14
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package unics.okdroid.kit.imageloader
+
+import android.graphics.drawable.Drawable
+import android.widget.ImageView
+import androidx.annotation.MainThread
+
+/**
+ * 图片形状（转换）
+ */
+enum class Shape {
+
+    /**
+     * 不做形状转换，按[ImageRequest.scaleType]缩放
+     */
+    ORIGINAL,
+
+    /**
+     * 圆角：centerCrop + 圆角，圆角半径为[ImageRequest.radius]
+     */
+    ROUNDED,
+
+    /**
+     * 圆形：centerCrop + 圆形裁剪
+     */
+    CIRCLE
+}
+
+/**
+ * 加载优先级：只影响尚未开始的请求的执行顺序
+ */
+enum class LoadPriority {
+    IMMEDIATE,
+    HIGH,
+    NORMAL,
+    LOW
+}
+
+/**
+ * 不绑定View的图片请求：相同的请求（地址、尺寸、转换均相同）得到的结果相同，可以作为合并请求的key
+ * @param model 图片地址
+ * @param width 目标宽度，单位px
+ * @param height 目标高度，单位px
+ * @param shape 形状
+ * @param radius 圆角半径，仅[Shape.ROUNDED]有效
+ * @param scaleType 缩放方式，仅[Shape.ORIGINAL]有效，决定引擎使用的缩放转换
+ * @param decodePolicy 解码策略，为空时使用[Configs.decodePolicy]
+ */
+data class ImageRequest(
+    val model: String,
+    val width: Int,
+    val height: Int,
+    val shape: Shape = Shape.ORIGINAL,
+    val radius: Int = 0,
+    val scaleType: ImageView.ScaleType? = null,
+    val decodePolicy: DecodePolicy? = null
+)
+
+/**
+ * View显示图片的宽度：与Glide ViewTarget确定尺寸的方式一致，优先使用测量后的尺寸，其次使用固定的LayoutParams，均需减去padding
+ * @return 无法确定时返回0
+ */
+internal fun ImageView.resolveTargetWidth(): Int {
+    return resolveTargetSize(width, layoutParams?.width ?: 0, paddingLeft + paddingRight)
+}
+
+/**
+ * View显示图片的高度
+ * @see resolveTargetWidth
+ */
+internal fun ImageView.resolveTargetHeight(): Int {
+    return resolveTargetSize(height, layoutParams?.height ?: 0, paddingTop + paddingBottom)
+}
+
+private fun resolveTargetSize(viewSize: Int, paramSize: Int, padding: Int): Int {
+    val size = when {
+        viewSize > 0 -> viewSize - padding
+        paramSize > 0 -> paramSize - padding
+        else -> 0
+    }
+    return if (size > 0) size else 0
+}
+
+/**
+ * [Engine.fetch]的结果回调，均在主线程回调
+ */
+interface FetchCallback {
+
+    /**
+     * 图片获取成功
+     */
+    @MainThread
+    fun onReady(drawable: Drawable)
+
+    /**
+     * 图片获取失败
+     */
+    @MainThread
+    fun onFailed(e: Throwable?)
+
+    /**
+     * 资源被引擎回收（例如页面销毁），此后不能再使用[onReady]返回的Drawable
+     */
+    @MainThread
+    fun onCleared()
+}
+
+/**
+ * [Engine.fetch]的请求句柄
+ */
+fun interface FetchHandle {
+
+    /**
+     * 取消请求并释放资源，之后不能再使用[FetchCallback.onReady]返回的Drawable
+     */
+    @MainThread
+    fun cancel()
+}
+
+/**
+ * [Engine.preload]完成回调，在主线程回调
+ */
+fun interface PreloadCallback {
+
+    /**
+     * @param success 是否加载成功
+     */
+    @MainThread
+    fun onComplete(success: Boolean)
+}
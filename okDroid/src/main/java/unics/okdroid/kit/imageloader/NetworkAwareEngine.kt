@@ -0,0 +1,499 @@
+package unics.okdroid.kit.imageloader
+
+import android.annotation.SuppressLint
+import android.content.Context
+import android.graphics.drawable.Drawable
+import android.os.Handler
+import android.os.Looper
+import android.view.View
+import android.widget.ImageView
+import androidx.annotation.DrawableRes
+import androidx.annotation.MainThread
+import androidx.core.view.ViewCompat
+import unics.okdroid.tools.net.NETWORK_TYPE_UNKNOWN
+import unics.okdroid.tools.net.NetworkChangedReceiver
+import unics.okdroid.tools.net.getNetworkType
+import java.util.WeakHashMap
+
+/**
+ * 根据网络选择图片的引擎：包装任意引擎，加载前通过[selector]按当前网络质量与View尺寸选择实际加载的地址，
+ * 例如移动网络或测量带宽较低时使用更小的宽度、更低的质量以及webp格式。
+ *
+ * - 网络质量由网络类型（[getNetworkType]）与图片下载测量的带宽（[BandwidthMeter]）共同决定，
+ * Glide实现需要使用[unics.okdroid.kit.imageloader.glide.GlideEngineModule]才能测量带宽；
+ * - 网络质量提升时，正在显示的低质量图片通过[Engine.fetch]在后台获取更高质量的版本，获取完成后直接替换，
+ * 替换前不会显示占位图；[delegate]不支持fetch时不升级；
+ * - 不再使用时调用[release]。
+ *
+ * 使用：
+ * ```
+ * initImageLoader(ctx, engine = NetworkAwareEngine(ctx, GlideEngine))
+ * ```
+ * 所有方法都必须在主线程调用。
+ *
+ * @param delegate 实际加载图片的引擎
+ * @param selector 地址选择
+ */
+class NetworkAwareEngine @JvmOverloads constructor(
+    context: Context,
+    val delegate: Engine,
+    private val selector: ImageUrlSelector = CdnImageUrlSelector()
+) : Engine {
+
+    private val appContext = context.applicationContext
+
+    private val handler = Handler(Looper.getMainLooper())
+
+    //低于最高质量加载的View -> 升级信息
+    private val upgradable = WeakHashMap<ImageView, Upgrade>()
+
+    private var networkType = appContext.networkTypeOrUnknown()
+
+    private var receiver: NetworkChangedReceiver? = null
+
+    private val evaluateRunnable = Runnable { evaluate() }
+
+    private val bandwidthListener = BandwidthMeter.Listener {
+        handler.removeCallbacks(evaluateRunnable)
+        handler.post(evaluateRunnable)
+    }
+
+    /**
+     * 当前的网络质量
+     */
+    var quality: NetworkQuality = NetworkQuality.of(networkType, BandwidthMeter.kbps)
+        private set
+
+    private class Upgrade(
+        val url: String,
+        var quality: NetworkQuality,
+        val shape: Shape,
+        val radius: Int,
+        val scaleType: ImageView.ScaleType?
+    ) {
+        //正在显示的升级结果及其请求
+        var handle: FetchHandle? = null
+        var drawable: Drawable? = null
+
+        //进行中的升级请求
+        var pending: FetchHandle? = null
+    }
+
+    /**
+     * 一次升级请求的回调：获取完成后替换显示，再取消之前显示的升级请求，替换过程中不会出现空白
+     */
+    private inner class UpgradeCallback(
+        private val view: ImageView,
+        private val upgrade: Upgrade,
+        private val target: NetworkQuality
+    ) : FetchCallback {
+
+        //本次请求的句柄：fetch返回前可能已经同步回调onReady（内存缓存命中），此时为空
+        var handle: FetchHandle? = null
+
+        //本次请求显示的图片
+        private var shown: Drawable? = null
+
+        val isReady: Boolean
+            get() = shown != null
+
+        override fun onReady(drawable: Drawable) {
+            if (upgradable[view] !== upgrade)
+                return
+            val previous = upgrade.handle
+            shown = drawable
+            upgrade.quality = target
+            upgrade.drawable = drawable
+            upgrade.handle = handle
+            upgrade.pending = null
+            view.setImageDrawable(drawable)
+            //新图片已经显示，之前的结果可以释放
+            previous?.cancel()
+        }
+
+        override fun onFailed(e: Throwable?) {
+        }
+
+        override fun onCleared() {
+            val drawable = shown ?: return
+            if (view.drawable === drawable) {
+                view.setImageDrawable(null)
+            }
+            if (upgrade.drawable === drawable) {
+                upgrade.drawable = null
+                upgrade.handle = null
+            }
+            shown = null
+        }
+    }
+
+    init {
+        receiver = registerNetworkReceiver()
+        BandwidthMeter.addListener(bandwidthListener)
+    }
+
+    @SuppressLint("MissingPermission")
+    private fun registerNetworkReceiver(): NetworkChangedReceiver? {
+        return try {
+            NetworkChangedReceiver.registerReceiver(appContext) { _, type ->
+                if (type != networkType) {
+                    networkType = type
+                    //不同网络的带宽没有参考意义
+                    BandwidthMeter.reset()
+                }
+                evaluate()
+            }
+        } catch (e: SecurityException) {
+            logw("NetworkAwareEngine: unable to listen network changes, ${e.message}")
+            null
+        }
+    }
+
+    /**
+     * 停止监听网络变化并取消进行中的升级
+     */
+    @MainThread
+    fun release() {
+        receiver?.let {
+            NetworkChangedReceiver.unregisterReceiver(appContext, it)
+        }
+        receiver = null
+        BandwidthMeter.removeListener(bandwidthListener)
+        handler.removeCallbacks(evaluateRunnable)
+        for (view in upgradable.keys.toList()) {
+            cancelUpgrade(view)
+        }
+    }
+
+    private fun evaluate() {
+        val newQuality = NetworkQuality.of(networkType, BandwidthMeter.kbps, quality)
+        if (newQuality == quality)
+            return
+        val improved = newQuality > quality
+        if (debuggable) {
+            logi("NetworkAwareEngine: quality $quality -> $newQuality")
+        }
+        quality = newQuality
+        if (improved) {
+            upgradeVisible()
+        }
+    }
+
+    /**
+     * 升级正在显示的图片；未显示的View在下次加载时使用新的网络质量
+     */
+    private fun upgradeVisible() {
+        val target = quality
+        for ((view, upgrade) in upgradable.entries.toList()) {
+            if (upgrade.quality >= target || !ViewCompat.isAttachedToWindow(view) || !view.isShown)
+                continue
+            val width = view.resolveTargetWidth()
+            val height = view.resolveTargetHeight()
+            if (width <= 0 || height <= 0)
+                continue
+            val url = selector.select(upgrade.url, target, width, height)
+            if (url == selector.select(upgrade.url, upgrade.quality, width, height)) {
+                upgrade.quality = target
+                continue
+            }
+            //只取消尚未完成的请求，正在显示的结果保留到新的结果显示后再释放
+            upgrade.pending?.cancel()
+            upgrade.pending = null
+            var policy = view.decodePolicy
+            if (view.layerType == View.LAYER_TYPE_SOFTWARE) {
+                policy = (policy ?: configs.decodePolicy).copy(allowHardware = false)
+            }
+            val request = ImageRequest(url, width, height, upgrade.shape, upgrade.radius, upgrade.scaleType, policy)
+            val callback = UpgradeCallback(view, upgrade, target)
+            val handle = delegate.fetch(view.context, request, callback) ?: return
+            callback.handle = handle
+            if (callback.isReady) {
+                //已经同步完成并显示
+                upgrade.handle = handle
+            } else {
+                upgrade.pending = handle
+            }
+        }
+    }
+
+    /**
+     * 按当前网络质量选择地址，并记录需要升级的View
+     */
+    private inline fun select(
+        view: ImageView,
+        url: String?,
+        shape: Shape,
+        radius: Int,
+        scaleType: ImageView.ScaleType?,
+        load: (String?) -> Unit
+    ) {
+        cancelUpgrade(view)
+        if (url.isNullOrEmpty() || !selector.handles(url)) {
+            load(url)
+            return
+        }
+        val current = quality
+        //尚未布局的View使用屏幕尺寸，避免因尺寸未知而不限制宽度、加载原图
+        val width = view.resolveTargetWidth().takeIf { it > 0 } ?: view.resources.displayMetrics.widthPixels
+        val height = view.resolveTargetHeight().takeIf { it > 0 } ?: view.resources.displayMetrics.heightPixels
+        val selected = selector.select(url, current, width, height)
+        if (current < NetworkQuality.EXCELLENT) {
+            upgradable[view] = Upgrade(url, current, shape, radius, scaleType)
+        }
+        load(selected)
+    }
+
+    private fun cancelUpgrade(view: ImageView) {
+        val upgrade = upgradable.remove(view) ?: return
+        val drawable = upgrade.drawable
+        if (drawable != null && view.drawable === drawable) {
+            //升级的资源在取消后可能被回收，不再显示
+            view.setImageDrawable(null)
+        }
+        upgrade.drawable = null
+        upgrade.pending?.cancel()
+        upgrade.pending = null
+        upgrade.handle?.cancel()
+        upgrade.handle = null
+    }
+
+    override fun clearDiskCache(ctx: Context) {
+        delegate.clearDiskCache(ctx)
+    }
+
+    override fun clearMemoryCache(ctx: Context) {
+        delegate.clearMemoryCache(ctx)
+    }
+
+    override fun trimMemory(ctx: Context, level: Int) {
+        delegate.trimMemory(ctx, level)
+    }
+
+    override fun clear(view: View) {
+        if (view is ImageView)
+            cancelUpgrade(view)
+        delegate.clear(view)
+    }
+
+    override fun fetch(ctx: Context, request: ImageRequest, callback: FetchCallback): FetchHandle? {
+        return delegate.fetch(ctx, request.selected(), callback)
+    }
+
+    override fun preload(
+        ctx: Context,
+        request: ImageRequest,
+        priority: LoadPriority,
+        callback: PreloadCallback?
+    ): FetchHandle? {
+        return delegate.preload(ctx, request.selected(), priority, callback)
+    }
+
+    /**
+     * 预加载与显示使用相同的地址，保证预加载的结果能够命中
+     */
+    private fun ImageRequest.selected(): ImageRequest {
+        if (!selector.handles(model))
+            return this
+        return copy(model = selector.select(model, quality, width, height))
+    }
+
+    override fun load(imageView: ImageView, url: String?) {
+        select(imageView, url, Shape.ORIGINAL, 0, ImageView.ScaleType.CENTER_CROP) {
+            delegate.load(imageView, it)
+        }
+    }
+
+    override fun load(imageView: ImageView, url: String?, @DrawableRes placeHolder: Int) {
+        select(imageView, url, Shape.ORIGINAL, 0, imageView.scaleType) {
+            delegate.load(imageView, it, placeHolder)
+        }
+    }
+
+    override fun load(imageView: ImageView, url: String?, placeHolder: Drawable?) {
+        select(imageView, url, Shape.ORIGINAL, 0, imageView.scaleType) {
+            delegate.load(imageView, it, placeHolder)
+        }
+    }
+
+    override fun load(
+        imageView: ImageView,
+        url: String?,
+        @DrawableRes placeHolder: Int,
+        @DrawableRes errorPlaceHolder: Int
+    ) {
+        select(imageView, url, Shape.ORIGINAL, 0, imageView.scaleType) {
+            delegate.load(imageView, it, placeHolder, errorPlaceHolder)
+        }
+    }
+
+    override fun load(
+        imageView: ImageView,
+        url: String?,
+        placeHolder: Drawable?,
+        errorPlaceHolder: Drawable?
+    ) {
+        select(imageView, url, Shape.ORIGINAL, 0, imageView.scaleType) {
+            delegate.load(imageView, it, placeHolder, errorPlaceHolder)
+        }
+    }
+
+    override fun load(
+        imageView: ImageView,
+        url: String?,
+        @DrawableRes placeHolder: Int,
+        errorPlaceHolder: Drawable?
+    ) {
+        select(imageView, url, Shape.ORIGINAL, 0, imageView.scaleType) {
+            delegate.load(imageView, it, placeHolder, errorPlaceHolder)
+        }
+    }
+
+    override fun load(
+        imageView: ImageView,
+        url: String?,
+        placeHolder: Drawable?,
+        @DrawableRes errorPlaceHolder: Int
+    ) {
+        select(imageView, url, Shape.ORIGINAL, 0, imageView.scaleType) {
+            delegate.load(imageView, it, placeHolder, errorPlaceHolder)
+        }
+    }
+
+    /**
+     * 缩略图地址不做选择，原图按当前网络质量选择
+     */
+    override fun loadProgressive(
+        imageView: ImageView,
+        url: String?,
+        thumbnailUrl: String?,
+        @DrawableRes placeHolder: Int
+    ) {
+        select(imageView, url, Shape.ORIGINAL, 0, imageView.scaleType) {
+            delegate.loadProgressive(imageView, it, thumbnailUrl, placeHolder)
+        }
+    }
+
+    override fun loadProgressive(
+        imageView: ImageView,
+        url: String?,
+        thumbnailUrl: String?,
+        placeHolder: Drawable?
+    ) {
+        select(imageView, url, Shape.ORIGINAL, 0, imageView.scaleType) {
+            delegate.loadProgressive(imageView, it, thumbnailUrl, placeHolder)
+        }
+    }
+
+    override fun loadRounded(imageView: ImageView, url: String?, roundingRadius: Int) {
+        select(imageView, url, Shape.ROUNDED, roundingRadius, null) {
+            delegate.loadRounded(imageView, it, roundingRadius)
+        }
+    }
+
+    override fun loadRounded(
+        imageView: ImageView,
+        url: String?,
+        roundingRadius: Int,
+        @DrawableRes placeHolder: Int
+    ) {
+        select(imageView, url, Shape.ROUNDED, roundingRadius, null) {
+            delegate.loadRounded(imageView, it, roundingRadius, placeHolder)
+        }
+    }
+
+    override fun loadRounded(
+        imageView: ImageView,
+        url: String?,
+        roundingRadius: Int,
+        placeHolder: Drawable?
+    ) {
+        select(imageView, url, Shape.ROUNDED, roundingRadius, null) {
+            delegate.loadRounded(imageView, it, roundingRadius, placeHolder)
+        }
+    }
+
+    override fun loadRounded(
+        imageView: ImageView,
+        url: String?,
+        roundingRadius: Int,
+        placeHolder: Drawable?,
+        error: Drawable?
+    ) {
+        select(imageView, url, Shape.ROUNDED, roundingRadius, null) {
+            delegate.loadRounded(imageView, it, roundingRadius, placeHolder, error)
+        }
+    }
+
+    override fun loadRounded(
+        imageView: ImageView,
+        url: String?,
+        roundingRadius: Int,
+        @DrawableRes placeHolder: Int,
+        applyPlaceHolder: Boolean
+    ) {
+        select(imageView, url, Shape.ROUNDED, roundingRadius, null) {
+            delegate.loadRounded(imageView, it, roundingRadius, placeHolder, applyPlaceHolder)
+        }
+    }
+
+    override fun loadRounded(
+        imageView: ImageView,
+        url: String?,
+        roundingRadius: Int,
+        placeHolder: Drawable?,
+        applyPlaceHolder: Boolean
+    ) {
+        select(imageView, url, Shape.ROUNDED, roundingRadius, null) {
+            delegate.loadRounded(imageView, it, roundingRadius, placeHolder, applyPlaceHolder)
+        }
+    }
+
+    override fun loadCircle(imageView: ImageView, url: String?) {
+        select(imageView, url, Shape.CIRCLE, 0, null) {
+            delegate.loadCircle(imageView, it)
+        }
+    }
+
+    override fun loadCircle(imageView: ImageView, url: String?, @DrawableRes placeHolder: Int) {
+        select(imageView, url, Shape.CIRCLE, 0, null) {
+            delegate.loadCircle(imageView, it, placeHolder)
+        }
+    }
+
+    override fun loadCircle(imageView: ImageView, url: String?, placeHolder: Drawable?) {
+        select(imageView, url, Shape.CIRCLE, 0, null) {
+            delegate.loadCircle(imageView, it, placeHolder)
+        }
+    }
+
+    override fun loadCircle(
+        imageView: ImageView,
+        url: String?,
+        @DrawableRes placeHolder: Int,
+        applyPlaceHolder: Boolean
+    ) {
+        select(imageView, url, Shape.CIRCLE, 0, null) {
+            delegate.loadCircle(imageView, it, placeHolder, applyPlaceHolder)
+        }
+    }
+
+    override fun loadCircle(
+        imageView: ImageView,
+        url: String?,
+        placeHolder: Drawable?,
+        applyPlaceHolder: Boolean
+    ) {
+        select(imageView, url, Shape.CIRCLE, 0, null) {
+            delegate.loadCircle(imageView, it, placeHolder, applyPlaceHolder)
+        }
+    }
+}
+
+@SuppressLint("MissingPermission")
+private fun Context.networkTypeOrUnknown(): Int {
+    return try {
+        getNetworkType()
+    } catch (e: SecurityException) {
+        NETWORK_TYPE_UNKNOWN
+    }
+}
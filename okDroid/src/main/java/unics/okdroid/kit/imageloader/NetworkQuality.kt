@@ -0,0 +1,256 @@
+package unics.okdroid.kit.imageloader
+
+import android.os.SystemClock
+import unics.okdroid.tools.net.NETWORK_TYPE_ETHERNET
+import unics.okdroid.tools.net.NETWORK_TYPE_MOBILE
+import unics.okdroid.tools.net.NETWORK_TYPE_NONE
+import unics.okdroid.tools.net.NETWORK_TYPE_WIFI
+import unics.okdroid.tools.net.NetworkType
+import java.util.concurrent.CopyOnWriteArrayList
+
+/**
+ * 网络质量等级，按从差到好的顺序定义
+ */
+enum class NetworkQuality {
+    POOR, MODERATE, GOOD, EXCELLENT;
+
+    companion object {
+
+        /**
+         * 根据网络类型与测量的带宽评估网络质量：有带宽测量结果时以测量结果为准，否则按网络类型估计
+         * @param type [unics.okdroid.tools.net.getNetworkType]
+         * @param kbps 测量的带宽，未知时小于0
+         */
+        @JvmStatic
+        fun of(@NetworkType type: Int, kbps: Int): NetworkQuality {
+            if (type == NETWORK_TYPE_NONE)
+                return POOR
+            if (kbps >= 0) {
+                return when {
+                    kbps < 150 -> POOR
+                    kbps < 600 -> MODERATE
+                    kbps < 2500 -> GOOD
+                    else -> EXCELLENT
+                }
+            }
+            return when (type) {
+                NETWORK_TYPE_WIFI, NETWORK_TYPE_ETHERNET -> EXCELLENT
+                NETWORK_TYPE_MOBILE -> MODERATE
+                else -> GOOD
+            }
+        }
+
+        /**
+         * 在[current]的基础上评估网络质量：带宽需要超过等级边界[HYSTERESIS]的比例才改变等级，
+         * 避免带宽在边界附近波动时等级反复变化（地址随之变化导致缓存失效）
+         * @param current 当前的网络质量
+         */
+        @JvmStatic
+        fun of(@NetworkType type: Int, kbps: Int, current: NetworkQuality): NetworkQuality {
+            val quality = of(type, kbps)
+            if (kbps < 0 || quality == current)
+                return quality
+            val factor = 1 + HYSTERESIS
+            return if (quality > current) {
+                //按降低后的带宽评估，仍然高于当前等级时才提升
+                of(type, (kbps / factor).toInt()).coerceAtLeast(current)
+            } else {
+                of(type, (kbps * factor).toInt()).coerceAtMost(current)
+            }
+        }
+
+        /**
+         * 改变等级时带宽需要超过等级边界的比例
+         */
+        const val HYSTERESIS = 0.2f
+    }
+}
+
+/**
+ * 图片下载带宽测量：按实际下载的字节数与耗时（包含首字节时间）计算，使用指数加权平均平滑。
+ * 较小的图片耗时主要取决于延迟，不参与计算；较长时间没有新的样本时结果失效。
+ */
+object BandwidthMeter {
+
+    /**
+     * 带宽变化回调，可能在任意线程调用
+     */
+    fun interface Listener {
+        fun onBandwidthChanged(kbps: Int)
+    }
+
+    //参与计算的最小字节数
+    private const val MIN_SAMPLE_BYTES = 16 * 1024L
+
+    //新样本的权重
+    private const val ALPHA = 0.3
+
+    //样本的有效时间
+    private const val SAMPLE_TTL = 2 * 60 * 1000L
+
+    private val listeners = CopyOnWriteArrayList<Listener>()
+
+    private var estimate = -1.0
+    private var lastSampleTime = 0L
+
+    /**
+     * 当前估计的带宽，单位kbps；未知时为-1
+     */
+    @JvmStatic
+    val kbps: Int
+        @Synchronized get() {
+            if (estimate < 0 || SystemClock.elapsedRealtime() - lastSampleTime > SAMPLE_TTL)
+                return -1
+            return estimate.toInt()
+        }
+
+    /**
+     * 记录一次下载
+     * @param bytes 下载的字节数
+     * @param millis 耗时
+     */
+    @JvmStatic
+    fun record(bytes: Long, millis: Long) {
+        if (bytes < MIN_SAMPLE_BYTES || millis <= 0)
+            return
+        val sample = bytes * 8.0 / millis
+        val result: Int
+        synchronized(this) {
+            val now = SystemClock.elapsedRealtime()
+            estimate = if (estimate < 0 || now - lastSampleTime > SAMPLE_TTL) sample
+            else estimate + ALPHA * (sample - estimate)
+            lastSampleTime = now
+            result = estimate.toInt()
+        }
+        for (listener in listeners) {
+            listener.onBandwidthChanged(result)
+        }
+    }
+
+    /**
+     * 清除测量结果，网络切换时调用
+     */
+    @JvmStatic
+    @Synchronized
+    fun reset() {
+        estimate = -1.0
+        lastSampleTime = 0
+    }
+
+    @JvmStatic
+    fun addListener(listener: Listener) {
+        listeners.addIfAbsent(listener)
+    }
+
+    @JvmStatic
+    fun removeListener(listener: Listener) {
+        listeners.remove(listener)
+    }
+}
+
+/**
+ * 根据网络质量与View尺寸选择图片地址：可以改写CDN参数，也可以返回不同的地址变体
+ */
+interface ImageUrlSelector {
+
+    /**
+     * 是否处理该地址，默认只处理http/https地址
+     */
+    fun handles(url: String): Boolean {
+        return url.startsWith("http://", true) || url.startsWith("https://", true)
+    }
+
+    /**
+     * @param width View宽度，未知时为0
+     * @param height View高度，未知时为0
+     * @return 实际加载的地址；相同的参数必须返回相同的地址
+     */
+    fun select(url: String, quality: NetworkQuality, width: Int, height: Int): String
+}
+
+/**
+ * 通过CDN参数选择图片：
+ * - 宽度参数[widthParam]：View宽度已知时设置为View宽度，[NetworkQuality.POOR]与[NetworkQuality.MODERATE]时分别缩小到50%与75%；
+ * - 质量参数[qualityParam]：按网络质量依次为50、65、80，[NetworkQuality.EXCELLENT]时不设置；
+ * - 格式参数[formatParam]：[NetworkQuality.EXCELLENT]以下使用[format]，例如webp（所有版本都支持解码）或avif（Android 12及以上）。
+ * 参数为空时不设置对应的参数；地址中已有的同名参数会被替换。
+ */
+open class CdnImageUrlSelector @JvmOverloads constructor(
+    private val widthParam: String? = "w",
+    private val qualityParam: String? = "q",
+    private val formatParam: String? = "format",
+    private val format: String? = "webp"
+) : ImageUrlSelector {
+
+    override fun select(url: String, quality: NetworkQuality, width: Int, height: Int): String {
+        val params = LinkedHashMap<String, String>(4)
+        if (widthParam != null && width > 0) {
+            params[widthParam] = (width * scaleOf(quality)).toInt().coerceAtLeast(1).toString()
+        }
+        if (qualityParam != null) {
+            qualityOf(quality)?.let {
+                params[qualityParam] = it.toString()
+            }
+        }
+        if (formatParam != null && format != null && quality < NetworkQuality.EXCELLENT) {
+            params[formatParam] = format
+        }
+        return replaceParams(url, params)
+    }
+
+    /**
+     * 宽度缩放比例
+     */
+    protected open fun scaleOf(quality: NetworkQuality): Float {
+        return when (quality) {
+            NetworkQuality.POOR -> 0.5f
+            NetworkQuality.MODERATE -> 0.75f
+            else -> 1f
+        }
+    }
+
+    /**
+     * 图片质量（1-100），为空时不设置
+     */
+    protected open fun qualityOf(quality: NetworkQuality): Int? {
+        return when (quality) {
+            NetworkQuality.POOR -> 50
+            NetworkQuality.MODERATE -> 65
+            NetworkQuality.GOOD -> 80
+            NetworkQuality.EXCELLENT -> null
+        }
+    }
+
+    private fun replaceParams(url: String, params: Map<String, String>): String {
+        if (params.isEmpty())
+            return url
+        val fragmentIndex = url.indexOf('#')
+        val address = if (fragmentIndex >= 0) url.substring(0, fragmentIndex) else url
+        val queryIndex = address.indexOf('?')
+        val remaining = HashMap(params)
+        return buildString(url.length + 32) {
+            if (queryIndex < 0) {
+                append(address)
+            } else {
+                append(address, 0, queryIndex)
+                address.substring(queryIndex + 1).split('&').forEach { pair ->
+                    if (pair.isEmpty())
+                        return@forEach
+                    val name = pair.substringBefore('=')
+                    val value = remaining.remove(name)
+                    appendParam(if (value == null) pair else "$name=$value")
+                }
+            }
+            for ((name, value) in params) {
+                if (remaining.containsKey(name))
+                    appendParam("$name=$value")
+            }
+            if (fragmentIndex >= 0)
+                append(url, fragmentIndex, url.length)
+        }
+    }
+
+    private fun StringBuilder.appendParam(pair: String) {
+        append(if (indexOf("?") < 0) '?' else '&').append(pair)
+    }
+}
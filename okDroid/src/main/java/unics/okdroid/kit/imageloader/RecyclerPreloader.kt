@@ -0,0 +1,298 @@
+package unics.okdroid.kit.imageloader
+
+import android.os.SystemClock
+import androidx.annotation.MainThread
+import androidx.recyclerview.widget.GridLayoutManager
+import androidx.recyclerview.widget.LinearLayoutManager
+import androidx.recyclerview.widget.RecyclerView
+import kotlin.math.abs
+import kotlin.math.ceil
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * 提供需要预加载的图片请求
+ */
+fun interface PreloadRequestProvider {
+
+    /**
+     * @param position adapter中的位置
+     * @return 该位置的item显示时需要加载的图片，尺寸应与最终显示的尺寸一致，否则无法命中缓存
+     */
+    fun getPreloadRequests(position: Int): List<ImageRequest>
+}
+
+/**
+ * RecyclerView滚动预加载：根据滚动方向与速度，提前通过[Engine.preload]加载即将滚入屏幕的item的图片。
+ *
+ * - 预加载窗口为滚动方向上可见区域之后的[depth]个item，窗口移动后取消窗口外未完成的预加载；
+ * - 预加载深度根据滚动速度与测量到的平均加载耗时计算：加载期间会滚入屏幕的item都需要提前加载，
+ * 深度在[minDepth]与[maxDepth]之间，可用内存不足时减小；
+ * - 仅支持[LinearLayoutManager]（包括[GridLayoutManager]）；
+ * - 数据集变化后调用[reset]取消已有的预加载。
+ *
+ * 使用：
+ * ```
+ * RecyclerPreloader(provider).attach(recyclerView)
+ * ```
+ *
+ * @param provider 图片请求提供者
+ * @param engine 加载引擎
+ * @param minDepth 最小预加载数，0表示一行（列）
+ * @param maxDepth 最大预加载数
+ */
+class RecyclerPreloader @JvmOverloads constructor(
+    private val provider: PreloadRequestProvider,
+    private val engine: Engine = unics.okdroid.kit.imageloader.engine,
+    private val minDepth: Int = 0,
+    private val maxDepth: Int = DEFAULT_MAX_DEPTH
+) : RecyclerView.OnScrollListener() {
+
+    private var recyclerView: RecyclerView? = null
+
+    //窗口内的预加载：position -> 预加载
+    private val entries = HashMap<Int, PreloadEntry>()
+
+    private var isSupported = true
+
+    //滚动方向：1 向后，-1 向前
+    private var direction = 1
+
+    //滚动速度，单位px/s
+    private var velocity = 0f
+    private var lastScrollTime = 0L
+
+    /**
+     * 平均加载耗时，单位ms
+     */
+    var averageLoadMillis: Float = DEFAULT_LOAD_MILLIS
+        private set
+
+    //加载成功时更新平均加载耗时
+    private val loadListener: (Long) -> Unit = { elapsed ->
+        averageLoadMillis += (elapsed - averageLoadMillis) * LOAD_SMOOTHING
+    }
+
+    /**
+     * 当前预加载深度
+     */
+    var depth: Int = 0
+        private set
+
+    private val removing = ArrayList<Int>()
+
+    @MainThread
+    fun attach(recyclerView: RecyclerView) {
+        detach()
+        this.recyclerView = recyclerView
+        recyclerView.addOnScrollListener(this)
+    }
+
+    @MainThread
+    fun detach() {
+        recyclerView?.removeOnScrollListener(this)
+        recyclerView = null
+        reset()
+    }
+
+    /**
+     * 取消所有未完成的预加载
+     */
+    @MainThread
+    fun reset() {
+        for (entry in entries.values) {
+            entry.cancel()
+        }
+        entries.clear()
+    }
+
+    override fun onScrolled(recyclerView: RecyclerView, dx: Int, dy: Int) {
+        val layoutManager = recyclerView.layoutManager as? LinearLayoutManager ?: return
+        if (!isSupported)
+            return
+        val delta = if (layoutManager.orientation == RecyclerView.VERTICAL) dy else dx
+        if (delta == 0)
+            return
+        updateVelocity(delta)
+        val newDirection = if (delta > 0) 1 else -1
+        if (layoutManager.reverseLayout) {
+            direction = -newDirection
+        } else {
+            direction = newDirection
+        }
+
+        val first = layoutManager.findFirstVisibleItemPosition()
+        val last = layoutManager.findLastVisibleItemPosition()
+        if (first == RecyclerView.NO_POSITION || last == RecyclerView.NO_POSITION)
+            return
+        depth = calculateDepth(layoutManager, first)
+        val itemCount = layoutManager.itemCount
+        val start: Int
+        val end: Int
+        if (direction > 0) {
+            start = last + 1
+            end = min(itemCount - 1, last + depth)
+        } else {
+            start = max(0, first - depth)
+            end = first - 1
+        }
+        updateWindow(recyclerView, start, end, direction, (layoutManager as? GridLayoutManager)?.spanCount ?: 1)
+    }
+
+    private fun updateVelocity(delta: Int) {
+        val now = SystemClock.uptimeMillis()
+        val elapsed = now - lastScrollTime
+        lastScrollTime = now
+        if (elapsed <= 0)
+            return
+        val current = abs(delta) * 1000f / elapsed
+        //间隔过长视为新的一次滚动
+        velocity = if (elapsed > VELOCITY_RESET_MILLIS) current else velocity + (current - velocity) * VELOCITY_SMOOTHING
+    }
+
+    /**
+     * 加载期间会滚入屏幕的item都需要提前加载
+     */
+    private fun calculateDepth(layoutManager: LinearLayoutManager, first: Int): Int {
+        val span = (layoutManager as? GridLayoutManager)?.spanCount ?: 1
+        val lower = if (minDepth > 0) minDepth else span
+        val upper = max(lower, maxDepth)
+        val child = layoutManager.findViewByPosition(first)
+        val itemSize = if (child == null) 0 else {
+            if (layoutManager.orientation == RecyclerView.VERTICAL) child.height else child.width
+        }
+        var result = lower
+        if (itemSize > 0) {
+            val lines = velocity * averageLoadMillis * LOOKAHEAD_FACTOR / 1000f / itemSize
+            result = max(lower, ceil(lines).toInt() * span)
+        }
+        result = min(result, upper)
+        //可用内存不足时减少预加载
+        val runtime = Runtime.getRuntime()
+        val available = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory())
+        val ratio = available.toFloat() / runtime.maxMemory()
+        if (ratio < CRITICAL_MEMORY_RATIO) {
+            result = min(result, span)
+        } else if (ratio < LOW_MEMORY_RATIO) {
+            result = max(span, result / 2)
+        }
+        return result
+    }
+
+    private fun updateWindow(recyclerView: RecyclerView, start: Int, end: Int, direction: Int, span: Int) {
+        //取消窗口外的预加载
+        for ((position, entry) in entries) {
+            if (position < start || position > end) {
+                entry.cancel()
+                removing.add(position)
+            }
+        }
+        for (position in removing) {
+            entries.remove(position)
+        }
+        removing.clear()
+        if (start > end)
+            return
+        //按距离可见区域由近到远的顺序发起，最近的一行优先
+        var position = if (direction > 0) start else end
+        var index = 0
+        while (position in start..end) {
+            if (!entries.containsKey(position)) {
+                val entry = PreloadEntry(loadListener)
+                entries[position] = entry
+                val priority = if (index < span) LoadPriority.HIGH else LoadPriority.NORMAL
+                for (request in provider.getPreloadRequests(position)) {
+                    val handle = engine.preload(recyclerView.context, request, priority, entry)
+                    if (handle == null) {
+                        //引擎不支持预加载
+                        isSupported = false
+                        reset()
+                        return
+                    }
+                    entry.add(handle)
+                }
+            }
+            position += direction
+            index++
+        }
+    }
+
+    companion object {
+
+        /**
+         * 默认最大预加载数
+         */
+        const val DEFAULT_MAX_DEPTH = 12
+
+        //初始的平均加载耗时估计
+        private const val DEFAULT_LOAD_MILLIS = 120f
+
+        //提前量：预留加载耗时的倍数，覆盖排队与解码的波动
+        private const val LOOKAHEAD_FACTOR = 2f
+
+        private const val VELOCITY_SMOOTHING = 0.3f
+        private const val LOAD_SMOOTHING = 0.2f
+        private const val VELOCITY_RESET_MILLIS = 100L
+
+        //可用内存占比低于该值时减少预加载
+        private const val LOW_MEMORY_RATIO = 0.3f
+
+        //可用内存占比低于该值时只预加载一行
+        private const val CRITICAL_MEMORY_RATIO = 0.15f
+    }
+}
+
+/**
+ * 为列表添加滚动预加载
+ * @see RecyclerPreloader
+ */
+@JvmOverloads
+fun RecyclerView.preloadImages(
+    maxDepth: Int = RecyclerPreloader.DEFAULT_MAX_DEPTH,
+    provider: PreloadRequestProvider
+): RecyclerPreloader {
+    return RecyclerPreloader(provider, maxDepth = maxDepth).also {
+        it.attach(this)
+    }
+}
+
+/**
+ * 单个item的预加载：一个item可能包含多张图片
+ * @param onLoaded 加载成功回调，参数为加载耗时（ms）
+ */
+internal class PreloadEntry(private val onLoaded: ((Long) -> Unit)? = null) : PreloadCallback {
+
+    private val startTime = SystemClock.uptimeMillis()
+
+    private var handles: Any? = null
+
+    var isCancelled = false
+        private set
+
+    fun add(handle: FetchHandle) {
+        //大多数item只有一张图片，避免创建列表
+        when (val current = handles) {
+            null -> handles = handle
+            is FetchHandle -> handles = arrayListOf(current, handle)
+            is MutableList<*> -> @Suppress("UNCHECKED_CAST") (current as MutableList<FetchHandle>).add(handle)
+        }
+    }
+
+    fun cancel() {
+        if (isCancelled)
+            return
+        isCancelled = true
+        when (val current = handles) {
+            is FetchHandle -> current.cancel()
+            is List<*> -> current.forEach { (it as FetchHandle).cancel() }
+        }
+        handles = null
+    }
+
+    override fun onComplete(success: Boolean) {
+        if (isCancelled)
+            return
+        if (success)
+            onLoaded?.invoke(SystemClock.uptimeMillis() - startTime)
+    }
+}
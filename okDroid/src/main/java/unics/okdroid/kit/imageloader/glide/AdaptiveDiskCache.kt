@@ -0,0 +1,162 @@
+package unics.okdroid.kit.imageloader.glide
+
+import android.content.Context
+import android.os.SystemClock
+import com.bumptech.glide.disklrucache.DiskLruCache
+import com.bumptech.glide.load.Key
+import com.bumptech.glide.load.engine.cache.DiskCache
+import com.bumptech.glide.load.engine.cache.SafeKeyGenerator
+import unics.okdroid.kit.imageloader.DiskCacheSizePolicy
+import unics.okdroid.kit.imageloader.debuggable
+import unics.okdroid.kit.imageloader.logi
+import unics.okdroid.kit.imageloader.logw
+import unics.okdroid.tools.io.storage
+import java.io.File
+import java.io.IOException
+import kotlin.math.abs
+
+/**
+ * 大小可调整的磁盘缓存工厂：缓存目录为[unics.okdroid.tools.io.Storage.getCacheDirectory]/[folderName]，
+ * 大小由[policy]根据可用空间计算，并在后台（Glide的磁盘缓存线程）定期重新计算。
+ */
+class AdaptiveDiskCacheFactory(
+    context: Context,
+    private val folderName: String,
+    private val policy: DiskCacheSizePolicy
+) : DiskCache.Factory {
+
+    private val context = context.applicationContext
+
+    override fun build(): DiskCache? {
+        val directory = try {
+            storage.getCacheDirectory(folderName)
+        } catch (e: Throwable) {
+            File(context.cacheDir, folderName)
+        }
+        if (!directory.mkdirs() && (!directory.exists() || !directory.isDirectory)) {
+            return null
+        }
+        return AdaptiveDiskCache(directory, policy)
+    }
+}
+
+/**
+ * 基于[DiskLruCache]的磁盘缓存，与Glide默认的DiskLruCacheWrapper使用相同的目录格式与key，
+ * 区别是可以通过[DiskLruCache.setMaxSize]调整大小。
+ */
+internal class AdaptiveDiskCache(
+    private val directory: File,
+    private val policy: DiskCacheSizePolicy
+) : DiskCache {
+
+    private val keyGenerator = SafeKeyGenerator()
+
+    private var diskLruCache: DiskLruCache? = null
+
+    private var lastEvaluateTime = 0L
+    private var putCountSinceEvaluate = 0
+
+    @Synchronized
+    @Throws(IOException::class)
+    private fun getDiskCache(): DiskLruCache {
+        diskLruCache?.let {
+            return it
+        }
+        //首次打开时还不知道已使用的大小，按目录实际大小估算
+        val size = policy.computeSize(directory, directorySize(), 0)
+        if (debuggable) {
+            logi("disk cache: dir=$directory size=${size / 1024 / 1024}MB")
+        }
+        return DiskLruCache.open(directory, APP_VERSION, VALUE_COUNT, size).also {
+            diskLruCache = it
+            lastEvaluateTime = SystemClock.elapsedRealtime()
+        }
+    }
+
+    override fun get(key: Key): File? {
+        val safeKey = keyGenerator.getSafeKey(key)
+        return try {
+            getDiskCache().get(safeKey)?.getFile(0)
+        } catch (e: IOException) {
+            logw("unable to get from disk cache: ${e.message}")
+            null
+        }
+    }
+
+    override fun put(key: Key, writer: DiskCache.Writer) {
+        val safeKey = keyGenerator.getSafeKey(key)
+        try {
+            val diskCache = getDiskCache()
+            if (diskCache.get(safeKey) != null)
+                return
+            //其他线程正在写入同一个key时返回null，直接放弃本次写入
+            val editor = diskCache.edit(safeKey) ?: return
+            try {
+                if (writer.write(editor.getFile(0))) {
+                    editor.commit()
+                }
+            } finally {
+                editor.abortUnlessCommitted()
+            }
+            evaluateIfNeeded(diskCache)
+        } catch (e: IOException) {
+            logw("unable to put to disk cache: ${e.message}")
+        }
+    }
+
+    override fun delete(key: Key) {
+        val safeKey = keyGenerator.getSafeKey(key)
+        try {
+            getDiskCache().remove(safeKey)
+        } catch (e: IOException) {
+            logw("unable to delete from disk cache: ${e.message}")
+        }
+    }
+
+    @Synchronized
+    override fun clear() {
+        try {
+            getDiskCache().delete()
+        } catch (e: IOException) {
+            logw("unable to clear disk cache: ${e.message}")
+        } finally {
+            diskLruCache = null
+        }
+    }
+
+    /**
+     * 写入一定次数或者间隔一定时间后重新计算缓存大小；put在Glide的磁盘缓存线程中执行，不会阻塞主线程
+     */
+    private fun evaluateIfNeeded(diskCache: DiskLruCache) {
+        val now = SystemClock.elapsedRealtime()
+        synchronized(this) {
+            putCountSinceEvaluate++
+            if (putCountSinceEvaluate < EVALUATE_PUT_COUNT && now - lastEvaluateTime < EVALUATE_INTERVAL)
+                return
+            putCountSinceEvaluate = 0
+            lastEvaluateTime = now
+        }
+        val currentMaxSize = diskCache.maxSize
+        val size = policy.computeSize(directory, diskCache.size(), currentMaxSize)
+        //变化较小时不调整，避免频繁整理
+        if (abs(size - currentMaxSize) > currentMaxSize * RESIZE_THRESHOLD) {
+            if (debuggable) {
+                logi("disk cache resize: ${currentMaxSize / 1024 / 1024}MB -> ${size / 1024 / 1024}MB")
+            }
+            diskCache.maxSize = size
+        }
+    }
+
+    private fun directorySize(): Long {
+        return directory.listFiles()?.sumOf { it.length() } ?: 0
+    }
+
+    companion object {
+        private const val APP_VERSION = 1
+        private const val VALUE_COUNT = 1
+
+        private const val EVALUATE_PUT_COUNT = 256
+        private const val EVALUATE_INTERVAL = 10 * 60 * 1000L
+        private const val RESIZE_THRESHOLD = 0.05f
+    }
+}
@@ -0,0 +1,59 @@
+package unics.okdroid.kit.imageloader.glide
+
+import com.bumptech.glide.load.Options
+import com.bumptech.glide.load.model.GlideUrl
+import com.bumptech.glide.load.model.ModelLoader
+import com.bumptech.glide.load.model.ModelLoaderFactory
+import com.bumptech.glide.load.model.MultiModelLoaderFactory
+import com.bumptech.glide.request.target.Target
+import unics.okdroid.kit.imageloader.configs
+import java.io.InputStream
+
+/**
+ * 按[unics.okdroid.kit.imageloader.Configs.cacheKeyStrategy]解析网络地址：
+ * 实际请求解析后的地址，磁盘缓存（原始数据与转换后的数据）使用解析后的缓存key。
+ * 未设置策略时不处理，由Glide默认的加载器处理。
+ */
+internal class CacheKeyUrlLoader(
+    private val urlLoader: ModelLoader<GlideUrl, InputStream>
+) : ModelLoader<String, InputStream> {
+
+    override fun handles(model: String): Boolean {
+        return configs.cacheKeyStrategy?.handles(model) == true
+    }
+
+    override fun buildLoadData(
+        model: String,
+        width: Int,
+        height: Int,
+        options: Options
+    ): ModelLoader.LoadData<InputStream>? {
+        val strategy = configs.cacheKeyStrategy ?: return null
+        val key = strategy.resolve(
+            model,
+            if (width == Target.SIZE_ORIGINAL) 0 else width,
+            if (height == Target.SIZE_ORIGINAL) 0 else height
+        )
+        return urlLoader.buildLoadData(KeyedGlideUrl(key.url, key.cacheKey), width, height, options)
+    }
+
+    /**
+     * 缓存key与请求地址不同的[GlideUrl]：equals、hashCode与磁盘缓存key均基于[cacheKey]
+     */
+    private class KeyedGlideUrl(url: String, private val cacheKey: String) : GlideUrl(url) {
+
+        override fun getCacheKey(): String {
+            return cacheKey
+        }
+    }
+
+    class Factory : ModelLoaderFactory<String, InputStream> {
+
+        override fun build(multiFactory: MultiModelLoaderFactory): ModelLoader<String, InputStream> {
+            return CacheKeyUrlLoader(multiFactory.build(GlideUrl::class.java, InputStream::class.java))
+        }
+
+        override fun teardown() {
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package unics.okdroid.kit.imageloader.glide
+
+import android.graphics.drawable.Drawable
+import android.os.Build
+import android.widget.ImageView
+import com.bumptech.glide.RequestBuilder
+import com.bumptech.glide.load.DecodeFormat
+import com.bumptech.glide.request.target.DrawableImageViewTarget
+import com.bumptech.glide.request.target.SizeReadyCallback
+import unics.okdroid.kit.imageloader.BitmapFormat
+import unics.okdroid.kit.imageloader.DecodePolicy
+import kotlin.math.sqrt
+
+/**
+ * 设置解码参数：解码策略为View或者请求的策略，未设置时为全局策略
+ * @param width 目标宽度，未知时为0
+ * @param height 目标高度，未知时为0
+ * @param softwareOnly 是否只能使用软件Bitmap
+ */
+internal fun RequestBuilder<Drawable>.applyDecodePolicy(
+    policy: DecodePolicy,
+    width: Int,
+    height: Int,
+    softwareOnly: Boolean = false
+): RequestBuilder<Drawable> {
+    val hardware = policy.allowHardware && !softwareOnly && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+    val format = when (policy.format) {
+        BitmapFormat.ARGB_8888 -> DecodeFormat.PREFER_ARGB_8888
+        BitmapFormat.RGB_565 -> DecodeFormat.PREFER_RGB_565
+        BitmapFormat.AUTO -> {
+            val isLarge = width > 0 && height > 0 && width.toLong() * height > policy.thumbnailPixels
+            if (hardware && isLarge) DecodeFormat.PREFER_ARGB_8888 else DecodeFormat.PREFER_RGB_565
+        }
+    }
+    format(format)
+    //允许时由Glide根据转换是否需要读取像素决定是否使用硬件Bitmap
+    if (!hardware)
+        disallowHardwareConfig()
+    //限制请求尺寸而不是只限制解码尺寸：解码与转换（例如CENTER_CROP）都按限制后的尺寸进行，转换不会再放大回目标尺寸
+    capPixels(width, height, policy.maxPixels)?.let {
+        override(it.first, it.second)
+    }
+    return this
+}
+
+/**
+ * 目标尺寸超过[maxPixels]时等比缩小后的尺寸
+ * @return 不需要限制或者尺寸未知时返回null
+ */
+internal fun capPixels(width: Int, height: Int, maxPixels: Int): Pair<Int, Int>? {
+    if (maxPixels <= 0 || width <= 0 || height <= 0 || width.toLong() * height <= maxPixels)
+        return null
+    val scale = sqrt(maxPixels.toDouble() / (width.toLong() * height))
+    return Pair((width * scale).toInt().coerceAtLeast(1), (height * scale).toInt().coerceAtLeast(1))
+}
+
+/**
+ * 加载前无法确定尺寸的View使用的Target：在[getSize]确定尺寸后按[maxPixels]等比缩小请求尺寸
+ */
+internal class PixelCapImageViewTarget(
+    view: ImageView,
+    private val maxPixels: Int
+) : DrawableImageViewTarget(view) {
+
+    //Glide通过原始回调注销，需要找到对应的包装回调
+    private var callback: SizeReadyCallback? = null
+    private var cappedCallback: SizeReadyCallback? = null
+
+    override fun getSize(cb: SizeReadyCallback) {
+        val capped = SizeReadyCallback { width, height ->
+            val size = capPixels(width, height, maxPixels)
+            if (size == null) {
+                cb.onSizeReady(width, height)
+            } else {
+                cb.onSizeReady(size.first, size.second)
+            }
+        }
+        callback = cb
+        cappedCallback = capped
+        super.getSize(capped)
+    }
+
+    override fun removeCallback(cb: SizeReadyCallback) {
+        if (cb === callback) {
+            cappedCallback?.let {
+                super.removeCallback(it)
+            }
+            callback = null
+            cappedCallback = null
+        } else {
+            super.removeCallback(cb)
+        }
+    }
+}
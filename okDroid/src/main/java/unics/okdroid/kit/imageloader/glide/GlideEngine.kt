@@ -2,18 +2,36 @@ package unics.okdroid.kit.imageloader.glide
 
 import android.content.Context
 import android.graphics.drawable.Drawable
+import android.util.SparseArray
 import android.view.View
 import android.widget.ImageView
 import unics.okdroid.kit.imageloader.Engine
 import unics.okdroid.kit.imageloader.logw
 import com.bumptech.glide.Glide
+import com.bumptech.glide.Priority
+import com.bumptech.glide.RequestBuilder
 import com.bumptech.glide.RequestManager
-import com.bumptech.glide.load.resource.bitmap.CenterCrop
-import com.bumptech.glide.load.resource.bitmap.CircleCrop
-import com.bumptech.glide.load.resource.bitmap.RoundedCorners
+import com.bumptech.glide.load.DataSource
+import com.bumptech.glide.load.engine.GlideException
+import com.bumptech.glide.request.RequestListener
 import com.bumptech.glide.request.RequestOptions
+import com.bumptech.glide.request.target.CustomTarget
+import com.bumptech.glide.request.target.Target
+import com.bumptech.glide.load.resource.drawable.DrawableTransitionOptions
+import com.bumptech.glide.request.transition.DrawableCrossFadeFactory
+import com.bumptech.glide.request.transition.Transition
+import unics.okdroid.kit.imageloader.FetchCallback
+import unics.okdroid.kit.imageloader.FetchHandle
+import unics.okdroid.kit.imageloader.ImageRequest
+import unics.okdroid.kit.imageloader.LoadPriority
+import unics.okdroid.kit.imageloader.PreloadCallback
+import unics.okdroid.kit.imageloader.Shape
+import unics.okdroid.kit.imageloader.configs
 import unics.okdroid.kit.imageloader.debuggable
+import unics.okdroid.kit.imageloader.decodePolicy
 import unics.okdroid.kit.imageloader.defaultImageCornerSizeAIL
+import unics.okdroid.kit.imageloader.resolveTargetHeight
+import unics.okdroid.kit.imageloader.resolveTargetWidth
 
 /**
  * Created by Lucio on 2021/11/4.
@@ -27,9 +45,25 @@ import unics.okdroid.kit.imageloader.defaultImageCornerSizeAIL
  */
 object GlideEngine : Engine {
 
-    private val centerCrop = CenterCrop()
+    /**
+     * 渐进加载时缩略图的尺寸比例
+     */
+    const val THUMBNAIL_SIZE_MULTIPLIER = 0.1f
+
+    /**
+     * 渐进加载时原图淡入的时长
+     */
+    const val PROGRESSIVE_CROSS_FADE_MILLIS = 200
+
+    //淡入过程中缩略图保持绘制，原图淡入时不会露出背景
+    private val progressiveTransition = DrawableTransitionOptions.with(
+        DrawableCrossFadeFactory.Builder(PROGRESSIVE_CROSS_FADE_MILLIS)
+            .setCrossFadeEnabled(true)
+            .build()
+    )
 
-    private val circleCrop = CircleCrop()
+    //非默认圆角半径的请求参数：半径 -> 参数
+    private val roundedRequestOptions = SparseArray<RequestOptions>()
 
     private var isDefaultRequestOptionInit = false
 
@@ -68,10 +102,33 @@ object GlideEngine : Engine {
         isDefaultRequestOptionInit = true
         defaultRequestOptions = options
         defaultCircleRequestOptions = options.clone().run {
-            transform(centerCrop, circleCrop)
+            transform(GlideTransformations.circle)
         }
         defaultRoundedRequestOptions = options.clone().run {
-            transform(centerCrop, RoundedCorners(defaultImageCornerSizeAIL))
+            transform(GlideTransformations.rounded(defaultImageCornerSizeAIL))
+        }
+        synchronized(roundedRequestOptions) {
+            roundedRequestOptions.clear()
+        }
+    }
+
+    /**
+     * 指定圆角半径的请求参数：按半径缓存，相同半径使用同一个实例
+     * @param radius 圆角半径，单位px
+     */
+    fun roundedRequestOptions(radius: Int): RequestOptions {
+        ensureDefaultRequestOptions()
+        if (radius == defaultImageCornerSizeAIL)
+            return defaultRoundedRequestOptions
+        synchronized(roundedRequestOptions) {
+            var result = roundedRequestOptions.get(radius)
+            if (result == null) {
+                result = defaultRequestOptions.clone()
+                    .transform(GlideTransformations.rounded(radius))
+                    .autoClone()
+                roundedRequestOptions.put(radius, result)
+            }
+            return result
         }
     }
 
@@ -111,6 +168,17 @@ object GlideEngine : Engine {
      */
     override fun clearMemoryCache(ctx: Context) {
         Glide.get(ctx).clearMemory()
+        PlaceholderCache.clear()
+    }
+
+    /**
+     * 按[level]缩减不由Glide管理的缓存（占位图缓存）。
+     * Glide自身已经注册了系统的onTrimMemory回调，内存缓存与Bitmap复用池由Glide缩减
+     * （通过[GlideEngineModule]配置后按[unics.okdroid.kit.imageloader.Configs.memoryTrimPolicy]分级缩减），
+     * 这里再次缩减会导致同一次回调缩减两次
+     */
+    override fun trimMemory(ctx: Context, level: Int) {
+        PlaceholderCache.trimMemory(level)
     }
 
     /**
@@ -120,11 +188,114 @@ object GlideEngine : Engine {
         Glide.with(view).clear(view)
     }
 
+    /**
+     * 获取图片但不设置到View上：通过[CustomTarget]加载指定尺寸的图片，
+     * 转换与[load]、[loadRounded]、[loadCircle]保持一致，保证与直接加载使用相同的缓存key
+     */
+    override fun fetch(ctx: Context, request: ImageRequest, callback: FetchCallback): FetchHandle {
+        val manager = Glide.with(ctx)
+        val builder = requestOf(manager, request)
+        val target = object : CustomTarget<Drawable>(request.width, request.height) {
+
+            override fun onResourceReady(resource: Drawable, transition: Transition<in Drawable>?) {
+                callback.onReady(resource)
+            }
+
+            override fun onLoadFailed(errorDrawable: Drawable?) {
+                callback.onFailed(null)
+            }
+
+            override fun onLoadCleared(placeholder: Drawable?) {
+                callback.onCleared()
+            }
+        }
+        GlideMetrics.listener(null, request.width, request.height)?.let {
+            builder.addListener(it)
+        }
+        builder.into(target)
+        return FetchHandle {
+            manager.clear(target)
+        }
+    }
+
+    /**
+     * 预加载图片到缓存：加载完成后Glide会自动释放资源到内存缓存中
+     */
+    override fun preload(
+        ctx: Context,
+        request: ImageRequest,
+        priority: LoadPriority,
+        callback: PreloadCallback?
+    ): FetchHandle {
+        val manager = Glide.with(ctx)
+        val builder = requestOf(manager, request)
+            .priority(
+                when (priority) {
+                    LoadPriority.IMMEDIATE -> Priority.IMMEDIATE
+                    LoadPriority.HIGH -> Priority.HIGH
+                    LoadPriority.NORMAL -> Priority.NORMAL
+                    LoadPriority.LOW -> Priority.LOW
+                }
+            )
+        if (callback != null) {
+            builder.addListener(object : RequestListener<Drawable> {
+
+                override fun onLoadFailed(
+                    e: GlideException?,
+                    model: Any?,
+                    target: Target<Drawable>?,
+                    isFirstResource: Boolean
+                ): Boolean {
+                    callback.onComplete(false)
+                    return false
+                }
+
+                override fun onResourceReady(
+                    resource: Drawable?,
+                    model: Any?,
+                    target: Target<Drawable>?,
+                    dataSource: DataSource?,
+                    isFirstResource: Boolean
+                ): Boolean {
+                    callback.onComplete(true)
+                    return false
+                }
+            })
+        }
+        GlideMetrics.listener(null, request.width, request.height)?.let {
+            builder.addListener(it)
+        }
+        val target = builder.preload(request.width, request.height)
+        return FetchHandle {
+            manager.clear(target)
+        }
+    }
+
+    /**
+     * 根据[request]创建请求，转换与[load]、[loadRounded]、[loadCircle]保持一致，保证与直接加载使用相同的缓存key
+     */
+    private fun requestOf(manager: RequestManager, request: ImageRequest): RequestBuilder<Drawable> {
+        ensureDefaultRequestOptions()
+        val builder = manager.load(request.model)
+        when (request.shape) {
+            Shape.ORIGINAL -> {
+                builder.apply(defaultRequestOptions)
+                    .optionalScaleTypeTransform(request.scaleType)
+            }
+            Shape.ROUNDED -> {
+                builder.apply(roundedRequestOptions(request.radius))
+            }
+            Shape.CIRCLE -> builder.apply(defaultCircleRequestOptions)
+        }
+        //在形状对应的默认参数之后设置，避免被默认参数中的解码格式覆盖（与intoView一致，保证缓存key相同）
+        return builder.applyDecodePolicy(request.decodePolicy ?: configs.decodePolicy, request.width, request.height)
+    }
+
     override fun load(imageView: ImageView, url: String?) {
         Request(imageView)
             .load(url)
             .optionalCenterCrop()
-            .into(imageView)
+            .intoView(imageView)
     }
 
     /**
@@ -160,14 +331,14 @@ object GlideEngine : Engine {
 //                }
 //
 //            })
-            .into(imageView)
+            .intoView(imageView)
     }
 
     override fun load(imageView: ImageView, url: String?, placeHolder: Drawable?) {
         Request(imageView)
             .load(url)
             .placeholder(placeHolder)
-            .into(imageView)
+            .intoView(imageView)
     }
 
     override fun load(imageView: ImageView, url: String?, placeHolder: Int, errorPlaceHolder: Int) {
@@ -175,7 +346,7 @@ object GlideEngine : Engine {
             .load(url)
             .placeholder(placeHolder)
             .error(errorPlaceHolder)
-            .into(imageView)
+            .intoView(imageView)
     }
 
     override fun load(
@@ -188,7 +359,7 @@ object GlideEngine : Engine {
             .load(url)
             .placeholder(placeHolder)
             .error(errorPlaceHolder)
-            .into(imageView)
+            .intoView(imageView)
     }
 
     override fun load(
@@ -201,7 +372,7 @@ object GlideEngine : Engine {
             .load(url)
             .placeholder(placeHolder)
             .error(errorPlaceHolder)
-            .into(imageView)
+            .intoView(imageView)
     }
 
     override fun load(
@@ -214,7 +385,57 @@ object GlideEngine : Engine {
             .load(url)
             .placeholder(placeHolder)
             .error(errorPlaceHolder)
-            .into(imageView)
+            .intoView(imageView)
+    }
+
+    /**
+     * 渐进加载：
+     * - 缩略图请求使用[Priority.IMMEDIATE]；[thumbnailUrl]为空时只从缓存读取原图数据，
+     * 按[THUMBNAIL_SIZE_MULTIPLIER]缩小解码（通过inSampleSize采样，耗时远小于完整解码），缓存中没有时继续显示占位图；
+     * - 原图请求使用[Priority.LOW]，不与列表等场景的加载抢占线程，完成后在同一个Target上淡入替换缩略图；
+     * 缩略图只有原图1%左右的像素，在请求清除时回到Bitmap复用池。
+     */
+    override fun loadProgressive(
+        imageView: ImageView,
+        url: String?,
+        thumbnailUrl: String?,
+        placeHolder: Int
+    ) {
+        progressiveRequest(imageView, url, thumbnailUrl)
+            .placeholder(placeHolder)
+            .intoView(imageView)
+    }
+
+    override fun loadProgressive(
+        imageView: ImageView,
+        url: String?,
+        thumbnailUrl: String?,
+        placeHolder: Drawable?
+    ) {
+        progressiveRequest(imageView, url, thumbnailUrl)
+            .placeholder(placeHolder)
+            .intoView(imageView)
+    }
+
+    private fun progressiveRequest(
+        imageView: ImageView,
+        url: String?,
+        thumbnailUrl: String?
+    ): RequestBuilder<Drawable> {
+        val thumbnail = if (thumbnailUrl.isNullOrEmpty()) {
+            Request(imageView)
+                .load(url)
+                .sizeMultiplier(THUMBNAIL_SIZE_MULTIPLIER)
+                .onlyRetrieveFromCache(true)
+        } else {
+            Request(imageView)
+                .load(thumbnailUrl)
+        }
+        return Request(imageView)
+            .load(url)
+            .priority(Priority.LOW)
+            .thumbnail(thumbnail.priority(Priority.IMMEDIATE))
+            .transition(progressiveTransition)
     }
 
     /**
@@ -224,12 +445,12 @@ object GlideEngine : Engine {
         if (roundingRadius == defaultImageCornerSizeAIL) {
             RoundedRequest(imageView)
                 .load(url)
-                .into(imageView)
+                .intoView(imageView)
         } else {
             Request(imageView)
                 .load(url)
-                .transform(centerCrop, RoundedCorners(roundingRadius))
-                .into(imageView)
+                .apply(roundedRequestOptions(roundingRadius))
+                .intoView(imageView)
         }
     }
 
@@ -243,13 +464,13 @@ object GlideEngine : Engine {
             RoundedRequest(imageView)
                 .load(url)
                 .placeholder(placeHolder)
-                .into(imageView)
+                .intoView(imageView)
         } else {
             Request(imageView)
                 .load(url)
                 .placeholder(placeHolder)
-                .transform(centerCrop, RoundedCorners(roundingRadius))
-                .into(imageView)
+                .apply(roundedRequestOptions(roundingRadius))
+                .intoView(imageView)
         }
     }
 
@@ -263,13 +484,13 @@ object GlideEngine : Engine {
             RoundedRequest(imageView)
                 .load(url)
                 .placeholder(placeHolder)
-                .into(imageView)
+                .intoView(imageView)
         } else {
             Request(imageView)
                 .load(url)
                 .placeholder(placeHolder)
-                .transform(centerCrop, RoundedCorners(roundingRadius))
-                .into(imageView)
+                .apply(roundedRequestOptions(roundingRadius))
+                .intoView(imageView)
         }
     }
 
@@ -285,14 +506,14 @@ object GlideEngine : Engine {
                 .load(url)
                 .placeholder(placeHolder)
                 .error(error)
-                .into(imageView)
+                .intoView(imageView)
         } else {
             Request(imageView)
                 .load(url)
                 .placeholder(placeHolder)
                 .error(error)
-                .transform(centerCrop, RoundedCorners(roundingRadius))
-                .into(imageView)
+                .apply(roundedRequestOptions(roundingRadius))
+                .intoView(imageView)
         }
     }
 
@@ -300,7 +521,8 @@ object GlideEngine : Engine {
      * 加载圆角图片
      * @param applyPlaceHolder  不建议使用该功能；请参考文档"Glide注意点"
      * 圆角转换是否应用到占位图，如果占位图本身是圆角，则设置该属性为false，避免重新转换占位图。
-     * 该属性为true时加载占位图有一定的时间消耗可能会略微引起界面闪烁
+     * 该属性为true时，View尺寸已知则使用[PlaceholderCache]中预先渲染的占位图（每个尺寸只渲染一次），
+     * 否则通过thumbnail转换占位图，加载占位图有一定的时间消耗可能会略微引起界面闪烁
      */
     override fun loadRounded(
         imageView: ImageView,
@@ -313,14 +535,24 @@ object GlideEngine : Engine {
             if (debuggable) {
                 logw("在应用中包含必须在运行时做变换才能使用的图片资源是很不划算的，建议使用圆角占位图")
             }
+            val shaped = shapedPlaceholder(imageView, placeHolder, Shape.ROUNDED, roundingRadius)
+            if (shaped != null) {
+                Request(imageView)
+                    .load(url)
+                    .placeholder(shaped)
+                    .apply(roundedRequestOptions(roundingRadius))
+                    .intoView(imageView)
+                return
+            }
+            //尺寸未知时无法预先渲染，仍通过thumbnail转换占位图
             val placeHolderLoader = Glide.with(imageView)
                 .load(placeHolder)
-                .transform(centerCrop, RoundedCorners(roundingRadius))
+                .transform(GlideTransformations.rounded(roundingRadius))
             Request(imageView)
                 .load(url)
                 .thumbnail(placeHolderLoader)
-                .transform(centerCrop, RoundedCorners(roundingRadius))
-                .into(imageView)
+                .apply(roundedRequestOptions(roundingRadius))
+                .intoView(imageView)
         } else {
             loadRounded(imageView, url, roundingRadius, placeHolder)
         }
@@ -337,14 +569,24 @@ object GlideEngine : Engine {
             if (debuggable) {
                 logw("在应用中包含必须在运行时做变换才能使用的图片资源是很不划算的，建议使用圆角占位图")
             }
+            val shaped = shapedPlaceholder(imageView, placeHolder, Shape.ROUNDED, roundingRadius)
+            if (shaped != null) {
+                Request(imageView)
+                    .load(url)
+                    .placeholder(shaped)
+                    .apply(roundedRequestOptions(roundingRadius))
+                    .intoView(imageView)
+                return
+            }
+            //尺寸未知时无法预先渲染，仍通过thumbnail转换占位图
             val placeHolderLoader = Glide.with(imageView)
                 .load(placeHolder)
-                .transform(centerCrop, RoundedCorners(roundingRadius))
+                .transform(GlideTransformations.rounded(roundingRadius))
             Request(imageView)
                 .load(url)
                 .thumbnail(placeHolderLoader)
-                .transform(centerCrop, RoundedCorners(roundingRadius))
-                .into(imageView)
+                .apply(roundedRequestOptions(roundingRadius))
+                .intoView(imageView)
         } else {
             loadRounded(imageView, url, roundingRadius, placeHolder)
         }
@@ -353,27 +595,28 @@ object GlideEngine : Engine {
     override fun loadCircle(imageView: ImageView, url: String?) {
         CircleRequest(imageView)
             .load(url)
-            .into(imageView)
+            .intoView(imageView)
     }
 
     override fun loadCircle(imageView: ImageView, url: String?, placeHolder: Int) {
         CircleRequest(imageView)
             .load(url)
             .placeholder(placeHolder)
-            .into(imageView)
+            .intoView(imageView)
     }
 
     override fun loadCircle(imageView: ImageView, url: String?, placeHolder: Drawable?) {
         CircleRequest(imageView)
             .load(url)
             .placeholder(placeHolder)
-            .into(imageView)
+            .intoView(imageView)
     }
 
     /**
      * 加载圆形图片
      * @param applyPlaceHolder 圆形转换是否应用到占位图，如果占位图本身是圆形，则设置该属性为false，避免重新转换占位图。
-     * 该属性为true时加载占位图有一定的时间消耗可能会略微引起界面闪烁
+     * 该属性为true时，View尺寸已知则使用[PlaceholderCache]中预先渲染的占位图（每个尺寸只渲染一次），
+     * 否则通过thumbnail转换占位图，加载占位图有一定的时间消耗可能会略微引起界面闪烁
      */
     override fun loadCircle(
         imageView: ImageView,
@@ -385,13 +628,22 @@ object GlideEngine : Engine {
             if (debuggable) {
                 logw("在应用中包含必须在运行时做变换才能使用的图片资源是很不划算的，建议使用圆形占位图")
             }
+            val shaped = shapedPlaceholder(imageView, placeHolder, Shape.CIRCLE, 0)
+            if (shaped != null) {
+                CircleRequest(imageView)
+                    .load(url)
+                    .placeholder(shaped)
+                    .intoView(imageView)
+                return
+            }
+            //尺寸未知时无法预先渲染，仍通过thumbnail转换占位图
             val placeHolderLoader = Glide.with(imageView)
                 .load(placeHolder)
-                .transform(centerCrop, circleCrop)
+                .transform(GlideTransformations.circle)
             CircleRequest(imageView)
                 .load(url)
                 .thumbnail(placeHolderLoader)
-                .into(imageView)
+                .intoView(imageView)
         } else {
             loadCircle(imageView, url, placeHolder)
         }
@@ -407,15 +659,77 @@ object GlideEngine : Engine {
             if (debuggable) {
                 logw("在应用中包含必须在运行时做变换才能使用的图片资源是很不划算的，建议使用圆形占位图")
             }
+            val shaped = shapedPlaceholder(imageView, placeHolder, Shape.CIRCLE, 0)
+            if (shaped != null) {
+                CircleRequest(imageView)
+                    .load(url)
+                    .placeholder(shaped)
+                    .intoView(imageView)
+                return
+            }
+            //尺寸未知时无法预先渲染，仍通过thumbnail转换占位图
             val placeHolderLoader = Glide.with(imageView)
                 .load(placeHolder)
-                .transform(centerCrop, circleCrop)
+                .transform(GlideTransformations.circle)
             CircleRequest(imageView)
                 .load(url)
                 .thumbnail(placeHolderLoader)
-                .into(imageView)
+                .intoView(imageView)
         } else {
             loadCircle(imageView, url, placeHolder)
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * 获取预先渲染的形状占位图
+     * @param placeHolder 资源id或者Drawable
+     * @return View尺寸未知时返回null
+     */
+    private fun shapedPlaceholder(imageView: ImageView, placeHolder: Any, shape: Shape, radius: Int): Drawable? {
+        val width = imageView.resolveTargetWidth()
+        val height = imageView.resolveTargetHeight()
+        if (width <= 0 || height <= 0)
+            return null
+        return when (placeHolder) {
+            is Int -> PlaceholderCache.get(imageView.context, placeHolder, shape, radius, width, height)
+            is Drawable -> PlaceholderCache.get(imageView.context, placeHolder, shape, radius, width, height)
+            else -> null
+        }
+    }
+
+    /**
+     * 按解码策略加载到[imageView]，并上报加载统计
+     */
+    private fun RequestBuilder<Drawable>.intoView(imageView: ImageView) {
+        val width = imageView.resolveTargetWidth()
+        val height = imageView.resolveTargetHeight()
+        val policy = imageView.decodePolicy ?: configs.decodePolicy
+        applyDecodePolicy(policy, width, height, imageView.layerType == View.LAYER_TYPE_SOFTWARE)
+        GlideMetrics.listener(imageView)?.let {
+            addListener(it)
+        }
+        if (policy.maxPixels > 0 && (width <= 0 || height <= 0)) {
+            //尺寸未知时无法提前限制请求尺寸，由Target在确定尺寸后限制；需要自行应用into(ImageView)根据scaleType自动添加的转换
+            if (!isTransformationSet && isTransformationAllowed)
+                optionalScaleTypeTransform(imageView.scaleType)
+            into(PixelCapImageViewTarget(imageView, policy.maxPixels))
+        } else {
+            into(imageView)
+        }
+    }
+
+    /**
+     * 与into(ImageView)根据scaleType自动应用的转换一致
+     */
+    private fun RequestBuilder<Drawable>.optionalScaleTypeTransform(scaleType: ImageView.ScaleType?): RequestBuilder<Drawable> {
+        return when (scaleType) {
+            ImageView.ScaleType.CENTER_CROP -> optionalCenterCrop()
+            ImageView.ScaleType.CENTER_INSIDE,
+            ImageView.ScaleType.FIT_XY -> optionalCenterInside()
+            ImageView.ScaleType.FIT_CENTER,
+            ImageView.ScaleType.FIT_START,
+            ImageView.ScaleType.FIT_END -> optionalFitCenter()
+            else -> this
+        }
+    }
+}
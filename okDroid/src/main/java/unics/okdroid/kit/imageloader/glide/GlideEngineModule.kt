@@ -1,12 +1,17 @@
 package unics.okdroid.kit.imageloader.glide
 
 import android.content.Context
+import com.bumptech.glide.Glide
 import com.bumptech.glide.GlideBuilder
-import com.bumptech.glide.load.engine.cache.ExternalPreferredCacheDiskCacheFactory
+import com.bumptech.glide.Registry
+import com.bumptech.glide.load.engine.bitmap_recycle.BitmapPoolAdapter
+import com.bumptech.glide.load.engine.cache.DiskCache
+import com.bumptech.glide.load.engine.cache.MemorySizeCalculator
+import com.bumptech.glide.load.model.GlideUrl
 import com.bumptech.glide.module.AppGlideModule
 import com.bumptech.glide.request.RequestOptions
-import unics.okdroid.kit.imageloader.DEFAULT_DISK_CACHE_SIZE
 import unics.okdroid.kit.imageloader.configs
+import java.io.InputStream
 
 /**
  * Created by Lucio on 2021/11/4.
@@ -27,9 +32,38 @@ abstract class GlideEngineModule : AppGlideModule() {
 
     override fun applyOptions(context: Context, builder: GlideBuilder) {
         applyDiskCacheConfig(context, builder)
+        applyMemoryCacheConfig(context, builder)
         applyDefaultRequestOptionsConfig(context, builder)
     }
 
+    override fun registerComponents(context: Context, glide: Glide, registry: Registry) {
+        super.registerComponents(context, glide, registry)
+        applyCacheKeyConfig(context, glide, registry)
+        applyBandwidthMeterConfig(context, glide, registry)
+        applyDecodeConfig(context, glide, registry)
+    }
+
+    /**
+     * 注册按[unics.okdroid.kit.imageloader.Configs.cacheKeyStrategy]解析缓存key的网络地址加载器
+     */
+    protected open fun applyCacheKeyConfig(context: Context, glide: Glide, registry: Registry) {
+        registry.prepend(String::class.java, InputStream::class.java, CacheKeyUrlLoader.Factory())
+    }
+
+    /**
+     * 注册测量网络图片下载带宽的加载器，见[unics.okdroid.kit.imageloader.BandwidthMeter]
+     */
+    protected open fun applyBandwidthMeterConfig(context: Context, glide: Glide, registry: Registry) {
+        registry.prepend(GlideUrl::class.java, InputStream::class.java, MeteredUrlLoader.Factory())
+    }
+
+    /**
+     * 注册Bitmap解码器：统计解码耗时，见[unics.okdroid.kit.imageloader.ImageMetrics]
+     */
+    protected open fun applyDecodeConfig(context: Context, glide: Glide, registry: Registry) {
+        GlideMetrics.registerDecoders(context, glide, registry)
+    }
+
     protected open fun applyDefaultRequestOptionsConfig(context: Context, builder: GlideBuilder) {
         builder.setDefaultRequestOptions(createDefaultRequestOptions().also {
             GlideEngine.setDefaultRequestOptions(it)
@@ -40,17 +74,33 @@ abstract class GlideEngineModule : AppGlideModule() {
         return RequestOptionsAIL()
     }
 
+    /**
+     * disk缓存大小由[unics.okdroid.kit.imageloader.Configs.diskCacheSizePolicy]根据可用空间计算，
+     * 并在使用过程中定期调整
+     */
     protected open fun applyDiskCacheConfig(context: Context, builder: GlideBuilder) {
         val dirName = configs.diskCacheFolderName
-        if (dirName.isNullOrEmpty()) {
-            builder.setDiskCache(ExternalPreferredCacheDiskCacheFactory(context))
-        } else {
-            builder.setDiskCache(
-                ExternalPreferredCacheDiskCacheFactory(
-                    context, dirName,
-                    DEFAULT_DISK_CACHE_SIZE
-                )
+        builder.setDiskCache(
+            AdaptiveDiskCacheFactory(
+                context,
+                if (dirName.isNullOrEmpty()) DiskCache.Factory.DEFAULT_DISK_CACHE_DIR else dirName,
+                configs.diskCacheSizePolicy
             )
+        )
+    }
+
+    /**
+     * 内存缓存与Bitmap复用池使用Glide计算的默认大小，
+     * 内存不足时按[unics.okdroid.kit.imageloader.Configs.memoryTrimPolicy]分级缩减
+     */
+    protected open fun applyMemoryCacheConfig(context: Context, builder: GlideBuilder) {
+        val calculator = MemorySizeCalculator.Builder(context).build()
+        builder.setMemoryCache(TrimmableResourceCache(calculator.memoryCacheSize.toLong()))
+        val poolSize = calculator.bitmapPoolSize
+        if (poolSize > 0) {
+            builder.setBitmapPool(TrimmableBitmapPool(poolSize.toLong()))
+        } else {
+            builder.setBitmapPool(BitmapPoolAdapter())
         }
     }
 
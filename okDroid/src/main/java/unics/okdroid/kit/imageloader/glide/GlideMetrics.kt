@@ -0,0 +1,233 @@
+package unics.okdroid.kit.imageloader.glide
+
+import android.content.Context
+import android.graphics.Bitmap
+import android.graphics.drawable.BitmapDrawable
+import android.graphics.drawable.Drawable
+import android.os.Build
+import android.os.SystemClock
+import android.widget.ImageView
+import com.bumptech.glide.Glide
+import com.bumptech.glide.Registry
+import com.bumptech.glide.load.DataSource
+import com.bumptech.glide.load.Options
+import com.bumptech.glide.load.ResourceDecoder
+import com.bumptech.glide.load.Transformation
+import com.bumptech.glide.load.engine.GlideException
+import com.bumptech.glide.load.engine.Resource
+import com.bumptech.glide.load.resource.bitmap.ByteBufferBitmapDecoder
+import com.bumptech.glide.load.resource.bitmap.Downsampler
+import com.bumptech.glide.load.resource.bitmap.StreamBitmapDecoder
+import com.bumptech.glide.request.RequestListener
+import com.bumptech.glide.request.target.Target
+import unics.okdroid.kit.imageloader.ImageDataSource
+import unics.okdroid.kit.imageloader.ImageMetrics
+import unics.okdroid.kit.imageloader.ImageStage
+import unics.okdroid.kit.imageloader.resolveTargetHeight
+import unics.okdroid.kit.imageloader.resolveTargetWidth
+import java.io.InputStream
+import java.nio.ByteBuffer
+import java.security.MessageDigest
+import java.util.WeakHashMap
+
+/**
+ * Glide加载统计：上报到[ImageMetrics]
+ *
+ * - 解码、转换耗时：通过[registerDecoders]注册的解码器与[GlideTransformations]中的转换测量；
+ * - 结果Bitmap在解码、转换时记录耗时，加载完成时根据Bitmap找到对应的记录，得到单次请求的各阶段耗时；
+ * - Glide没有公开数据获取的开始时间，解码开始之前的耗时对网络/原始数据缓存记为[ImageStage.FETCH]（包含排队时间），
+ * 其他来源记为[ImageStage.QUEUE]。
+ */
+internal object GlideMetrics {
+
+    //结果Bitmap -> 解码、转换耗时；Bitmap被回收或复用后自动移除
+    private val traces = WeakHashMap<Bitmap, Trace>()
+
+    private class Trace(val decodeStart: Long, val decodeMillis: Long, var transformMillis: Long)
+
+    /**
+     * 注册测量耗时的解码器，优先于Glide默认的Bitmap解码器
+     */
+    fun registerDecoders(context: Context, glide: Glide, registry: Registry) {
+        val downsampler = Downsampler(
+            registry.imageHeaderParsers,
+            context.resources.displayMetrics,
+            glide.bitmapPool,
+            glide.arrayPool
+        )
+        registry.prepend(
+            Registry.BUCKET_BITMAP,
+            ByteBuffer::class.java,
+            Bitmap::class.java,
+            DecodeProbe(ByteBufferBitmapDecoder(downsampler))
+        )
+        registry.prepend(
+            Registry.BUCKET_BITMAP,
+            InputStream::class.java,
+            Bitmap::class.java,
+            DecodeProbe(StreamBitmapDecoder(downsampler, glide.arrayPool))
+        )
+    }
+
+    fun onDecoded(bitmap: Bitmap, start: Long, millis: Long) {
+        ImageMetrics.recordStage(ImageStage.DECODE, millis)
+        synchronized(traces) {
+            traces[bitmap] = Trace(start, millis, 0)
+        }
+    }
+
+    fun onTransformed(source: Bitmap, result: Bitmap, millis: Long) {
+        ImageMetrics.recordStage(ImageStage.TRANSFORM, millis)
+        synchronized(traces) {
+            val trace = (if (source === result) traces[source] else traces.remove(source)) ?: return
+            trace.transformMillis += millis
+            traces[result] = trace
+        }
+    }
+
+    private fun take(bitmap: Bitmap): Trace? {
+        synchronized(traces) {
+            return traces.remove(bitmap)
+        }
+    }
+
+    /**
+     * 创建请求监听，记录单次请求
+     * @param view 显示的View，用于判断解码尺寸是否过大
+     * @param width 请求的宽度，[view]为空时使用
+     * @param height 请求的高度，[view]为空时使用
+     */
+    fun listener(view: ImageView?, width: Int = 0, height: Int = 0): RequestListener<Drawable>? {
+        if (!ImageMetrics.isEnabled)
+            return null
+        return MetricsListener(SystemClock.uptimeMillis(), view, width, height)
+    }
+
+    private class MetricsListener(
+        private val start: Long,
+        private val view: ImageView?,
+        private val width: Int,
+        private val height: Int
+    ) : RequestListener<Drawable> {
+
+        override fun onLoadFailed(
+            e: GlideException?,
+            model: Any?,
+            target: Target<Drawable>?,
+            isFirstResource: Boolean
+        ): Boolean {
+            ImageMetrics.recordFailure()
+            if (ImageMetrics.traceHandler != null) {
+                ImageMetrics.trace("failed: $model ${e?.message}")
+            }
+            return false
+        }
+
+        override fun onResourceReady(
+            resource: Drawable?,
+            model: Any?,
+            target: Target<Drawable>?,
+            dataSource: DataSource?,
+            isFirstResource: Boolean
+        ): Boolean {
+            val now = SystemClock.uptimeMillis()
+            val total = now - start
+            val source = dataSource.toImageDataSource()
+            ImageMetrics.recordStage(ImageStage.TOTAL, total)
+
+            val bitmap = (resource as? BitmapDrawable)?.bitmap
+            val trace = if (bitmap == null || source == ImageDataSource.MEMORY_CACHE) null else take(bitmap)
+            if (trace != null) {
+                val waiting = trace.decodeStart - start
+                val stage = if (source == ImageDataSource.REMOTE || source == ImageDataSource.DATA_DISK_CACHE)
+                    ImageStage.FETCH else ImageStage.QUEUE
+                ImageMetrics.recordStage(stage, waiting)
+            }
+
+            val viewWidth = view?.resolveTargetWidth() ?: width
+            val viewHeight = view?.resolveTargetHeight() ?: height
+            val bytes: Long
+            val decodedWidth: Int
+            val decodedHeight: Int
+            if (bitmap != null) {
+                bytes = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) bitmap.allocationByteCount.toLong() else bitmap.byteCount.toLong()
+                decodedWidth = bitmap.width
+                decodedHeight = bitmap.height
+            } else {
+                bytes = 0
+                decodedWidth = resource?.intrinsicWidth ?: 0
+                decodedHeight = resource?.intrinsicHeight ?: 0
+            }
+            ImageMetrics.recordResult(source, bytes, decodedWidth, decodedHeight, viewWidth, viewHeight)
+            if (ImageMetrics.traceHandler != null) {
+                ImageMetrics.trace(
+                    "ready: $model source=$source total=${total}ms decode=${trace?.decodeMillis ?: -1}ms " +
+                            "transform=${trace?.transformMillis ?: -1}ms size=${decodedWidth}x$decodedHeight view=${viewWidth}x$viewHeight"
+                )
+            }
+            return false
+        }
+    }
+
+    private fun DataSource?.toImageDataSource(): ImageDataSource {
+        return when (this) {
+            DataSource.MEMORY_CACHE -> ImageDataSource.MEMORY_CACHE
+            DataSource.RESOURCE_DISK_CACHE -> ImageDataSource.RESOURCE_DISK_CACHE
+            DataSource.DATA_DISK_CACHE -> ImageDataSource.DATA_DISK_CACHE
+            DataSource.REMOTE -> ImageDataSource.REMOTE
+            else -> ImageDataSource.LOCAL
+        }
+    }
+
+    /**
+     * 测量解码耗时的解码器
+     */
+    private class DecodeProbe<T : Any>(private val delegate: ResourceDecoder<T, Bitmap>) :
+        ResourceDecoder<T, Bitmap> {
+
+        override fun handles(source: T, options: Options): Boolean {
+            return delegate.handles(source, options)
+        }
+
+        override fun decode(source: T, width: Int, height: Int, options: Options): Resource<Bitmap>? {
+            val start = SystemClock.uptimeMillis()
+            val result = delegate.decode(source, width, height, options)
+            if (result != null && ImageMetrics.isEnabled) {
+                onDecoded(result.get(), start, SystemClock.uptimeMillis() - start)
+            }
+            return result
+        }
+    }
+}
+
+/**
+ * 测量转换耗时的转换：缓存key、equals、hashCode与被包装的转换一致，不影响缓存命中
+ */
+internal class TransformProbe(private val delegate: Transformation<Bitmap>) : Transformation<Bitmap> {
+
+    override fun transform(
+        context: Context,
+        resource: Resource<Bitmap>,
+        outWidth: Int,
+        outHeight: Int
+    ): Resource<Bitmap> {
+        if (!ImageMetrics.isEnabled)
+            return delegate.transform(context, resource, outWidth, outHeight)
+        val start = SystemClock.uptimeMillis()
+        val result = delegate.transform(context, resource, outWidth, outHeight)
+        GlideMetrics.onTransformed(resource.get(), result.get(), SystemClock.uptimeMillis() - start)
+        return result
+    }
+
+    override fun updateDiskCacheKey(messageDigest: MessageDigest) {
+        delegate.updateDiskCacheKey(messageDigest)
+    }
+
+    override fun equals(other: Any?): Boolean {
+        return other is TransformProbe && other.delegate == delegate
+    }
+
+    override fun hashCode(): Int {
+        return delegate.hashCode()
+    }
+}
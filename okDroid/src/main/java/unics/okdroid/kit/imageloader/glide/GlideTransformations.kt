@@ -0,0 +1,44 @@
+package unics.okdroid.kit.imageloader.glide
+
+import android.graphics.Bitmap
+import android.util.SparseArray
+import com.bumptech.glide.load.MultiTransformation
+import com.bumptech.glide.load.Transformation
+import com.bumptech.glide.load.resource.bitmap.CenterCrop
+import com.bumptech.glide.load.resource.bitmap.CircleCrop
+import com.bumptech.glide.load.resource.bitmap.RoundedCorners
+
+/**
+ * 共享的转换实例：按形状与圆角半径缓存，避免每次加载都创建新的转换对象；
+ * 相同形状与半径始终使用同一个实例，memory/disk缓存的key也保持稳定。
+ * 转换耗时会上报到[unics.okdroid.kit.imageloader.ImageMetrics]。
+ */
+object GlideTransformations {
+
+    @JvmStatic
+    val centerCrop = CenterCrop()
+
+    /**
+     * centerCrop + 圆形
+     */
+    @JvmStatic
+    val circle: Transformation<Bitmap> = TransformProbe(MultiTransformation(centerCrop, CircleCrop()))
+
+    private val rounded = SparseArray<Transformation<Bitmap>>()
+
+    /**
+     * centerCrop + 圆角
+     * @param radius 圆角半径，单位px
+     */
+    @JvmStatic
+    fun rounded(radius: Int): Transformation<Bitmap> {
+        synchronized(rounded) {
+            var result = rounded.get(radius)
+            if (result == null) {
+                result = TransformProbe(MultiTransformation(centerCrop, RoundedCorners(radius)))
+                rounded.put(radius, result)
+            }
+            return result
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package unics.okdroid.kit.imageloader.glide
+
+import android.os.SystemClock
+import com.bumptech.glide.Priority
+import com.bumptech.glide.load.DataSource
+import com.bumptech.glide.load.Options
+import com.bumptech.glide.load.data.DataFetcher
+import com.bumptech.glide.load.model.GlideUrl
+import com.bumptech.glide.load.model.ModelLoader
+import com.bumptech.glide.load.model.ModelLoaderFactory
+import com.bumptech.glide.load.model.MultiModelLoaderFactory
+import unics.okdroid.kit.imageloader.BandwidthMeter
+import java.io.FilterInputStream
+import java.io.InputStream
+
+/**
+ * 测量网络图片下载带宽的加载器：包装Glide默认的网络加载器，统计实际读取的字节数与耗时，上报到[BandwidthMeter]
+ */
+internal class MeteredUrlLoader(
+    private val delegate: ModelLoader<GlideUrl, InputStream>
+) : ModelLoader<GlideUrl, InputStream> {
+
+    override fun handles(model: GlideUrl): Boolean {
+        return delegate.handles(model)
+    }
+
+    override fun buildLoadData(
+        model: GlideUrl,
+        width: Int,
+        height: Int,
+        options: Options
+    ): ModelLoader.LoadData<InputStream>? {
+        val data = delegate.buildLoadData(model, width, height, options) ?: return null
+        return ModelLoader.LoadData(data.sourceKey, data.alternateKeys, MeteredFetcher(data.fetcher))
+    }
+
+    private class MeteredFetcher(private val delegate: DataFetcher<InputStream>) : DataFetcher<InputStream> {
+
+        override fun loadData(priority: Priority, callback: DataFetcher.DataCallback<in InputStream>) {
+            val start = SystemClock.elapsedRealtime()
+            delegate.loadData(priority, object : DataFetcher.DataCallback<InputStream> {
+
+                override fun onDataReady(data: InputStream?) {
+                    callback.onDataReady(data?.let { MeteredInputStream(it, start) })
+                }
+
+                override fun onLoadFailed(e: Exception) {
+                    callback.onLoadFailed(e)
+                }
+            })
+        }
+
+        override fun cleanup() {
+            delegate.cleanup()
+        }
+
+        override fun cancel() {
+            delegate.cancel()
+        }
+
+        override fun getDataClass(): Class<InputStream> {
+            return delegate.dataClass
+        }
+
+        override fun getDataSource(): DataSource {
+            return delegate.dataSource
+        }
+    }
+
+    /**
+     * 读取结束（或者关闭）时上报读取的字节数与从发起请求开始的耗时
+     */
+    private class MeteredInputStream(input: InputStream, private val start: Long) : FilterInputStream(input) {
+
+        private var bytes = 0L
+        private var isReported = false
+
+        override fun read(): Int {
+            val result = super.read()
+            if (result < 0) report() else bytes++
+            return result
+        }
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            val result = super.read(b, off, len)
+            if (result < 0) report() else bytes += result
+            return result
+        }
+
+        override fun skip(n: Long): Long {
+            val result = super.skip(n)
+            bytes += result
+            return result
+        }
+
+        override fun close() {
+            report()
+            super.close()
+        }
+
+        private fun report() {
+            if (isReported)
+                return
+            isReported = true
+            BandwidthMeter.record(bytes, SystemClock.elapsedRealtime() - start)
+        }
+    }
+
+    class Factory : ModelLoaderFactory<GlideUrl, InputStream> {
+
+        override fun build(multiFactory: MultiModelLoaderFactory): ModelLoader<GlideUrl, InputStream> {
+            //构建时会跳过正在构建的加载器，得到的是Glide默认（或其他集成库注册）的网络加载器
+            return MeteredUrlLoader(multiFactory.build(GlideUrl::class.java, InputStream::class.java))
+        }
+
+        override fun teardown() {
+        }
+    }
+}
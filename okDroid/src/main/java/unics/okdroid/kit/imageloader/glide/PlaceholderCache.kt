@@ -0,0 +1,147 @@
+package unics.okdroid.kit.imageloader.glide
+
+import android.content.ComponentCallbacks2
+import android.content.Context
+import android.graphics.Bitmap
+import android.graphics.BitmapShader
+import android.graphics.Canvas
+import android.graphics.Paint
+import android.graphics.RectF
+import android.graphics.Shader
+import android.graphics.drawable.BitmapDrawable
+import android.graphics.drawable.Drawable
+import android.util.LruCache
+import androidx.annotation.DrawableRes
+import androidx.annotation.MainThread
+import androidx.appcompat.content.res.AppCompatResources
+import unics.okdroid.kit.imageloader.Shape
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * 预先渲染的形状占位图：同一个占位图在同一尺寸、形状下只渲染一次，
+ * 替代每次加载都在占位图上执行一次Glide转换（会产生一次额外的异步加载，引起闪烁）。
+ *
+ * 渲染方式与[GlideTransformations]一致：centerCrop后裁剪为圆角或圆形。
+ */
+object PlaceholderCache {
+
+    private val cache = object : LruCache<Key, Bitmap>(
+        min(Runtime.getRuntime().maxMemory() / 64, MAX_SIZE).toInt()
+    ) {
+        override fun sizeOf(key: Key, value: Bitmap): Int {
+            return value.rowBytes * value.height
+        }
+    }
+
+    /**
+     * @param source 资源id或者[Drawable.ConstantState]（不同Drawable实例共享同一个ConstantState时可以命中）
+     */
+    private data class Key(
+        val source: Any,
+        val shape: Shape,
+        val radius: Int,
+        val width: Int,
+        val height: Int
+    )
+
+    /**
+     * 获取渲染后的占位图
+     * @param width 目标宽度，单位px
+     * @param height 目标高度，单位px
+     * @return 资源不存在时返回null
+     */
+    @MainThread
+    fun get(
+        ctx: Context,
+        @DrawableRes resId: Int,
+        shape: Shape,
+        radius: Int,
+        width: Int,
+        height: Int
+    ): Drawable? {
+        val key = Key(resId, shape, radius, width, height)
+        val bitmap = cache.get(key) ?: run {
+            val drawable = AppCompatResources.getDrawable(ctx, resId) ?: return null
+            render(drawable, shape, radius, width, height).also {
+                cache.put(key, it)
+            }
+        }
+        return BitmapDrawable(ctx.resources, bitmap)
+    }
+
+    /**
+     * 获取渲染后的占位图；没有[Drawable.ConstantState]的Drawable无法识别是否相同，每次都会重新渲染
+     * @see get
+     */
+    @MainThread
+    fun get(
+        ctx: Context,
+        drawable: Drawable,
+        shape: Shape,
+        radius: Int,
+        width: Int,
+        height: Int
+    ): Drawable {
+        val state = drawable.constantState
+            ?: return BitmapDrawable(ctx.resources, render(drawable, shape, radius, width, height))
+        val key = Key(state, shape, radius, width, height)
+        val bitmap = cache.get(key) ?: render(state.newDrawable(ctx.resources), shape, radius, width, height).also {
+            cache.put(key, it)
+        }
+        return BitmapDrawable(ctx.resources, bitmap)
+    }
+
+    fun clear() {
+        cache.evictAll()
+    }
+
+    /**
+     * 响应系统内存回调
+     * @see ComponentCallbacks2.onTrimMemory
+     */
+    fun trimMemory(level: Int) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            clear()
+        }
+    }
+
+    private fun render(drawable: Drawable, shape: Shape, radius: Int, width: Int, height: Int): Bitmap {
+        //centerCrop绘制到目标尺寸
+        val source = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
+        val iw = drawable.intrinsicWidth
+        val ih = drawable.intrinsicHeight
+        val oldBounds = drawable.copyBounds()
+        if (iw > 0 && ih > 0) {
+            val scale = max(width.toFloat() / iw, height.toFloat() / ih)
+            val dw = (iw * scale).toInt()
+            val dh = (ih * scale).toInt()
+            val left = (width - dw) / 2
+            val top = (height - dh) / 2
+            drawable.setBounds(left, top, left + dw, top + dh)
+        } else {
+            drawable.setBounds(0, 0, width, height)
+        }
+        drawable.draw(Canvas(source))
+        drawable.bounds = oldBounds
+        if (shape == Shape.ORIGINAL)
+            return source
+
+        val result = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
+        val paint = Paint(Paint.ANTI_ALIAS_FLAG or Paint.FILTER_BITMAP_FLAG).apply {
+            shader = BitmapShader(source, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP)
+        }
+        val canvas = Canvas(result)
+        if (shape == Shape.CIRCLE) {
+            canvas.drawCircle(width / 2f, height / 2f, min(width, height) / 2f, paint)
+        } else {
+            val r = radius.toFloat()
+            canvas.drawRoundRect(RectF(0f, 0f, width.toFloat(), height.toFloat()), r, r, paint)
+        }
+        source.recycle()
+        return result
+    }
+
+    //最大缓存：4M
+    private const val MAX_SIZE = 4L * 1024 * 1024
+}
@@ -0,0 +1,50 @@
+package unics.okdroid.kit.imageloader.glide
+
+import com.bumptech.glide.load.engine.bitmap_recycle.LruBitmapPool
+import com.bumptech.glide.load.engine.cache.LruResourceCache
+import unics.okdroid.kit.imageloader.MemoryTrimPolicy
+import unics.okdroid.kit.imageloader.configs
+
+/**
+ * 按[MemoryTrimPolicy]分级缩减的内存缓存：Glide默认在后台时直接清空内存缓存，
+ * 这里按级别保留最近使用的部分，回到前台时不需要重新加载常用的图片
+ */
+class TrimmableResourceCache(size: Long) : LruResourceCache(size) {
+
+    override fun trimMemory(level: Int) {
+        val fraction = configs.memoryTrimPolicy.retainFraction(level)
+        when {
+            fraction <= 0f -> clearMemory()
+            fraction < 1f -> trimToSize((maxSize * fraction).toLong())
+        }
+    }
+}
+
+/**
+ * 按[MemoryTrimPolicy]分级缩减的Bitmap复用池
+ */
+class TrimmableBitmapPool(size: Long) : LruBitmapPool(size) {
+
+    //当前的大小倍数，由Glide.setMemoryCategory设置
+    private var sizeMultiplier = 1f
+
+    @Synchronized
+    override fun setSizeMultiplier(sizeMultiplier: Float) {
+        this.sizeMultiplier = sizeMultiplier
+        super.setSizeMultiplier(sizeMultiplier)
+    }
+
+    @Synchronized
+    override fun trimMemory(level: Int) {
+        val fraction = configs.memoryTrimPolicy.retainFraction(level)
+        when {
+            fraction <= 0f -> clearMemory()
+            fraction < 1f -> {
+                //LruBitmapPool只能通过大小倍数缩减：先缩小再恢复容量，缩减后的空间可以重新使用
+                val multiplier = sizeMultiplier
+                super.setSizeMultiplier(multiplier * fraction)
+                super.setSizeMultiplier(multiplier)
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package unics.okdroid.kit.truetime;
+
+import android.os.SystemClock;
+
+/**
+ * 时钟校准：保存最近若干次同步的采样，使用加权最小二乘拟合出时间偏移与本机时钟漂移，
+ * 并据此估算误差以及下一次同步的间隔
+ * <p>
+ * 采样点：x = {@link SystemClock#elapsedRealtime()}，y = 真实时间 - x；
+ * 拟合 y = offset + drift * (x - x<sub>last</sub>)，权重为 1 / uncertainty²
+ */
+final class ClockDiscipline {
+
+    //默认的漂移不确定度（只有一个采样时使用），100ppm
+    static final double DEFAULT_DRIFT_UNCERTAINTY = 100e-6;
+
+    //允许的最大漂移，超过该值认为采样异常，500ppm
+    private static final double MAX_DRIFT = 500e-6;
+
+    //默认同步误差：同步器无法提供误差时使用
+    static final long DEFAULT_UNCERTAINTY = 1000;
+
+    static final long MIN_INTERVAL = 60 * 1000;
+
+    static final long MAX_INTERVAL = 6 * 60 * 60 * 1000;
+
+    /**
+     * 拟合结果，不可变
+     */
+    static final class Estimate {
+        /**
+         * 参考点的elapsedRealtime
+         */
+        final long refElapsed;
+        /**
+         * 参考点对应的真实时间
+         */
+        final long refTimeMillis;
+        /**
+         * 本机时钟漂移（比例），真实时间 = refTimeMillis + duration * (1 + drift)
+         */
+        final double drift;
+        /**
+         * 参考点处的误差（毫秒）
+         */
+        final double baseError;
+        /**
+         * 漂移的不确定度（比例）
+         */
+        final double driftUncertainty;
+
+        Estimate(long refElapsed, long refTimeMillis, double drift, double baseError, double driftUncertainty) {
+            this.refElapsed = refElapsed;
+            this.refTimeMillis = refTimeMillis;
+            this.drift = drift;
+            this.baseError = baseError;
+            this.driftUncertainty = driftUncertainty;
+        }
+
+        long timeAt(long elapsed) {
+            long duration = elapsed - refElapsed;
+            return refTimeMillis + duration + (long) (duration * drift);
+        }
+
+        long errorBoundAt(long elapsed) {
+            long duration = Math.abs(elapsed - refElapsed);
+            return (long) Math.ceil(baseError + duration * driftUncertainty);
+        }
+    }
+
+    private final long[] mElapsed;
+    private final double[] mOffset;
+    private final double[] mUncertainty;
+    private int mSize;
+    //下一个写入位置
+    private int mNext;
+
+    ClockDiscipline(int capacity) {
+        mElapsed = new long[capacity];
+        mOffset = new double[capacity];
+        mUncertainty = new double[capacity];
+    }
+
+    /**
+     * 添加一个采样并重新拟合
+     *
+     * @param elapsed     采样时的elapsedRealtime
+     * @param timeMillis  采样得到的真实时间
+     * @param uncertainty 采样误差，毫秒
+     */
+    synchronized Estimate addSample(long elapsed, long timeMillis, long uncertainty) {
+        mElapsed[mNext] = elapsed;
+        mOffset[mNext] = timeMillis - elapsed;
+        mUncertainty[mNext] = Math.max(1, uncertainty);
+        mNext = (mNext + 1) % mElapsed.length;
+        mSize = Math.min(mSize + 1, mElapsed.length);
+        return fit(elapsed);
+    }
+
+    /**
+     * 清空采样：例如设备重启后采样不再有效
+     */
+    synchronized void reset() {
+        mSize = 0;
+        mNext = 0;
+    }
+
+    private Estimate fit(long refElapsed) {
+        double sw = 0, swx = 0, swy = 0;
+        for (int i = 0; i < mSize; i++) {
+            double w = weight(i);
+            double x = mElapsed[i] - refElapsed;
+            sw += w;
+            swx += w * x;
+            swy += w * mOffset[i];
+        }
+        double meanX = swx / sw;
+        double meanY = swy / sw;
+        double sxx = 0, sxy = 0;
+        for (int i = 0; i < mSize; i++) {
+            double w = weight(i);
+            double dx = mElapsed[i] - refElapsed - meanX;
+            sxx += w * dx * dx;
+            sxy += w * dx * (mOffset[i] - meanY);
+        }
+
+        double drift;
+        double driftUncertainty;
+        double baseError;
+        //采样跨度过小（1秒内）时无法估算漂移
+        if (mSize < 2 || sxx <= 0 || spanOf() < 1000) {
+            drift = 0;
+            driftUncertainty = DEFAULT_DRIFT_UNCERTAINTY;
+            baseError = minUncertainty();
+            return new Estimate(refElapsed, refElapsed + Math.round(latestOffset()), drift, baseError, driftUncertainty);
+        }
+        drift = sxy / sxx;
+        //残差的卡方值用于放大不确定度：采样误差被低估时，拟合误差会更大
+        double chi2 = 0;
+        for (int i = 0; i < mSize; i++) {
+            double x = mElapsed[i] - refElapsed;
+            double residual = mOffset[i] - (meanY + drift * (x - meanX));
+            chi2 += weight(i) * residual * residual;
+        }
+        double scale = mSize > 2 ? Math.max(1, Math.sqrt(chi2 / (mSize - 2))) : 1;
+        driftUncertainty = scale * Math.sqrt(1 / sxx);
+        baseError = scale * Math.sqrt(1 / sw + meanX * meanX / sxx);
+        if (Math.abs(drift) > MAX_DRIFT) {
+            drift = Math.signum(drift) * MAX_DRIFT;
+            driftUncertainty = Math.max(driftUncertainty, MAX_DRIFT);
+        }
+        double offset = meanY + drift * (0 - meanX);
+        return new Estimate(refElapsed, refElapsed + Math.round(offset), drift, baseError, driftUncertainty);
+    }
+
+    /**
+     * 根据估算结果计算下一次同步的间隔：误差增长到targetError所需的时间
+     */
+    static long nextInterval(Estimate estimate, long targetError) {
+        double remaining = targetError - estimate.baseError;
+        if (remaining <= 0 || estimate.driftUncertainty <= 0) {
+            return MIN_INTERVAL;
+        }
+        double interval = remaining / estimate.driftUncertainty;
+        return (long) Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL, interval));
+    }
+
+    private double weight(int i) {
+        return 1 / (mUncertainty[i] * mUncertainty[i]);
+    }
+
+    private long spanOf() {
+        long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+        for (int i = 0; i < mSize; i++) {
+            min = Math.min(min, mElapsed[i]);
+            max = Math.max(max, mElapsed[i]);
+        }
+        return max - min;
+    }
+
+    private double minUncertainty() {
+        double min = Double.MAX_VALUE;
+        for (int i = 0; i < mSize; i++) {
+            min = Math.min(min, mUncertainty[i]);
+        }
+        return min;
+    }
+
+    private double latestOffset() {
+        return mOffset[(mNext - 1 + mElapsed.length) % mElapsed.length];
+    }
+}
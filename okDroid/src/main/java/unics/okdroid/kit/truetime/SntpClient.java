@@ -38,16 +38,16 @@ class SntpClient {
     private static final boolean DBG = true;
 
     private static final int REFERENCE_TIME_OFFSET = 16;
-    private static final int ORIGINATE_TIME_OFFSET = 24;
-    private static final int RECEIVE_TIME_OFFSET = 32;
-    private static final int TRANSMIT_TIME_OFFSET = 40;
-    private static final int NTP_PACKET_SIZE = 48;
+    static final int ORIGINATE_TIME_OFFSET = 24;
+    static final int RECEIVE_TIME_OFFSET = 32;
+    static final int TRANSMIT_TIME_OFFSET = 40;
+    static final int NTP_PACKET_SIZE = 48;
 
-    private static final int NTP_PORT = 123;
-    private static final int NTP_MODE_CLIENT = 3;
+    static final int NTP_PORT = 123;
+    static final int NTP_MODE_CLIENT = 3;
     private static final int NTP_MODE_SERVER = 4;
     private static final int NTP_MODE_BROADCAST = 5;
-    private static final int NTP_VERSION = 3;
+    static final int NTP_VERSION = 3;
 
     private static final int NTP_LEAP_NOSYNC = 3;
     private static final int NTP_STRATUM_DEATH = 0;
@@ -66,7 +66,7 @@ class SntpClient {
     // round trip time in milliseconds
     private long mRoundTripTime;
 
-    private static class InvalidServerReplyException extends Exception {
+    static class InvalidServerReplyException extends Exception {
         public InvalidServerReplyException(String message) {
             super(message);
         }
@@ -80,6 +80,18 @@ class SntpClient {
      * @return true if the transaction was successful.
      */
     public boolean requestTime(String host, int timeout) {
+        return requestTime(host, NTP_PORT, timeout);
+    }
+
+    /**
+     * Sends an SNTP request to the given host and port and processes the response.
+     *
+     * @param host    host name of the server.
+     * @param port    udp port of the server.
+     * @param timeout network timeout in milliseconds.
+     * @return true if the transaction was successful.
+     */
+    public boolean requestTime(String host, int port, int timeout) {
         DatagramSocket socket = null;
         InetAddress address = null;
         try {
@@ -87,7 +99,7 @@ class SntpClient {
             socket = new DatagramSocket();
             socket.setSoTimeout(timeout);
             byte[] buffer = new byte[NTP_PACKET_SIZE];
-            DatagramPacket request = new DatagramPacket(buffer, buffer.length, address, NTP_PORT);
+            DatagramPacket request = new DatagramPacket(buffer, buffer.length, address, port);
 
             // set mode = 3 (client) and version = 3
             // mode is in low 3 bits of first byte
@@ -182,7 +194,7 @@ class SntpClient {
         return mRoundTripTime;
     }
 
-    private static void checkValidServerReply(
+    static void checkValidServerReply(
             byte leap, byte mode, int stratum, long transmitTime)
             throws InvalidServerReplyException {
         if (leap == NTP_LEAP_NOSYNC) {
@@ -202,7 +214,7 @@ class SntpClient {
     /**
      * Reads an unsigned 32 bit big endian number from the given offset in the buffer.
      */
-    private long read32(byte[] buffer, int offset) {
+    static long read32(byte[] buffer, int offset) {
         byte b0 = buffer[offset];
         byte b1 = buffer[offset + 1];
         byte b2 = buffer[offset + 2];
@@ -221,7 +233,7 @@ class SntpClient {
      * Reads the NTP time stamp at the given offset in the buffer and returns
      * it as a system time (milliseconds since January 1, 1970).
      */
-    private long readTimeStamp(byte[] buffer, int offset) {
+    static long readTimeStamp(byte[] buffer, int offset) {
         long seconds = read32(buffer, offset);
         long fraction = read32(buffer, offset + 4);
         // Special case: zero means zero.
@@ -235,7 +247,7 @@ class SntpClient {
      * Writes system time (milliseconds since January 1, 1970) as an NTP time stamp
      * at the given offset in the buffer.
      */
-    private void writeTimeStamp(byte[] buffer, int offset, long time) {
+    static void writeTimeStamp(byte[] buffer, int offset, long time) {
         // Special case: zero means zero.
         if (time == 0) {
             Arrays.fill(buffer, offset, offset + 8, (byte) 0x00);
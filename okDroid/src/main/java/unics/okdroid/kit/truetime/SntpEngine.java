@@ -0,0 +1,365 @@
+package unics.okdroid.kit.truetime;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基于{@link DatagramChannel}与{@link Selector}的非阻塞SNTP引擎：
+ * 所有请求共用一个通道，由一个IO线程多路复用；收发使用预分配的48字节缓冲区；已解析的服务器地址会被缓存。
+ * 没有待处理的请求时IO线程阻塞在{@link Selector#select()}上，不会产生任何唤醒。
+ *
+ * @see SntpClient 阻塞式实现
+ */
+final class SntpEngine {
+
+    private static final String TAG = "SntpEngine";
+
+    //dns缓存有效期
+    private static final long DNS_CACHE_TTL = 10 * 60 * 1000;
+
+    //dns解析的线程数与最多排队的解析请求数
+    private static final int RESOLVER_THREADS = 2;
+    private static final int RESOLVER_QUEUE_SIZE = 16;
+
+    private static class SingleToneHolder {
+        private static final SntpEngine INSTANCE = new SntpEngine();
+    }
+
+    static SntpEngine getInstance() {
+        return SingleToneHolder.INSTANCE;
+    }
+
+    /**
+     * 一次批量查询，由调用线程等待
+     */
+    private static final class Batch {
+        private final int mTotal;
+        private final int mAcceptCount;
+        private int mAccepted;
+        private int mFailed;
+        private SntpResult mBest;
+
+        Batch(int total, int acceptCount) {
+            mTotal = total;
+            mAcceptCount = acceptCount;
+        }
+
+        synchronized void onResult(SntpResult result) {
+            mAccepted++;
+            if (mBest == null || result.roundTripTime < mBest.roundTripTime) {
+                mBest = result;
+            }
+            if (isDone())
+                notifyAll();
+        }
+
+        synchronized void onFailed() {
+            mFailed++;
+            if (isDone())
+                notifyAll();
+        }
+
+        private boolean isDone() {
+            return mAccepted >= mAcceptCount || mAccepted + mFailed >= mTotal;
+        }
+
+        synchronized SntpResult await(long deadline) throws InterruptedException {
+            long remaining;
+            while (!isDone() && (remaining = deadline - SystemClock.elapsedRealtime()) > 0) {
+                wait(remaining);
+            }
+            return mBest;
+        }
+    }
+
+    /**
+     * 单个待发送/等待回复的请求
+     */
+    private static final class Query {
+        final Batch batch;
+        final InetSocketAddress address;
+        final long deadline;
+        long requestTime;
+        long requestTicks;
+
+        Query(Batch batch, InetSocketAddress address, long deadline) {
+            this.batch = batch;
+            this.address = address;
+            this.deadline = deadline;
+        }
+    }
+
+    private static final class CachedAddress {
+        final InetAddress address;
+        final long expiredAt;
+
+        CachedAddress(InetAddress address, long expiredAt) {
+            this.address = address;
+            this.expiredAt = expiredAt;
+        }
+    }
+
+    private final ConcurrentLinkedQueue<Query> mSubmitted = new ConcurrentLinkedQueue<>();
+    private final ConcurrentHashMap<String, CachedAddress> mDnsCache = new ConcurrentHashMap<>();
+    //key为请求中的transmit时间戳（服务器会原样放在originate中返回），仅在IO线程访问
+    private final Map<Long, Query> mPending = new HashMap<>();
+    private final ByteBuffer mSendBuffer = ByteBuffer.allocate(SntpClient.NTP_PACKET_SIZE);
+    private final ByteBuffer mReceiveBuffer = ByteBuffer.allocate(SntpClient.NTP_PACKET_SIZE);
+    //dns解析线程：仅在缓存未命中时使用，线程数与排队数量固定，空闲后线程回收
+    private final ThreadPoolExecutor mResolver = new ThreadPoolExecutor(RESOLVER_THREADS, RESOLVER_THREADS,
+            30, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(RESOLVER_QUEUE_SIZE), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "TrueTime-dns");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private volatile Selector mSelector;
+    private DatagramChannel mChannel;
+    private Thread mIoThread;
+
+    private SntpEngine() {
+        mResolver.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 同时向多个服务器发起查询，直到收到acceptCount个有效回复、所有请求都已结束或者超时
+     *
+     * @param hosts       服务器集合
+     * @param port        服务端口
+     * @param timeout     超时时间（整个查询过程）
+     * @param acceptCount 收到多少个有效回复后结束等待
+     * @return 往返时间最小的结果，没有有效结果时返回null
+     */
+    @Nullable
+    SntpResult query(String[] hosts, int port, int timeout, int acceptCount) throws InterruptedException {
+        final long deadline = SystemClock.elapsedRealtime() + timeout;
+        final Batch batch = new Batch(hosts.length, acceptCount);
+        ensureStarted();
+        for (String host : hosts) {
+            resolveAndSubmit(host, port, batch, deadline);
+        }
+        mSelector.wakeup();
+        return batch.await(deadline);
+    }
+
+    /**
+     * 清除dns缓存
+     */
+    void clearDnsCache() {
+        mDnsCache.clear();
+    }
+
+    private void resolveAndSubmit(final String host, final int port, final Batch batch, final long deadline) {
+        CachedAddress cached = mDnsCache.get(host);
+        if (cached != null && cached.expiredAt > SystemClock.elapsedRealtime()) {
+            mSubmitted.offer(new Query(batch, new InetSocketAddress(cached.address, port), deadline));
+            return;
+        }
+        Runnable resolve = new Runnable() {
+            @Override
+            public void run() {
+                //排队期间整个查询已经超时，不再解析
+                if (deadline <= SystemClock.elapsedRealtime()) {
+                    batch.onFailed();
+                    return;
+                }
+                try {
+                    InetAddress address = InetAddress.getByName(host);
+                    mDnsCache.put(host, new CachedAddress(address, SystemClock.elapsedRealtime() + DNS_CACHE_TTL));
+                    mSubmitted.offer(new Query(batch, new InetSocketAddress(address, port), deadline));
+                    mSelector.wakeup();
+                } catch (Throwable e) {
+                    Log.e(TAG, "resolve " + host + " failed ,msg: " + e.getMessage());
+                    batch.onFailed();
+                }
+            }
+        };
+        try {
+            mResolver.execute(resolve);
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "resolve " + host + " rejected ,too many pending requests.");
+            batch.onFailed();
+        }
+    }
+
+    private synchronized void ensureStarted() {
+        if (mIoThread != null && mIoThread.isAlive())
+            return;
+        try {
+            mSelector = Selector.open();
+            mChannel = DatagramChannel.open();
+            mChannel.configureBlocking(false);
+            mChannel.socket().bind(null);
+            mChannel.register(mSelector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            closeQuietly();
+            throw new IllegalStateException("open sntp channel failed.", e);
+        }
+        mIoThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "TrueTime-sntp");
+        mIoThread.setDaemon(true);
+        mIoThread.start();
+    }
+
+    private void loop() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                sendSubmitted();
+                long now = SystemClock.elapsedRealtime();
+                expirePending(now);
+                long nearestDeadline = Long.MAX_VALUE;
+                for (Query query : mPending.values()) {
+                    nearestDeadline = Math.min(nearestDeadline, query.deadline);
+                }
+                if (nearestDeadline == Long.MAX_VALUE) {
+                    mSelector.select();
+                } else {
+                    mSelector.select(Math.max(1, nearestDeadline - now));
+                }
+                mSelector.selectedKeys().clear();
+                receiveAll();
+            }
+        } catch (Throwable e) {
+            Log.e(TAG, "sntp io loop exit ,msg: " + e.getMessage());
+        } finally {
+            failAll();
+            closeQuietly();
+        }
+    }
+
+    private void sendSubmitted() {
+        Query query;
+        byte[] buffer = mSendBuffer.array();
+        while ((query = mSubmitted.poll()) != null) {
+            try {
+                mSendBuffer.clear();
+                Arrays.fill(buffer, (byte) 0);
+                // set mode = 3 (client) and version = 3
+                buffer[0] = SntpClient.NTP_MODE_CLIENT | (SntpClient.NTP_VERSION << 3);
+                query.requestTime = System.currentTimeMillis();
+                query.requestTicks = SystemClock.elapsedRealtime();
+                SntpClient.writeTimeStamp(buffer, SntpClient.TRANSMIT_TIME_OFFSET, query.requestTime);
+                long key = readRaw64(buffer, SntpClient.TRANSMIT_TIME_OFFSET);
+                //保证同一时刻的请求key唯一：调整时间戳最低位的随机字节
+                while (mPending.containsKey(key)) {
+                    buffer[SntpClient.TRANSMIT_TIME_OFFSET + 7]++;
+                    key = readRaw64(buffer, SntpClient.TRANSMIT_TIME_OFFSET);
+                }
+                mChannel.send(mSendBuffer, query.address);
+                mPending.put(key, query);
+            } catch (Throwable e) {
+                Log.e(TAG, "send to " + query.address + " failed ,msg: " + e.getMessage());
+                query.batch.onFailed();
+            }
+        }
+    }
+
+    private void receiveAll() throws IOException {
+        byte[] buffer = mReceiveBuffer.array();
+        while (true) {
+            mReceiveBuffer.clear();
+            SocketAddress from = mChannel.receive(mReceiveBuffer);
+            if (from == null)
+                return;
+            final long responseTicks = SystemClock.elapsedRealtime();
+            if (mReceiveBuffer.position() < SntpClient.NTP_PACKET_SIZE)
+                continue;
+            Query query = mPending.remove(readRaw64(buffer, SntpClient.ORIGINATE_TIME_OFFSET));
+            if (query == null)
+                continue;
+            try {
+                query.batch.onResult(parse(buffer, query, responseTicks));
+            } catch (Throwable e) {
+                Log.e(TAG, "Request time from " + from + " failed ,msg: " + e.getMessage());
+                query.batch.onFailed();
+            }
+        }
+    }
+
+    private static SntpResult parse(byte[] buffer, Query query, long responseTicks)
+            throws SntpClient.InvalidServerReplyException {
+        final long responseTime = query.requestTime + (responseTicks - query.requestTicks);
+        final byte leap = (byte) ((buffer[0] >> 6) & 0x3);
+        final byte mode = (byte) (buffer[0] & 0x7);
+        final int stratum = (int) (buffer[1] & 0xff);
+        final long originateTime = SntpClient.readTimeStamp(buffer, SntpClient.ORIGINATE_TIME_OFFSET);
+        final long receiveTime = SntpClient.readTimeStamp(buffer, SntpClient.RECEIVE_TIME_OFFSET);
+        final long transmitTime = SntpClient.readTimeStamp(buffer, SntpClient.TRANSMIT_TIME_OFFSET);
+        SntpClient.checkValidServerReply(leap, mode, stratum, transmitTime);
+
+        long roundTripTime = responseTicks - query.requestTicks - (transmitTime - receiveTime);
+        long clockOffset = ((receiveTime - originateTime) + (transmitTime - responseTime)) / 2;
+        return new SntpResult(responseTime + clockOffset, responseTicks, roundTripTime);
+    }
+
+    private void expirePending(long now) {
+        Iterator<Query> iterator = mPending.values().iterator();
+        while (iterator.hasNext()) {
+            Query query = iterator.next();
+            if (query.deadline <= now) {
+                iterator.remove();
+                query.batch.onFailed();
+            }
+        }
+    }
+
+    private void failAll() {
+        List<Query> queries = new ArrayList<>(mPending.values());
+        mPending.clear();
+        Query query;
+        while ((query = mSubmitted.poll()) != null) {
+            queries.add(query);
+        }
+        for (Query item : queries) {
+            item.batch.onFailed();
+        }
+    }
+
+    private synchronized void closeQuietly() {
+        try {
+            if (mChannel != null)
+                mChannel.close();
+        } catch (IOException ignored) {
+        }
+        try {
+            if (mSelector != null)
+                mSelector.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static long readRaw64(byte[] buffer, int offset) {
+        return (SntpClient.read32(buffer, offset) << 32) | SntpClient.read32(buffer, offset + 4);
+    }
+}
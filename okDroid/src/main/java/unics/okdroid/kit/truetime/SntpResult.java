@@ -0,0 +1,37 @@
+package unics.okdroid.kit.truetime;
+
+import android.os.SystemClock;
+
+/**
+ * 单次SNTP请求的结果
+ */
+final class SntpResult {
+
+    /**
+     * 根据NTP服务器回复计算出的时间
+     */
+    final long ntpTime;
+
+    /**
+     * {@link #ntpTime}对应的{@link SystemClock#elapsedRealtime()}
+     */
+    final long ntpTimeReference;
+
+    /**
+     * 往返时间
+     */
+    final long roundTripTime;
+
+    SntpResult(long ntpTime, long ntpTimeReference, long roundTripTime) {
+        this.ntpTime = ntpTime;
+        this.ntpTimeReference = ntpTimeReference;
+        this.roundTripTime = roundTripTime;
+    }
+
+    /**
+     * 当前时间
+     */
+    long currentTimeMillis() {
+        return ntpTime + SystemClock.elapsedRealtime() - ntpTimeReference;
+    }
+}
@@ -12,11 +12,18 @@ import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.RequiresPermission;
+import androidx.annotation.VisibleForTesting;
 
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 处理设备时间不准的问题
@@ -25,6 +32,8 @@ import java.util.ArrayList;
  * @see #async()
  * @see #currentTimeMillis()
  * @see #currentTimeMillisOrDefault()
+ * @see #startDiscipline(long)
+ * @see #enablePersistence(Context)
  */
 public class TrueTime {
 
@@ -36,6 +45,14 @@ public class TrueTime {
         return SingleToneHolder.INSTANCE;
     }
 
+    /**
+     * 创建独立的实例，同步器与同步状态都不影响{@link #getInstance()}，仅用于测试
+     */
+    @VisibleForTesting
+    public static TrueTime newIsolatedInstance() {
+        return new TrueTime();
+    }
+
     /**
      * 注册监听系统时间发生变化的广播
      * @param context
@@ -52,6 +69,16 @@ public class TrueTime {
         long sync();
     }
 
+    /**
+     * 能够提供同步误差的时间同步器，用于估算时钟漂移与误差范围
+     */
+    public interface UncertaintySynchronizer extends Synchronizer {
+        /**
+         * 最近一次同步结果的误差（毫秒），对于NTP通常为往返时间的一半
+         */
+        long getLastUncertainty();
+    }
+
     /**
      * 同步回调
      */
@@ -61,22 +88,76 @@ public class TrueTime {
 
     private static final int WHAT_NOTIFY_TIME_SYNCED = 1;
 
-    private long mSyncedTimeMillis = 0;
+    //从持久化状态恢复后，延迟多久在后台重新同步
+    private static final long RESTORE_RESYNC_DELAY = 10 * 1000;
+
+    //最多保存的校准采样数
+    private static final int DISCIPLINE_SAMPLE_CAPACITY = 16;
+
+    //异步同步与周期校准使用的线程：同一时间只有一个同步任务，空闲后线程回收，避免每次同步都创建新线程
+    private static final ScheduledThreadPoolExecutor SYNC_EXECUTOR = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "TrueTime-sync");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    static {
+        SYNC_EXECUTOR.setKeepAliveTime(30, TimeUnit.SECONDS);
+        SYNC_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 同步状态：不可变对象，整体通过volatile引用发布；
+     * 读取时只需读取一次引用，不加锁、不分配对象，也不会读到不一致的中间状态；null表示未同步
+     */
+    private volatile ClockDiscipline.Estimate mState;
 
-    private long mElapsedWhenSynced = 0;
+    private final ClockDiscipline mDiscipline = new ClockDiscipline(DISCIPLINE_SAMPLE_CAPACITY);
+
+    private volatile TrueTimeStore mStore;
+
+    //周期校准的目标误差，0表示未开启
+    private volatile long mDisciplineTargetError = 0;
+
+    private ScheduledFuture<?> mDisciplineFuture;
+
+    private final Runnable mDisciplineTask = new Runnable() {
+        @Override
+        public void run() {
+            long delay;
+            try {
+                ClockDiscipline.Estimate estimate = syncAndSample();
+                delay = ClockDiscipline.nextInterval(estimate, mDisciplineTargetError);
+                log(String.format("discipline -> drift=%.2fppm errorBound=%dms next=%ds",
+                        estimate.drift * 1e6, estimate.errorBoundAt(estimate.refElapsed), delay / 1000));
+                notifySynced();
+            } catch (Throwable e) {
+                log("discipline error " + e);
+                delay = ClockDiscipline.MIN_INTERVAL;
+            }
+            synchronized (TrueTime.this) {
+                if (mDisciplineTargetError > 0) {
+                    mDisciplineFuture = SYNC_EXECUTOR.schedule(this, delay, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+    };
 
     //待同步的请求数量
-    private int mSyncingPendingCount = 0;
+    private final AtomicInteger mSyncingPendingCount = new AtomicInteger();
 
-    private Synchronizer mSyncher = new NtpTimeSynchronizer();
+    private volatile Synchronizer mSyncher = new NtpTimeSynchronizer();
 
-    private ArrayList<Callback> mCallbacks;
+    private final CopyOnWriteArrayList<Callback> mCallbacks = new CopyOnWriteArrayList<>();
 
     private final Handler.Callback mHandlerCallback = new Handler.Callback() {
         @Override
         public boolean handleMessage(@NonNull Message msg) {
             if (msg.what == WHAT_NOTIFY_TIME_SYNCED) {
-                if (mCallbacks != null) {
+                if (!mCallbacks.isEmpty()) {
                     long time = currentTimeMillis();
                     for (Callback item : mCallbacks) {
                         item.onTimeSynced(time);
@@ -87,7 +168,7 @@ public class TrueTime {
             return false;
         }
     };
-    private Handler mHandler;
+    private final Handler mHandler = new Handler(Looper.getMainLooper(), mHandlerCallback);
 
     private TrueTime() {
     }
@@ -96,11 +177,11 @@ public class TrueTime {
      * 时间是否进行了同步
      */
     public boolean isSynced() {
-        return mSyncedTimeMillis > 0;
+        return mState != null;
     }
 
     public boolean isSyncing() {
-        return mSyncingPendingCount > 0;
+        return mSyncingPendingCount.get() > 0;
     }
 
     /**
@@ -108,61 +189,161 @@ public class TrueTime {
      */
     void onSystemTimeChanged() {
         log("onSystemTimeChanged --");
+        //同步时间基于elapsedRealtime，不受系统时间变化影响
         if (isSynced()) {
-            setSyncedTimeMillis(syncedCurrentTimeMillis());
-        } else {
-            if (isSyncing()) {
-                log("onSystemTimeChanged -> is syncing,waiting.");
-                mSyncingPendingCount += 1;
-                return;
-            }
-            async();
-            log("onSystemTimeChanged -> async.");
+            return;
         }
+        //正在同步时只记录请求，同步结束后会重新同步一次
+        async();
+        log("onSystemTimeChanged -> async.");
     }
 
     /**
      * 同步时间
      */
     public synchronized long sync() {
-        long mills = syncImpl();
-        mSyncingPendingCount = 0;
-        return mills;
+        return syncImpl();
     }
 
-    public synchronized void async() {
-        if (isSyncing()) {
-            mSyncingPendingCount += 1;
+    public void async() {
+        //已有同步任务时只记录请求数量
+        if (mSyncingPendingCount.getAndIncrement() > 0) {
             return;
         }
-        mSyncingPendingCount += 1;
-        new Thread(new Runnable() {
+        SYNC_EXECUTOR.execute(new Runnable() {
             @Override
             public void run() {
-                syncImpl();
-                mSyncingPendingCount = 0;
-                if (mCallbacks != null) {
-                    if (mHandler == null) {
-                        mHandler = new Handler(Looper.getMainLooper(), mHandlerCallback);
+                while (true) {
+                    try {
+                        syncImpl();
+                        notifySynced();
+                    } catch (Throwable e) {
+                        log("async error " + e);
+                    }
+                    //同步期间没有新的请求时结束；否则合并为一次，重新同步
+                    if (mSyncingPendingCount.compareAndSet(1, 0)) {
+                        return;
                     }
-                    mHandler.sendEmptyMessage(WHAT_NOTIFY_TIME_SYNCED);
+                    mSyncingPendingCount.set(1);
                 }
             }
-        }).start();
+        });
+    }
+
+    /**
+     * 开启同步状态持久化：之后每次同步成功都会保存同步状态，并立即尝试恢复上次保存的状态；
+     * 设备未重启时无需网络请求即可得到准确时间，随后在后台延迟重新同步，从而将同步移出应用启动的关键路径
+     *
+     * @return 是否恢复了上次保存的状态
+     */
+    public boolean enablePersistence(@NonNull Context context) {
+        TrueTimeStore store = new TrueTimeStore(context);
+        ClockDiscipline.Estimate restored = store.restore();
+        ClockDiscipline.Estimate state;
+        synchronized (mDiscipline) {
+            mStore = store;
+            state = mState;
+            if (state == null && restored != null) {
+                mState = restored;
+            }
+        }
+        if (state != null) {
+            store.save(state);
+            return false;
+        }
+        if (restored == null) {
+            return false;
+        }
+        log("enablePersistence -> restored, errorBound=" + getErrorBoundMillis() + "ms");
+        SYNC_EXECUTOR.schedule(new Runnable() {
+            @Override
+            public void run() {
+                async();
+            }
+        }, RESTORE_RESYNC_DELAY, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * 关闭同步状态持久化并清除已保存的状态
+     */
+    public void disablePersistence() {
+        TrueTimeStore store;
+        synchronized (mDiscipline) {
+            store = mStore;
+            mStore = null;
+        }
+        if (store != null) {
+            store.clear();
+        }
+    }
+
+    /**
+     * 开启周期校准：在后台周期性同步时间，根据多次采样拟合本机时钟的漂移，
+     * 并根据漂移自动调整同步间隔，使误差保持在目标范围内
+     *
+     * @param targetErrorMillis 目标误差（毫秒）
+     * @see #getErrorBoundMillis()
+     * @see #stopDiscipline()
+     */
+    public synchronized void startDiscipline(long targetErrorMillis) {
+        if (targetErrorMillis <= 0) {
+            throw new IllegalArgumentException("the target error must be greater than 0.");
+        }
+        mDisciplineTargetError = targetErrorMillis;
+        if (mDisciplineFuture != null) {
+            mDisciplineFuture.cancel(false);
+        }
+        //校准期间保持线程，避免每次等待都重建线程
+        SYNC_EXECUTOR.allowCoreThreadTimeOut(false);
+        mDisciplineFuture = SYNC_EXECUTOR.schedule(mDisciplineTask, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 停止周期校准，已拟合的漂移仍然保留
+     */
+    public synchronized void stopDiscipline() {
+        mDisciplineTargetError = 0;
+        if (mDisciplineFuture != null) {
+            mDisciplineFuture.cancel(false);
+            mDisciplineFuture = null;
+        }
+        SYNC_EXECUTOR.purge();
+        SYNC_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    public synchronized boolean isDisciplining() {
+        return mDisciplineTargetError > 0;
+    }
+
+    /**
+     * 当前时间的估算误差范围（毫秒）：同步时的误差加上本机时钟漂移随时间累积的误差；
+     * 调用方可根据该值决定是否需要重新同步
+     *
+     * @return 误差范围，未同步时返回{@link Long#MAX_VALUE}
+     */
+    public long getErrorBoundMillis() {
+        ClockDiscipline.Estimate state = mState;
+        if (state == null) {
+            return Long.MAX_VALUE;
+        }
+        return state.errorBoundAt(SystemClock.elapsedRealtime());
     }
 
     public long currentTimeMillis() {
-        if (!isSynced()) {
+        ClockDiscipline.Estimate state = mState;
+        if (state == null) {
             throw new IllegalStateException("请先调用sync/async同步时间");
         }
-        return syncedCurrentTimeMillis();
+        return state.timeAt(SystemClock.elapsedRealtime());
     }
 
     public long currentTimeMillisOrDefault() {
-        if (!isSynced()) {
+        ClockDiscipline.Estimate state = mState;
+        if (state == null) {
             return System.currentTimeMillis();
         }
-        return syncedCurrentTimeMillis();
+        return state.timeAt(SystemClock.elapsedRealtime());
     }
 
     public void setSynchronizer(@NonNull Synchronizer synchronizer) {
@@ -170,51 +351,54 @@ public class TrueTime {
     }
 
     public void addCallback(@NonNull Callback callback) {
-        if (mCallbacks == null) {
-            mCallbacks = new ArrayList<>();
-        }
         mCallbacks.add(callback);
     }
 
     public void removeCallback(@NonNull Callback callback) {
-        if (mCallbacks == null)
-            return;
         mCallbacks.remove(callback);
     }
 
     @RequiresPermission(Manifest.permission.SET_TIME)
     public void setDeviceTime(Context context) {
-        if (!isSynced()) {
-            throw new IllegalStateException("请先调用sync/async同步时间");
-        }
-        long time = syncedCurrentTimeMillis();
+        long time = currentTimeMillis();
         SystemClock.setCurrentTimeMillis(time);
         // 更新系统时钟设置,0是不自动更新，1自动更新
 //        Settings.Global.putInt(context.getContentResolver(), Settings.Global.AUTO_TIME, 1);
     }
 
-    private long syncedCurrentTimeMillis() {
-        long elapsed = SystemClock.elapsedRealtime();
-        //时间差
-        long duration = elapsed - mElapsedWhenSynced;
-        return mSyncedTimeMillis + duration;
-    }
-
     private long syncImpl() {
-        long value = mSyncher.sync();
-        setSyncedTimeMillis(value);
-        return value;
+        return syncAndSample().refTimeMillis;
     }
 
-    private void setSyncedTimeMillis(long millis) {
-        setSyncedTimeMillis(millis, SystemClock.elapsedRealtime());
+    /**
+     * 同步时间并将结果作为采样加入校准
+     */
+    private ClockDiscipline.Estimate syncAndSample() {
+        Synchronizer synchronizer = mSyncher;
+        long value = synchronizer.sync();
+        long elapsed = SystemClock.elapsedRealtime();
+        long uncertainty = synchronizer instanceof UncertaintySynchronizer
+                ? ((UncertaintySynchronizer) synchronizer).getLastUncertainty()
+                : ClockDiscipline.DEFAULT_UNCERTAINTY;
+        //采样与发布在同一把锁内完成，保证多个线程同时同步时不会发布较旧的结果
+        ClockDiscipline.Estimate estimate;
+        TrueTimeStore store;
+        synchronized (mDiscipline) {
+            estimate = mDiscipline.addSample(elapsed, value, uncertainty);
+            mState = estimate;
+            store = mStore;
+        }
+        //持久化在锁外进行，不阻塞读取时间的线程；store会丢弃较旧的状态
+        if (store != null) {
+            store.save(estimate);
+        }
+        return estimate;
     }
 
-    private void setSyncedTimeMillis(long millis, long elapsed) {
-        mSyncedTimeMillis = millis;
-        mElapsedWhenSynced = elapsed;
-//        log(String.format("setSyncedTimeMillis -> currentTimeMillis=%d syncedTimeMillis=%d systemTimeUncalibrated=%b",
-//                System.currentTimeMillis(), mSyncedTimeMillis, mSystemTimeUncalibrated));
+    private void notifySynced() {
+        if (!mCallbacks.isEmpty()) {
+            mHandler.sendEmptyMessage(WHAT_NOTIFY_TIME_SYNCED);
+        }
     }
 
     static void log(String message) {
@@ -222,9 +406,10 @@ public class TrueTime {
     }
 
     /**
-     * 基于NTP的时间同步器
+     * 基于NTP的时间同步器：依次向服务器发起请求，直到收到有效结果；
+     * 请求同样由{@link SntpEngine}发送，与{@link RacingNtpTimeSynchronizer}共用通道、IO线程与dns缓存
      */
-    public static class NtpTimeSynchronizer implements Synchronizer {
+    public static class NtpTimeSynchronizer implements UncertaintySynchronizer {
 
         public static String[] NTP_SERVERS = new String[]{
                 "ntp1.aliyun.com",
@@ -256,10 +441,10 @@ public class TrueTime {
                 "3.asia.pool.ntp.org"
         };
 
-        private final SntpClient mClient;
         private final String[] mServers;
         private int mTimeout = 1000;
         private int mMaxRequestCount = 0;
+        private volatile long mLastUncertainty = ClockDiscipline.DEFAULT_UNCERTAINTY;
 
         public NtpTimeSynchronizer() {
             this(NTP_SERVERS, 1000);
@@ -275,7 +460,6 @@ public class TrueTime {
                 throw new IllegalArgumentException("the ntp servers is not allowed to be empty.");
             }
             mServers = ntpServers;
-            mClient = new SntpClient();
             mTimeout = timeout;
             mMaxRequestCount = ntpServers.length;
         }
@@ -284,9 +468,15 @@ public class TrueTime {
         public long sync() {
             for (int i = 0; i < mMaxRequestCount; i++) {
                 try {
-                    if (mClient.requestTime(mServers[i], mTimeout)) {
-                        return mClient.getNtpTime() + SystemClock.elapsedRealtime() - mClient.getNtpTimeReference();
+                    SntpResult result = SntpEngine.getInstance().query(
+                            new String[]{mServers[i]}, SntpClient.NTP_PORT, mTimeout, 1);
+                    if (result != null) {
+                        mLastUncertainty = result.roundTripTime / 2 + 1;
+                        return result.currentTimeMillis();
                     }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("ntp sync time interrupted.", e);
                 } catch (Throwable e) {
                     log("Ntp error " + e);
                     e.printStackTrace();
@@ -294,6 +484,82 @@ public class TrueTime {
             }
             throw new RuntimeException("ntp sync time fail,the result is 0.");
         }
+
+        @Override
+        public long getLastUncertainty() {
+            return mLastUncertainty;
+        }
+    }
+
+    /**
+     * 基于NTP的竞速时间同步器：同时向多个服务器发起请求，在收到足够数量的有效结果（或超时）后，
+     * 选取往返时间（RTT）最小的结果作为同步时间；最坏情况下的耗时为单个超时时间，而不是所有超时时间之和；
+     * 所有请求由{@link SntpEngine}在同一个IO线程上多路复用
+     */
+    public static class RacingNtpTimeSynchronizer implements UncertaintySynchronizer {
+
+        private final String[] mServers;
+        private final int mPort;
+        private final int mTimeout;
+        //同时发起请求的服务器数量
+        private final int mRaceCount;
+        //收到多少个有效结果后结束等待
+        private final int mAcceptCount;
+        private volatile long mLastUncertainty = ClockDiscipline.DEFAULT_UNCERTAINTY;
+
+        public RacingNtpTimeSynchronizer() {
+            this(NtpTimeSynchronizer.NTP_SERVERS, 1000, 5, 3);
+        }
+
+        /**
+         * @param ntpServers  ntp服务器站点集合
+         * @param timeout     整个同步过程的超时时间
+         * @param raceCount   同时发起请求的服务器数量
+         * @param acceptCount 收到多少个有效结果后即结束等待，取其中RTT最小的结果
+         */
+        public RacingNtpTimeSynchronizer(String[] ntpServers, int timeout, int raceCount, int acceptCount) {
+            this(ntpServers, SntpClient.NTP_PORT, timeout, raceCount, acceptCount);
+        }
+
+        /**
+         * @param port ntp服务端口，默认123
+         * @see #RacingNtpTimeSynchronizer(String[], int, int, int)
+         */
+        public RacingNtpTimeSynchronizer(String[] ntpServers, int port, int timeout, int raceCount, int acceptCount) {
+            if (ntpServers == null || ntpServers.length == 0) {
+                throw new IllegalArgumentException("the ntp servers is not allowed to be empty.");
+            }
+            if (raceCount <= 0 || acceptCount <= 0) {
+                throw new IllegalArgumentException("the race count and accept count must be greater than 0.");
+            }
+            mServers = ntpServers;
+            mPort = port;
+            mTimeout = timeout;
+            mRaceCount = Math.min(raceCount, ntpServers.length);
+            mAcceptCount = Math.min(acceptCount, mRaceCount);
+        }
+
+        @Override
+        public long sync() {
+            SntpResult best;
+            try {
+                best = SntpEngine.getInstance().query(Arrays.copyOf(mServers, mRaceCount), mPort, mTimeout, mAcceptCount);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("ntp sync time interrupted.", e);
+            }
+            if (best == null) {
+                throw new RuntimeException("ntp sync time fail,no valid reply within " + mTimeout + "ms.");
+            }
+            log("RacingNtp best roundTripTime=" + best.roundTripTime);
+            mLastUncertainty = best.roundTripTime / 2 + 1;
+            return best.currentTimeMillis();
+        }
+
+        @Override
+        public long getLastUncertainty() {
+            return mLastUncertainty;
+        }
     }
 
     /**
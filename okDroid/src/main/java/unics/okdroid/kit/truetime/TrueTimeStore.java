@@ -0,0 +1,111 @@
+package unics.okdroid.kit.truetime;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.SystemClock;
+import android.provider.Settings;
+
+import androidx.annotation.Nullable;
+
+/**
+ * 同步状态的持久化：保存同步结果以及对应的开机参考（elapsedRealtime、开机次数、开机时间），
+ * 设备未重启时可直接恢复同步状态，无需网络请求
+ */
+final class TrueTimeStore {
+
+    private static final String PREF_NAME = "okdroid_truetime";
+
+    private static final String KEY_REF_ELAPSED = "ref_elapsed";
+    private static final String KEY_REF_TIME = "ref_time";
+    private static final String KEY_DRIFT = "drift";
+    private static final String KEY_BASE_ERROR = "base_error";
+    private static final String KEY_DRIFT_UNCERTAINTY = "drift_uncertainty";
+    private static final String KEY_BOOT_COUNT = "boot_count";
+    private static final String KEY_BOOT_TIME = "boot_time";
+
+    //无法获取开机次数时，通过开机时间判断是否重启的允许误差
+    private static final long BOOT_TIME_TOLERANCE = 2000;
+
+    private final SharedPreferences mPrefs;
+    //开机次数在进程内不会变化，只读取一次，避免每次保存都进行跨进程调用
+    private final int mBootCount;
+    //已保存的最新状态的参考时间，用于丢弃乱序到达的较旧状态
+    private long mSavedRefElapsed = Long.MIN_VALUE;
+
+    TrueTimeStore(Context context) {
+        Context appContext = context.getApplicationContext();
+        mPrefs = appContext.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+        mBootCount = bootCount(appContext);
+    }
+
+    /**
+     * 保存同步状态，不需要持有同步锁；比已保存的状态旧时忽略
+     */
+    synchronized void save(ClockDiscipline.Estimate estimate) {
+        if (estimate.refElapsed < mSavedRefElapsed) {
+            return;
+        }
+        mSavedRefElapsed = estimate.refElapsed;
+        mPrefs.edit()
+                .putLong(KEY_REF_ELAPSED, estimate.refElapsed)
+                .putLong(KEY_REF_TIME, estimate.refTimeMillis)
+                .putLong(KEY_DRIFT, Double.doubleToRawLongBits(estimate.drift))
+                .putLong(KEY_BASE_ERROR, Double.doubleToRawLongBits(estimate.baseError))
+                .putLong(KEY_DRIFT_UNCERTAINTY, Double.doubleToRawLongBits(estimate.driftUncertainty))
+                .putInt(KEY_BOOT_COUNT, mBootCount)
+                .putLong(KEY_BOOT_TIME, bootTime())
+                .apply();
+    }
+
+    /**
+     * 恢复上次保存的同步状态
+     *
+     * @return 设备重启过或者没有保存的状态时返回null
+     */
+    @Nullable
+    ClockDiscipline.Estimate restore() {
+        if (!mPrefs.contains(KEY_REF_TIME)) {
+            return null;
+        }
+        long refElapsed = mPrefs.getLong(KEY_REF_ELAPSED, 0);
+        //elapsedRealtime比保存时还小，说明一定重启过
+        if (SystemClock.elapsedRealtime() < refElapsed) {
+            return null;
+        }
+        int savedBootCount = mPrefs.getInt(KEY_BOOT_COUNT, -1);
+        if (savedBootCount != -1 && mBootCount != -1) {
+            if (savedBootCount != mBootCount)
+                return null;
+        } else if (Math.abs(mPrefs.getLong(KEY_BOOT_TIME, 0) - bootTime()) > BOOT_TIME_TOLERANCE) {
+            //开机时间基于系统时间计算，系统时间被修改时也会认为已重启，此时宁可重新同步
+            return null;
+        }
+        return new ClockDiscipline.Estimate(refElapsed,
+                mPrefs.getLong(KEY_REF_TIME, 0),
+                Double.longBitsToDouble(mPrefs.getLong(KEY_DRIFT, 0)),
+                Double.longBitsToDouble(mPrefs.getLong(KEY_BASE_ERROR, 0)),
+                Double.longBitsToDouble(mPrefs.getLong(KEY_DRIFT_UNCERTAINTY,
+                        Double.doubleToRawLongBits(ClockDiscipline.DEFAULT_DRIFT_UNCERTAINTY))));
+    }
+
+    synchronized void clear() {
+        mSavedRefElapsed = Long.MIN_VALUE;
+        mPrefs.edit().clear().apply();
+    }
+
+    private static int bootCount(Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            try {
+                return Settings.Global.getInt(context.getContentResolver(), Settings.Global.BOOT_COUNT, -1);
+            } catch (Throwable e) {
+                e.printStackTrace();
+            }
+        }
+        return -1;
+    }
+
+    private static long bootTime() {
+        return System.currentTimeMillis() - SystemClock.elapsedRealtime();
+    }
+}
@@ -0,0 +1,123 @@
+package unics.okdroid.tools.graphics
+
+import android.graphics.Bitmap.CompressFormat
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.buffer
+import kotlinx.coroutines.flow.channelFlow
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * 批量压缩参数
+ * @param maxWidth 输出的最大宽度
+ * @param maxHeight 输出的最大高度
+ * @param outputDir 输出目录：不为null时压缩结果直接写入该目录下的文件，否则以字节数组返回
+ * @param parallelism 最大并行数，0表示按cpu核数自动计算
+ * @param memoryBudget 同时存活的Bitmap可以使用的内存，0表示按当前可用内存自动计算
+ * @param pool 复用池，默认为null；批量压缩大量图片时可以传入[BitmapPool.shared]，完成后调用[BitmapPool.clear]释放
+ */
+data class CompressSpec @JvmOverloads constructor(
+    val maxWidth: Int,
+    val maxHeight: Int,
+    val quality: Int = DEFAULT_BITMAP_COMPRESS_QUALITY,
+    val format: CompressFormat = CompressFormat.JPEG,
+    val outputDir: File? = null,
+    val parallelism: Int = 0,
+    val memoryBudget: Long = 0,
+    val pool: BitmapPool? = null
+) {
+
+    /**
+     * 计算同时处理的图片数量：不超过cpu核数，且每张图片（解码图+旋转目标图）的内存不超过预算
+     */
+    fun resolveConcurrency(): Int {
+        val cores = if (parallelism > 0) parallelism else Runtime.getRuntime().availableProcessors()
+        val budget = if (memoryBudget > 0) memoryBudget else {
+            val runtime = Runtime.getRuntime()
+            (runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory())) / 2
+        }
+        //每张图片最多同时存在解码图和目标图
+        val perImage = maxWidth.toLong() * maxHeight * 4 * 2
+        return max(1, min(cores.toLong(), budget / max(1, perImage)).toInt())
+    }
+}
+
+/**
+ * 单张图片的压缩结果
+ * @param index 在输入列表中的位置
+ * @param data 未指定[CompressSpec.outputDir]时的压缩数据
+ * @param file 指定了[CompressSpec.outputDir]时的输出文件
+ * @param error 压缩失败的原因
+ */
+class CompressResult(
+    val index: Int,
+    val path: String,
+    val data: ByteArray? = null,
+    val file: File? = null,
+    val stats: CompressStats? = null,
+    val error: Throwable? = null
+) {
+    val isSuccess: Boolean get() = error == null
+}
+
+/**
+ * 批量压缩图片：在有限的并行度下解码、修正角度并压缩，按完成顺序发送结果。
+ *
+ * - 并行数由[CompressSpec.resolveConcurrency]根据cpu核数与内存预算计算，同一时间最多只有该数量的图片在处理；
+ * - 结果在被收集之前任务不会释放处理名额（背压），因此未被消费的结果也不会无限堆积；
+ * - 取消收集的协程即可取消尚未开始的任务。
+ *
+ * @see compressImageTo
+ */
+fun compressAll(paths: List<String>, spec: CompressSpec): Flow<CompressResult> = channelFlow {
+    val semaphore = Semaphore(spec.resolveConcurrency())
+    paths.forEachIndexed { index, path ->
+        launch(Dispatchers.IO) {
+            semaphore.withPermit {
+                coroutineContext.ensureActive()
+                val result = try {
+                    compressOne(index, path, spec)
+                } catch (e: CancellationException) {
+                    throw e
+                } catch (e: Throwable) {
+                    CompressResult(index, path, error = e)
+                }
+                send(result)
+            }
+        }
+    }
+}.buffer(Channel.RENDEZVOUS)
+
+private fun compressOne(index: Int, path: String, spec: CompressSpec): CompressResult {
+    val outputDir = spec.outputDir
+    if (outputDir != null) {
+        if (!outputDir.exists())
+            outputDir.mkdirs()
+        val file = File(outputDir, "${File(path).nameWithoutExtension}_$index.${spec.format.extension()}")
+        val stats = FileOutputStream(file).use {
+            compressImageTo(path, it.channel, spec.maxWidth, spec.maxHeight, spec.quality, spec.format, spec.pool)
+        }
+        return CompressResult(index, path, file = file, stats = stats)
+    }
+    val output = ByteArrayOutputStream()
+    val stats = compressImageTo(path, output, spec.maxWidth, spec.maxHeight, spec.quality, spec.format, spec.pool)
+    return CompressResult(index, path, data = output.toByteArray(), stats = stats)
+}
+
+private fun CompressFormat.extension(): String {
+    return when (this) {
+        CompressFormat.JPEG -> "jpg"
+        CompressFormat.PNG -> "png"
+        else -> "webp"
+    }
+}
@@ -0,0 +1,145 @@
+package unics.okdroid.tools.graphics
+
+import android.graphics.Bitmap
+import android.graphics.Bitmap.CompressFormat
+import android.graphics.Matrix
+import java.io.FilterOutputStream
+import java.io.OutputStream
+import java.nio.channels.Channels
+import java.nio.channels.WritableByteChannel
+import kotlin.math.min
+
+/**
+ * 图片压缩统计信息
+ * @param width 输出图片宽度
+ * @param height 输出图片高度
+ * @param sampleSize 解码时使用的inSampleSize
+ * @param degree 修正的旋转角度
+ * @param bytesWritten 写入输出流的字节数
+ * @param peakBitmapBytes 压缩过程中同时存活的Bitmap占用的最大内存
+ * @param legacyPeakBytes 按[correctedScaledCompressedBitmapData]的方式处理时的峰值内存估算（解码图+旋转图+压缩缓冲区+拷贝），用于对比
+ */
+data class CompressStats(
+    val width: Int,
+    val height: Int,
+    val sampleSize: Int,
+    val degree: Int,
+    val bytesWritten: Long,
+    val peakBitmapBytes: Long,
+    val legacyPeakBytes: Long
+)
+
+/**
+ * 单次处理完成图片的解码、角度修正、缩放与压缩，并直接写入[output]：
+ * 1、按inSampleSize解码（可复用[pool]中的Bitmap）；
+ * 2、旋转与剩余缩放通过一次Matrix绘制到复用的目标Bitmap上（无需旋转、缩放时直接压缩解码结果）；
+ * 3、直接压缩写入输出流，不产生中间字节数组。
+ *
+ * @param path 图片路径
+ * @param output 输出流，由调用方负责关闭
+ * @param maxWidth 输出的最大宽度（角度修正后）
+ * @param maxHeight 输出的最大高度（角度修正后）
+ * @param pool 复用池，处理完成后Bitmap放回池中；默认为null，直接回收。频繁压缩时可以传入[BitmapPool.shared]
+ */
+@JvmOverloads
+fun compressImageTo(
+    path: String,
+    output: OutputStream,
+    maxWidth: Int,
+    maxHeight: Int,
+    quality: Int = DEFAULT_BITMAP_COMPRESS_QUALITY,
+    format: CompressFormat = CompressFormat.JPEG,
+    pool: BitmapPool? = null
+): CompressStats {
+    val degree = readPictureDegree(path)
+    //旋转90/270度时，宽高限制需要对调后再用于解码
+    val rotated = degree == 90 || degree == 270
+    val decodeMaxWidth = if (rotated) maxHeight else maxWidth
+    val decodeMaxHeight = if (rotated) maxWidth else maxHeight
+    val options = newBitmapOptionsForDecode(path, decodeMaxWidth, decodeMaxHeight)
+    val decoded = decodeWithPool(options, pool) {
+        decodeBitmap(path, it)
+    }
+    requireNotNull(decoded) {
+        "bitmap is null(or file not found),please check your path is right."
+    }
+    //inSampleSize只能按2的幂缩放，剩余的缩放与旋转一起完成
+    val scale = min(
+        1f,
+        min(
+            decodeMaxWidth.toFloat() / decoded.width,
+            decodeMaxHeight.toFloat() / decoded.height
+        )
+    )
+    var target: Bitmap? = null
+    val counter = CountingOutputStream(output)
+    try {
+        val result = if (degree == 0 && scale >= 1f) {
+            decoded
+        } else {
+            val matrix = Matrix()
+            matrix.postScale(scale, scale)
+            matrix.postRotate(degree.toFloat())
+            drawToPooledBitmap(decoded, matrix, pool ?: NO_POOL).also {
+                target = it
+            }
+        }
+        result.compress(format, quality, counter)
+        counter.flush()
+        val decodedBytes = decoded.allocationByteCountCompat().toLong()
+        val targetBytes = target?.allocationByteCountCompat()?.toLong() ?: 0
+        return CompressStats(
+            width = result.width,
+            height = result.height,
+            sampleSize = options.inSampleSize,
+            degree = degree,
+            bytesWritten = counter.count,
+            peakBitmapBytes = decodedBytes + targetBytes,
+            //旧方式：解码图+旋转图同时存活，压缩数据在ByteArrayOutputStream中，toByteArray再拷贝一次
+            legacyPeakBytes = decodedBytes + (if (degree == 0) 0 else decodedBytes) + counter.count * 2
+        )
+    } finally {
+        decoded.recycleOrPut(pool)
+        target?.recycleOrPut(pool)
+    }
+}
+
+/**
+ * 直接写入通道（如[java.nio.channels.FileChannel]）
+ * @see compressImageTo
+ */
+@JvmOverloads
+fun compressImageTo(
+    path: String,
+    channel: WritableByteChannel,
+    maxWidth: Int,
+    maxHeight: Int,
+    quality: Int = DEFAULT_BITMAP_COMPRESS_QUALITY,
+    format: CompressFormat = CompressFormat.JPEG,
+    pool: BitmapPool? = null
+): CompressStats {
+    //不关闭该流，否则会关闭调用方的通道
+    return compressImageTo(path, Channels.newOutputStream(channel), maxWidth, maxHeight, quality, format, pool)
+}
+
+//不缓存任何Bitmap的复用池：用于没有指定复用池时创建目标Bitmap
+private val NO_POOL = BitmapPool(0)
+
+/**
+ * 统计写入字节数
+ */
+private class CountingOutputStream(out: OutputStream) : FilterOutputStream(out) {
+
+    var count: Long = 0
+        private set
+
+    override fun write(b: Int) {
+        out.write(b)
+        count++
+    }
+
+    override fun write(b: ByteArray, off: Int, len: Int) {
+        out.write(b, off, len)
+        count += len
+    }
+}
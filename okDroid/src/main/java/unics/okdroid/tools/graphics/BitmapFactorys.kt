@@ -3,9 +3,13 @@ package unics.okdroid.tools.graphics
 import android.graphics.Bitmap
 import android.graphics.Canvas
 import android.graphics.Matrix
+import android.graphics.Paint
+import android.graphics.RectF
+import android.os.Build
 import androidx.annotation.FloatRange
 import androidx.annotation.IntRange
 import kotlin.math.max
+import kotlin.math.roundToInt
 
 /**
  * 将[upBmp]居中覆盖在[downBmp]之上。
@@ -75,11 +79,44 @@ fun zoomBitmap(
  *
  * @param bitmap
  * @param degree 旋转角度
+ * @param pool 复用池，不为null时旋转结果绘制到池中复用的Bitmap上
  * @return
  */
-fun rotateBitmap(bitmap: Bitmap, @IntRange(from = 0, to = 360) degree: Int): Bitmap {
+@JvmOverloads
+fun rotateBitmap(
+    bitmap: Bitmap,
+    @IntRange(from = 0, to = 360) degree: Int,
+    pool: BitmapPool? = null
+): Bitmap {
     val matrix = Matrix().also {
         it.postRotate(degree.toFloat())
     }
-    return Bitmap.createBitmap(bitmap, 0, 0, bitmap.width, bitmap.height, matrix, true)
+    if (pool == null) {
+        return Bitmap.createBitmap(bitmap, 0, 0, bitmap.width, bitmap.height, matrix, true)
+    }
+    return drawToPooledBitmap(bitmap, matrix, pool)
+}
+
+/**
+ * 将[src]按照[matrix]变换后绘制到复用池中的Bitmap上
+ */
+internal fun drawToPooledBitmap(src: Bitmap, matrix: Matrix, pool: BitmapPool): Bitmap {
+    val bounds = RectF(0f, 0f, src.width.toFloat(), src.height.toFloat())
+    matrix.mapRect(bounds)
+    val config = src.config.let {
+        if (it == null || (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && it == Bitmap.Config.HARDWARE))
+            Bitmap.Config.ARGB_8888
+        else
+            it
+    }
+    val target = pool.getOrCreate(
+        max(1, bounds.width().roundToInt()),
+        max(1, bounds.height().roundToInt()),
+        config
+    )
+    target.density = src.density
+    target.setHasAlpha(src.hasAlpha())
+    matrix.postTranslate(-bounds.left, -bounds.top)
+    Canvas(target).drawBitmap(src, matrix, Paint(Paint.FILTER_BITMAP_FLAG))
+    return target
 }
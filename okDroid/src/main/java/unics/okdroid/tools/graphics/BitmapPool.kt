@@ -0,0 +1,242 @@
+package unics.okdroid.tools.graphics
+
+import android.content.ComponentCallbacks2
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.os.Build
+import java.util.TreeMap
+import kotlin.math.ceil
+import kotlin.math.min
+
+/**
+ * Bitmap复用池：按字节大小分桶保存不再使用的Bitmap，超出容量时按LRU淘汰；
+ * 用于解码时设置[BitmapFactory.Options.inBitmap]，避免频繁分配大块内存导致GC。
+ *
+ * 复用规则（API 19+）：只要被复用的Bitmap的[Bitmap.getAllocationByteCount]不小于需要的字节数即可，
+ * 为避免用过大的Bitmap浪费内存，只复用不超过所需大小[MAX_SIZE_MULTIPLE]倍的Bitmap。
+ *
+ * @param maxSize 最大缓存字节数
+ */
+class BitmapPool(maxSize: Long) {
+
+    var maxSize: Long = maxSize
+        private set
+
+    /**
+     * 当前缓存的字节数
+     */
+    var currentSize: Long = 0
+        private set
+
+    //按config区分，每个config下按字节数分桶
+    private val buckets = HashMap<Bitmap.Config?, TreeMap<Int, ArrayDeque<Bitmap>>>()
+
+    //LRU顺序：最先放入（最久未使用）的在最前面
+    private val lru = LinkedHashSet<Bitmap>()
+
+    private var hitCount = 0
+    private var missCount = 0
+
+    /**
+     * 放入复用池；不可复用的Bitmap会直接回收
+     * @return 是否放入了复用池
+     */
+    @Synchronized
+    fun put(bitmap: Bitmap): Boolean {
+        val size = bitmap.allocationByteCountCompat()
+        if (bitmap.isRecycled || !bitmap.isMutable || size > maxSize || !isReusableConfig(bitmap.config)) {
+            bitmap.recycle()
+            return false
+        }
+        if (!lru.add(bitmap))
+            return true
+        buckets.getOrPut(bitmap.config) { TreeMap() }.getOrPut(size) { ArrayDeque() }.addLast(bitmap)
+        currentSize += size
+        trimToSize(maxSize)
+        return true
+    }
+
+    /**
+     * 获取一个可以复用的Bitmap，并将其调整为指定的宽高与config
+     * @return 没有合适的Bitmap时返回null
+     */
+    @Synchronized
+    fun get(width: Int, height: Int, config: Bitmap.Config): Bitmap? {
+        val bitmap = obtain(width * height * config.bytesPerPixel(), config) ?: return null
+        if (bitmap.width != width || bitmap.height != height || bitmap.config != config) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+                //KITKAT以下不支持reconfigure，只有大小完全一致才能复用
+                put(bitmap)
+                return null
+            }
+            bitmap.reconfigure(width, height, config)
+        }
+        bitmap.eraseColor(0)
+        return bitmap
+    }
+
+    /**
+     * 获取一个可以复用的Bitmap，并将其调整为指定的宽高与config，没有时创建新的Bitmap
+     */
+    fun getOrCreate(width: Int, height: Int, config: Bitmap.Config): Bitmap {
+        return get(width, height, config) ?: Bitmap.createBitmap(width, height, config)
+    }
+
+    /**
+     * 为解码设置复用的Bitmap：根据[BitmapFactory.Options.outWidth]等信息计算解码后的大小，
+     * 设置[BitmapFactory.Options.inBitmap]与[BitmapFactory.Options.inMutable]
+     * @param options 已经通过inJustDecodeBounds获取到图片宽高的Options
+     * @return 是否设置了inBitmap
+     */
+    @Synchronized
+    fun applyForDecode(options: BitmapFactory.Options): Boolean {
+        options.inMutable = true
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT || options.outWidth <= 0 || options.outHeight <= 0)
+            return false
+        val config = options.inPreferredConfig ?: Bitmap.Config.ARGB_8888
+        if (!isReusableConfig(config))
+            return false
+        //解码器会将inSampleSize向下取整为2的幂，这里按向下取整计算，保证大小足够
+        val sampleSize = Integer.highestOneBit(options.inSampleSize.coerceAtLeast(1))
+        var width = ceil(options.outWidth.toDouble() / sampleSize)
+        var height = ceil(options.outHeight.toDouble() / sampleSize)
+        if (options.inScaled && options.inDensity > 0 && options.inTargetDensity > 0) {
+            val scale = options.inTargetDensity.toDouble() / options.inDensity
+            width = ceil(width * scale)
+            height = ceil(height * scale)
+        }
+        val bitmap = obtain((width * height).toInt() * config.bytesPerPixel(), config) ?: return false
+        options.inBitmap = bitmap
+        return true
+    }
+
+    /**
+     * 缩减到指定大小
+     */
+    @Synchronized
+    fun trimToSize(size: Long) {
+        val iterator = lru.iterator()
+        while (currentSize > size && iterator.hasNext()) {
+            val bitmap = iterator.next()
+            iterator.remove()
+            val bytes = bitmap.allocationByteCountCompat()
+            buckets[bitmap.config]?.let { bucket ->
+                bucket[bytes]?.let {
+                    it.remove(bitmap)
+                    if (it.isEmpty())
+                        bucket.remove(bytes)
+                }
+            }
+            currentSize -= bytes
+            bitmap.recycle()
+        }
+    }
+
+    /**
+     * 响应系统内存回调
+     * @see ComponentCallbacks2.onTrimMemory
+     */
+    fun trimMemory(level: Int) {
+        when {
+            level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                    || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL -> clear()
+            level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN
+                    || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW -> trimToSize(maxSize / 2)
+        }
+    }
+
+    /**
+     * 修改最大缓存字节数
+     */
+    @Synchronized
+    fun resize(size: Long) {
+        maxSize = size
+        trimToSize(size)
+    }
+
+    fun clear() {
+        trimToSize(0)
+    }
+
+    @Synchronized
+    override fun toString(): String {
+        return "BitmapPool(size=$currentSize/$maxSize, count=${lru.size}, hit=$hitCount, miss=$missCount)"
+    }
+
+    private fun obtain(byteCount: Int, config: Bitmap.Config): Bitmap? {
+        val bucket = buckets[config]
+        val key = bucket?.ceilingKey(byteCount)
+        if (bucket == null || key == null || key > byteCount.toLong() * MAX_SIZE_MULTIPLE) {
+            missCount++
+            return null
+        }
+        val candidates = bucket.getValue(key)
+        val bitmap = candidates.removeLast()
+        if (candidates.isEmpty())
+            bucket.remove(key)
+        lru.remove(bitmap)
+        currentSize -= key
+        hitCount++
+        return bitmap
+    }
+
+    private fun isReusableConfig(config: Bitmap.Config?): Boolean {
+        if (config == null)
+            return false
+        return Build.VERSION.SDK_INT < Build.VERSION_CODES.O || config != Bitmap.Config.HARDWARE
+    }
+
+    companion object {
+
+        /**
+         * 复用的Bitmap最大可以是所需大小的倍数
+         */
+        const val MAX_SIZE_MULTIPLE = 8
+
+        /**
+         * 共享复用池，容量为最大可用内存的1/8，且不超过64M；
+         * 各压缩方法默认不使用复用池，需要调用方显式传入；[unics.okdroid.kit.imageloader.trimImageMemory]会同时缩减该复用池
+         */
+        @JvmStatic
+        val shared: BitmapPool by lazy {
+            BitmapPool(min(Runtime.getRuntime().maxMemory() / 8, 64L * 1024 * 1024))
+        }
+    }
+}
+
+internal fun Bitmap.allocationByteCountCompat(): Int {
+    return if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) allocationByteCount else byteCount
+}
+
+internal fun Bitmap.Config.bytesPerPixel(): Int {
+    return when (this) {
+        Bitmap.Config.ALPHA_8 -> 1
+        Bitmap.Config.RGB_565, Bitmap.Config.ARGB_4444 -> 2
+        else -> if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && this == Bitmap.Config.RGBA_F16) 8 else 4
+    }
+}
+
+/**
+ * 使用复用池解码：解码失败（例如复用的Bitmap不满足要求）时去掉inBitmap重试
+ */
+internal inline fun decodeWithPool(
+    options: BitmapFactory.Options,
+    pool: BitmapPool?,
+    decoder: (BitmapFactory.Options) -> Bitmap?
+): Bitmap? {
+    if (pool == null)
+        return decoder(options)
+    pool.applyForDecode(options)
+    val inBitmap = options.inBitmap ?: return decoder(options)
+    val result = try {
+        decoder(options)
+    } catch (e: IllegalArgumentException) {
+        null
+    }
+    if (result == null) {
+        options.inBitmap = null
+        pool.put(inBitmap)
+        return decoder(options)
+    }
+    return result
+}
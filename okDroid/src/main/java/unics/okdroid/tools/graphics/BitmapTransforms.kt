@@ -8,8 +8,8 @@ import android.graphics.*
 import android.graphics.drawable.BitmapDrawable
 import android.graphics.drawable.Drawable
 import androidx.annotation.IntRange
-import unics.okcore.lang.toBase64EncodeString
-import java.io.ByteArrayInputStream
+import unics.okdroid.util.Base64AppendableOutputStream
+import unics.okdroid.util.ExposedByteArrayOutputStream
 import java.io.ByteArrayOutputStream
 import java.io.InputStream
 import kotlin.math.min
@@ -89,21 +89,40 @@ fun Bitmap.toByteArray(
 }
 
 /**
- * 把bitmap转换成Base64编码String
+ * 把bitmap转换成Base64编码String（标准字母表，不换行）
+ * 压缩数据边压缩边编码，不会产生完整的中间字节数组
  *
  * @param compressFormat      转换格式，默认JPEG，这样转换之后的图片不包含透明像素，所占空间会更小（如果jpeg图片使用PNG格式转换，会导致转换之后的空间更大）
  * @param quality     转换质量（0-100取值），默认80
  * @return
+ * @see writeBase64To
  */
 fun Bitmap.toBase64String(
     compressFormat: Bitmap.CompressFormat = Bitmap.CompressFormat.JPEG,
     @IntRange(from = 0, to = 100) quality: Int = DEFAULT_BITMAP_COMPRESS_QUALITY
 ): String {
-    return this.toByteArray(compressFormat, quality).toBase64EncodeString()
+    return writeBase64To(StringBuilder(), compressFormat, quality).toString()
 }
 
 /**
- * 获取bitmap的InputStream
+ * 把bitmap压缩并以Base64编码（标准字母表，不换行）增量写入[appendable]，如直接写入请求体的[java.io.Writer]
+ *
+ * @return [appendable]
+ */
+@JvmOverloads
+fun <T : Appendable> Bitmap.writeBase64To(
+    appendable: T,
+    compressFormat: Bitmap.CompressFormat = Bitmap.CompressFormat.JPEG,
+    @IntRange(from = 0, to = 100) quality: Int = DEFAULT_BITMAP_COMPRESS_QUALITY
+): T {
+    Base64AppendableOutputStream(appendable).use {
+        this.compress(compressFormat, quality, it)
+    }
+    return appendable
+}
+
+/**
+ * 获取bitmap的InputStream：输入流直接读取压缩缓冲区，不会再拷贝一次数据
  *
  * @param bm
  * @return
@@ -112,9 +131,9 @@ fun Bitmap.toInputStream(
     compressFormat: Bitmap.CompressFormat = Bitmap.CompressFormat.JPEG,
     @IntRange(from = 0, to = 100) quality: Int = 100
 ): InputStream {
-    val baos = ByteArrayOutputStream()
-    this.compress(compressFormat, 100, baos)
-    return ByteArrayInputStream(baos.toByteArray())
+    val output = ExposedByteArrayOutputStream()
+    this.compress(compressFormat, quality, output)
+    return output.toInputStream()
 }
 
 
@@ -66,17 +66,21 @@ fun readPictureDegree(path: String): Int {
  * @param path 图片路径
  * @param maxWidth 需求宽
  * @param maxHeight 需求高
+ * @param pool 复用池，不为null时会尝试复用池中的Bitmap进行解码
  */
 @JvmOverloads
 fun scaledBitmap(
     path: String,
     maxWidth: Int,
-    maxHeight: Int
+    maxHeight: Int,
+    pool: BitmapPool? = null
 ): Bitmap? {
     //创建用于缩放的Options
     val options = newBitmapOptionsForDecode(path, maxWidth, maxHeight)
     //解析出图片
-    return decodeBitmap(path, options)
+    return decodeWithPool(options, pool) {
+        decodeBitmap(path, it)
+    }
 }
 
 /**
@@ -87,6 +91,8 @@ fun scaledBitmap(
  *                 formats, like PNG which is lossless, will ignore the
  *                 quality setting
  * @param format 压缩格式，默认jpeg
+ * @param pool 复用池：解码时复用池中的Bitmap，压缩完成后Bitmap放回池中；默认为null，解码新的Bitmap并在压缩后回收。
+ *             频繁压缩时可以传入[BitmapPool.shared]，并在内存不足时调用[BitmapPool.trimMemory]
  */
 @JvmOverloads
 fun scaledCompressedBitmapData(
@@ -94,20 +100,22 @@ fun scaledCompressedBitmapData(
     reqWidth: Int,
     reqHeight: Int,
     quality: Int = 100,
-    format: CompressFormat = CompressFormat.JPEG
+    format: CompressFormat = CompressFormat.JPEG,
+    pool: BitmapPool? = null
 ): ByteArray {
-    val bmp = scaledBitmap(path, reqWidth, reqHeight)
+    val bmp = scaledBitmap(path, reqWidth, reqHeight, pool)
     requireNotNull(bmp) {
         "bitmap is null(or file not found),please check your path is right."
     }
     val results = bmp.toByteArray(format, quality)
-    bmp.recycle()
+    bmp.recycleOrPut(pool)
     return results
 }
 
 /**
  * 获取缩放压缩、角度修正之后的图片数据
  * @param path
+ * @param pool 复用池，解码与旋转都会复用池中的Bitmap，使用完成后放回池中；默认为null，不复用
  * @return
  */
 @JvmOverloads
@@ -116,29 +124,39 @@ fun correctedScaledCompressedBitmapData(
     maxWidth: Int,
     maxHeight: Int,
     quality: Int = DEFAULT_BITMAP_COMPRESS_QUALITY,
-    format: CompressFormat = CompressFormat.JPEG
+    format: CompressFormat = CompressFormat.JPEG,
+    pool: BitmapPool? = null
 ): ByteArray {
     //获取偏转角度
     val degree = readPictureDegree(path)
     if (degree == 0) {
-        return scaledCompressedBitmapData(path, maxWidth, maxHeight, quality)
+        return scaledCompressedBitmapData(path, maxWidth, maxHeight, quality, format, pool)
     } else {
-        //创建用于缩放的Options
-        val options = newBitmapOptionsForDecode(path, maxWidth, maxHeight)
         //解析出图片
-        val bitmap = decodeBitmap(path, options)
+        val bitmap = scaledBitmap(path, maxWidth, maxHeight, pool)
         requireNotNull(bitmap) {
             "bitmap is null,please check your path is right."
         }
         //旋转图片
-        val rotatedBmp = rotateBitmap(bitmap, degree)
-        bitmap.recycle()
+        val rotatedBmp = rotateBitmap(bitmap, degree, pool)
+        bitmap.recycleOrPut(pool)
         val results = rotatedBmp.toByteArray(format, quality)
-        rotatedBmp.recycle()
+        rotatedBmp.recycleOrPut(pool)
         return results
     }
 }
 
+/**
+ * 不再使用的Bitmap：有复用池时放入复用池，否则直接回收
+ */
+internal fun Bitmap.recycleOrPut(pool: BitmapPool?) {
+    if (pool == null) {
+        recycle()
+    } else {
+        pool.put(this)
+    }
+}
+
 
 /**
  * 获取图片的BitmapFactory.Options
@@ -4,11 +4,16 @@
 package unics.okdroid.tools.graphics
 
 import android.content.Context
+import android.content.res.Resources
 import android.graphics.*
 import android.net.Uri
 import android.util.Base64
 import java.io.ByteArrayOutputStream
+import kotlin.math.floor
 import kotlin.math.max
+import kotlin.math.min
+import kotlin.math.roundToInt
+import kotlin.math.sqrt
 
 /**
  * 通过decode读取图片Bounds信息创建[BitmapFactory.Options]:通常用于获取图片宽高等信息
@@ -38,21 +43,23 @@ fun newBitmapOptionsByDecodeBounds(ctx: Context, uri: Uri): BitmapFactory.Option
 }
 
 /**
- * 创建一个合适的用于decode图片的[BitmapFactory.Options]
+ * 创建一个合适的用于decode图片的[BitmapFactory.Options]，解码结果按比例缩放到[maxWidth]x[maxHeight]以内
  * @param path
  * @param maxWidth 最大宽度
  * @param maxHeight 最大高度
+ * @param maxPixels 最大像素数，0表示不限制
  * @return
+ * @see applyDecodeSize
  */
 fun newBitmapOptionsForDecode(
     path: String,
     maxWidth: Int,
     maxHeight: Int,
-    config: Bitmap.Config = Bitmap.Config.ARGB_8888
+    config: Bitmap.Config = Bitmap.Config.ARGB_8888,
+    maxPixels: Long = 0
 ): BitmapFactory.Options {
     val options = newBitmapOptionsByDecodeBounds(path)
-    options.inSampleSize =
-        calculateInSampleSize(options.outWidth, options.outHeight, maxWidth, maxHeight)
+    options.applyDecodeSize(maxWidth, maxHeight, maxPixels)
     options.inJustDecodeBounds = false
 //    if (Build.VERSION.SDK_INT < 21) {
 //        options.inPurgeable = true
@@ -69,11 +76,11 @@ fun newBitmapOptionsForDecode(
     data: ByteArray,
     maxWidth: Int,
     maxHeight: Int,
-    config: Bitmap.Config = Bitmap.Config.ARGB_8888
+    config: Bitmap.Config = Bitmap.Config.ARGB_8888,
+    maxPixels: Long = 0
 ): BitmapFactory.Options {
     val options = newBitmapOptionsByDecodeBounds(data)
-    options.inSampleSize =
-        calculateInSampleSize(options.outWidth, options.outHeight, maxWidth, maxHeight)
+    options.applyDecodeSize(maxWidth, maxHeight, maxPixels)
     options.inJustDecodeBounds = false
     options.inPreferredConfig = config
     return options
@@ -87,11 +94,11 @@ fun newBitmapOptionsForDecode(
     uri: Uri,
     maxWidth: Int,
     maxHeight: Int,
-    config: Bitmap.Config = Bitmap.Config.ARGB_8888
+    config: Bitmap.Config = Bitmap.Config.ARGB_8888,
+    maxPixels: Long = 0
 ): BitmapFactory.Options {
     val options = newBitmapOptionsByDecodeBounds(ctx, uri)
-    options.inSampleSize =
-        calculateInSampleSize(options.outWidth, options.outHeight, maxWidth, maxHeight)
+    options.applyDecodeSize(maxWidth, maxHeight, maxPixels)
     options.inJustDecodeBounds = false
     options.inPreferredConfig = config
     return options
@@ -99,6 +106,7 @@ fun newBitmapOptionsForDecode(
 
 /**
  * 通过需求的宽和高简单计算适当的InSampleSize
+ * 注意：解码器会将InSampleSize向下取整为2的幂，解码结果可能接近目标的2倍，需要精确尺寸时请使用[applyDecodeSize]
  *
  * @param width 图片宽
  * @param height 图片高
@@ -117,6 +125,73 @@ fun calculateInSampleSize(width: Int, height: Int, maxWidth: Int, maxHeight: Int
     return max(1, inSampleSize)
 }
 
+/**
+ * 计算图片在保持宽高比的前提下需要缩放的比例，使结果不超过[maxWidth]x[maxHeight]，且像素数不超过[maxPixels]
+ *
+ * @param maxPixels 最大像素数，0表示不限制
+ * @return 缩放比例，不大于1
+ */
+fun calculateDecodeScale(
+    width: Int,
+    height: Int,
+    maxWidth: Int,
+    maxHeight: Int,
+    maxPixels: Long = 0
+): Double {
+    require(maxWidth > 0) {
+        "maxWidth param is zero."
+    }
+    require(maxHeight > 0) {
+        "maxHeight param is zero."
+    }
+    if (width <= 0 || height <= 0)
+        return 1.0
+    var scale = min(1.0, min(maxWidth.toDouble() / width, maxHeight.toDouble() / height))
+    if (maxPixels > 0) {
+        scale = min(scale, sqrt(maxPixels.toDouble() / (width.toLong() * height)))
+    }
+    return scale
+}
+
+/**
+ * 配置解码尺寸：解码器只能按2的幂进行采样，因此先选取不小于目标尺寸的最大2的幂作为inSampleSize，
+ * 剩余的缩放通过inDensity/inTargetDensity在解码时一并完成，解码结果即为目标尺寸，无需再次缩放（如[zoomBitmap]）
+ *
+ * 注意：需要先通过inJustDecodeBounds获取图片宽高
+ * @param maxPixels 最大像素数，0表示不限制
+ * @see calculateDecodeScale
+ */
+fun BitmapFactory.Options.applyDecodeSize(maxWidth: Int, maxHeight: Int, maxPixels: Long = 0) {
+    val scale = calculateDecodeScale(outWidth, outHeight, maxWidth, maxHeight, maxPixels)
+    //向下取整到2的幂，保证采样之后的尺寸不小于目标尺寸
+    val sampleSize = Integer.highestOneBit(max(1, floor(1 / scale + 1e-6).toInt()))
+    inSampleSize = sampleSize
+    val remaining = scale * sampleSize
+    if (remaining < 1 - 1e-6) {
+        inScaled = true
+        inDensity = DECODE_DENSITY
+        inTargetDensity = (DECODE_DENSITY * remaining).roundToInt()
+    } else {
+        inDensity = 0
+        inTargetDensity = 0
+    }
+}
+
+/**
+ * [BitmapFactory.Options.applyDecodeSize]使用的inDensity，值越大缩放精度越高
+ */
+internal const val DECODE_DENSITY = Int.MAX_VALUE
+
+/**
+ * 通过inDensity缩放解码时，Bitmap的density会被设置为inTargetDensity，这里恢复为设备的density
+ */
+internal fun Bitmap.resetDecodeDensity(options: BitmapFactory.Options?): Bitmap {
+    if (options != null && options.inDensity == DECODE_DENSITY) {
+        density = Resources.getSystem().displayMetrics.densityDpi
+    }
+    return this
+}
+
 
 /**
  * 获取缩放之后的图片
@@ -124,15 +199,19 @@ fun calculateInSampleSize(width: Int, height: Int, maxWidth: Int, maxHeight: Int
  * @param maxHeight 目标高度
  * @param imagePath 图片路径
  * @param config 压缩配置，默认[Bitmap.Config.ARGB_8888]
+ * @param pool 复用池，不为null时会尝试复用池中的Bitmap进行解码，返回的Bitmap为可变的
  */
 fun decodeBitmap(
     imagePath: String,
     maxWidth: Int,
     maxHeight: Int,
-    config: Bitmap.Config = Bitmap.Config.ARGB_8888
+    config: Bitmap.Config = Bitmap.Config.ARGB_8888,
+    pool: BitmapPool? = null
 ): Bitmap? {
     val bmOptions = newBitmapOptionsForDecode(imagePath, maxWidth, maxHeight, config)
-    return decodeBitmap(imagePath, bmOptions)
+    return decodeWithPool(bmOptions, pool) {
+        decodeBitmap(imagePath, it)
+    }
 }
 
 
@@ -140,10 +219,13 @@ fun decodeBitmap(
     data: ByteArray,
     maxWidth: Int,
     maxHeight: Int,
-    config: Bitmap.Config = Bitmap.Config.ARGB_8888
+    config: Bitmap.Config = Bitmap.Config.ARGB_8888,
+    pool: BitmapPool? = null
 ): Bitmap? {
     val bmOptions = newBitmapOptionsForDecode(data, maxWidth, maxHeight, config)
-    return decodeBitmap(data, bmOptions)
+    return decodeWithPool(bmOptions, pool) {
+        decodeBitmap(data, it)
+    }
 }
 
 /**
@@ -152,17 +234,20 @@ fun decodeBitmap(
 fun decodeBitmap(ctx: Context, uri: Uri, options: BitmapFactory.Options): Bitmap? {
     return ctx.contentResolver.openInputStream(uri)?.use {
         BitmapFactory.decodeStream(it, null, options)
-    }
+    }?.resetDecodeDensity(options)
 }
 
 fun decodeBitmap(
     ctx: Context, uri: Uri,
     maxWidth: Int,
     maxHeight: Int,
-    config: Bitmap.Config = Bitmap.Config.ARGB_8888
+    config: Bitmap.Config = Bitmap.Config.ARGB_8888,
+    pool: BitmapPool? = null
 ): Bitmap? {
     val bmOptions = newBitmapOptionsForDecode(ctx, uri, maxWidth, maxHeight, config)
-    return decodeBitmap(ctx, uri, bmOptions)
+    return decodeWithPool(bmOptions, pool) {
+        decodeBitmap(ctx, uri, it)
+    }
 }
 
 
@@ -170,7 +255,7 @@ fun decodeBitmap(
  * 解析Bitmap的公用方法.
  */
 fun decodeBitmap(path: String, options: BitmapFactory.Options): Bitmap? {
-    return BitmapFactory.decodeFile(path, options)
+    return BitmapFactory.decodeFile(path, options)?.resetDecodeDensity(options)
 }
 
 /**
@@ -250,7 +335,7 @@ private fun decodeBitmapInYuv(
  * 解析Bitmap的公用方法
  */
 fun decodeBitmap(data: ByteArray, options: BitmapFactory.Options): Bitmap? {
-    return BitmapFactory.decodeByteArray(data, 0, data.size, options)
+    return BitmapFactory.decodeByteArray(data, 0, data.size, options)?.resetDecodeDensity(options)
 }
 
 /**
@@ -263,5 +348,5 @@ fun decodeBitmap(
     length: Int = data.size,
     options: BitmapFactory.Options? = null,
 ): Bitmap? {
-    return BitmapFactory.decodeByteArray(data, offset, length, options)
+    return BitmapFactory.decodeByteArray(data, offset, length, options)?.resetDecodeDensity(options)
 }
\ No newline at end of file
@@ -0,0 +1,152 @@
+package unics.okdroid.util
+
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.Flushable
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.io.Writer
+
+/**
+ * 可以直接访问内部缓冲区的[ByteArrayOutputStream]：
+ * [toInputStream]直接基于内部缓冲区创建输入流，避免[toByteArray]带来的整块拷贝
+ */
+class ExposedByteArrayOutputStream @JvmOverloads constructor(size: Int = 32) : ByteArrayOutputStream(size) {
+
+    /**
+     * 基于内部缓冲区创建输入流，之后不应再写入数据
+     */
+    fun toInputStream(): InputStream {
+        return ByteArrayInputStream(buf, 0, count)
+    }
+}
+
+/**
+ * 将写入的数据增量编码为Base64（标准字母表，带填充，不换行）并追加到[appendable]中，
+ * 不需要先得到完整的字节数组；写入完成后必须调用[close]以写入最后的填充字符
+ *
+ * @param appendable 输出目标，如[StringBuilder]、[java.io.Writer]
+ */
+class Base64AppendableOutputStream(private val appendable: Appendable) : OutputStream() {
+
+    //最多缓存2个未凑满3字节的数据
+    private val pending = IntArray(2)
+    private var pendingCount = 0
+    private val chars = CharArray(CHUNK_SIZE)
+    private var charCount = 0
+    private var closed = false
+
+    override fun write(b: Int) {
+        ensureOpen()
+        if (pendingCount < 2) {
+            pending[pendingCount++] = b and 0xFF
+            return
+        }
+        encode(pending[0], pending[1], b and 0xFF)
+        pendingCount = 0
+    }
+
+    override fun write(b: ByteArray, off: Int, len: Int) {
+        ensureOpen()
+        var offset = off
+        val end = off + len
+        //先补齐上次剩余的数据
+        while (pendingCount != 0 && offset < end) {
+            write(b[offset++].toInt())
+        }
+        while (end - offset >= 3) {
+            encode(b[offset].toInt() and 0xFF, b[offset + 1].toInt() and 0xFF, b[offset + 2].toInt() and 0xFF)
+            offset += 3
+        }
+        while (offset < end) {
+            pending[pendingCount++] = b[offset++].toInt() and 0xFF
+        }
+    }
+
+    override fun flush() {
+        flushChars()
+        (appendable as? Flushable)?.flush()
+    }
+
+    /**
+     * 写入剩余数据与填充字符，不会关闭[appendable]
+     */
+    override fun close() {
+        if (closed)
+            return
+        when (pendingCount) {
+            1 -> {
+                val v = pending[0] shl 16
+                append(ALPHABET[v shr 18 and 0x3F])
+                append(ALPHABET[v shr 12 and 0x3F])
+                append('=')
+                append('=')
+            }
+            2 -> {
+                val v = (pending[0] shl 16) or (pending[1] shl 8)
+                append(ALPHABET[v shr 18 and 0x3F])
+                append(ALPHABET[v shr 12 and 0x3F])
+                append(ALPHABET[v shr 6 and 0x3F])
+                append('=')
+            }
+        }
+        pendingCount = 0
+        flush()
+        closed = true
+    }
+
+    private fun encode(b0: Int, b1: Int, b2: Int) {
+        val v = (b0 shl 16) or (b1 shl 8) or b2
+        append(ALPHABET[v shr 18 and 0x3F])
+        append(ALPHABET[v shr 12 and 0x3F])
+        append(ALPHABET[v shr 6 and 0x3F])
+        append(ALPHABET[v and 0x3F])
+    }
+
+    private fun append(c: Char) {
+        if (charCount == chars.size) {
+            flushChars()
+        }
+        chars[charCount++] = c
+    }
+
+    private fun flushChars() {
+        if (charCount == 0)
+            return
+        if (appendable is Writer) {
+            appendable.write(chars, 0, charCount)
+        } else {
+            appendable.append(CharArrayCharSequence(chars, charCount))
+        }
+        charCount = 0
+    }
+
+    private fun ensureOpen() {
+        if (closed)
+            throw IOException("stream closed.")
+    }
+
+    /**
+     * 包装字符数组，避免每次追加都创建新的String
+     */
+    private class CharArrayCharSequence(private val chars: CharArray, override val length: Int) : CharSequence {
+        override fun get(index: Int): Char = chars[index]
+
+        override fun subSequence(startIndex: Int, endIndex: Int): CharSequence =
+            String(chars, startIndex, endIndex - startIndex)
+
+        override fun toString(): String = String(chars, 0, length)
+    }
+
+    companion object {
+        private const val CHUNK_SIZE = 4096
+        private val ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray()
+
+        /**
+         * 编码后的字符长度
+         */
+        @JvmStatic
+        fun encodedLength(byteCount: Long): Long = (byteCount + 2) / 3 * 4
+    }
+}
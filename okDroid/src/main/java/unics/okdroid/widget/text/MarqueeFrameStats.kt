@@ -0,0 +1,278 @@
+package unics.okdroid.widget.text
+
+import unics.okdroid.kit.debugger.MessageHandler
+
+/**
+ * 跑马灯的帧统计：实际帧率与目标帧率、锁定画布/绘制/提交的耗时分布、错过的帧以及实际滚动速度与设定速度的偏差。
+ * 由[MarqueeSurfaceView.setFrameStatsEnabled]开启，通过[snapshot]获取统计结果，或者通过[report]输出到[MessageHandler]，
+ * 便于在不同设备上调整帧率与步长。
+ *
+ * 数据在渲染线程中记录，[snapshot]、[report]、[reset]可以在任意线程调用。
+ *
+ * @param reportHandler 不为空时，每隔[reportIntervalMillis]在渲染线程中输出一次统计结果
+ * @param reportIntervalMillis 定期输出的间隔
+ */
+class MarqueeFrameStats @JvmOverloads constructor(
+    private val reportHandler: MessageHandler? = null,
+    private val reportIntervalMillis: Long = DEFAULT_REPORT_INTERVAL_MILLIS
+) {
+
+    private val lockCanvas = Histogram()
+    private val draw = Histogram()
+    private val post = Histogram()
+
+    //滚动的帧数及这些帧实际经过的时间
+    private var frameCount = 0L
+    private var frameNanos = 0L
+
+    //超过帧间隔的帧数以及因此跳过的帧数
+    private var lateFrames = 0L
+    private var missedFrames = 0L
+
+    //实际滚动的距离
+    private var scrolledDistance = 0.0
+
+    private var targetFps = 0
+    private var targetSpeed = 0f
+
+    private var lastReportNanos = 0L
+
+    /**
+     * 记录锁定画布与绘制的耗时
+     */
+    @Synchronized
+    internal fun recordDraw(lockNanos: Long, drawNanos: Long) {
+        lockCanvas.record(lockNanos)
+        draw.record(drawNanos)
+    }
+
+    /**
+     * 记录提交画布的耗时
+     */
+    @Synchronized
+    internal fun recordPost(postNanos: Long) {
+        post.record(postNanos)
+    }
+
+    /**
+     * 记录一帧滚动
+     * @param frameTimeNanos 当前帧的vsync时间
+     * @param elapsedNanos 与上一次滚动之间实际经过的时间
+     * @param frameIntervalNanos 目标帧率对应的帧间隔
+     * @param halfVsyncNanos 屏幕刷新周期的一半
+     * @param distance 本帧滚动的距离
+     * @param fps 目标帧率
+     * @param speed 设定的滚动速度（像素/秒）
+     */
+    internal fun recordScroll(
+        frameTimeNanos: Long,
+        elapsedNanos: Long,
+        frameIntervalNanos: Long,
+        halfVsyncNanos: Long,
+        distance: Float,
+        fps: Int,
+        speed: Float
+    ) {
+        val shouldReport = synchronized(this) {
+            frameCount++
+            frameNanos += elapsedNanos
+            scrolledDistance += distance
+            targetFps = fps
+            targetSpeed = speed
+            //绘制与vsync对齐，超过帧间隔半个vsync周期以上才视为错过
+            val skipped = (elapsedNanos + halfVsyncNanos) / frameIntervalNanos - 1
+            if (skipped > 0) {
+                lateFrames++
+                missedFrames += skipped
+            }
+            if (reportHandler == null)
+                return
+            if (lastReportNanos == 0L) {
+                lastReportNanos = frameTimeNanos
+                false
+            } else if (frameTimeNanos - lastReportNanos >= reportIntervalMillis * 1_000_000) {
+                lastReportNanos = frameTimeNanos
+                true
+            } else {
+                false
+            }
+        }
+        if (shouldReport)
+            report(reportHandler!!)
+    }
+
+    /**
+     * 获取当前统计结果
+     */
+    @Synchronized
+    fun snapshot(): Snapshot {
+        val seconds = frameNanos / 1_000_000_000.0
+        return Snapshot(
+            targetFps = targetFps,
+            achievedFps = if (seconds > 0) (frameCount / seconds).toFloat() else 0f,
+            frameCount = frameCount,
+            lateFrames = lateFrames,
+            missedFrames = missedFrames,
+            lockCanvas = lockCanvas.snapshot(),
+            draw = draw.snapshot(),
+            post = post.snapshot(),
+            targetSpeed = targetSpeed,
+            achievedSpeed = if (seconds > 0) (scrolledDistance / seconds).toFloat() else 0f
+        )
+    }
+
+    /**
+     * 输出统计结果
+     */
+    @JvmOverloads
+    fun report(handler: MessageHandler = MessageHandler.Printer) {
+        handler.handle(TAG, snapshot().toString())
+    }
+
+    /**
+     * 清除统计数据
+     */
+    @Synchronized
+    fun reset() {
+        lockCanvas.reset()
+        draw.reset()
+        post.reset()
+        frameCount = 0
+        frameNanos = 0
+        lateFrames = 0
+        missedFrames = 0
+        scrolledDistance = 0.0
+    }
+
+    /**
+     * 耗时统计，百分位为所在分桶的上限
+     */
+    class TimeStats(
+        val count: Long,
+        val averageMicros: Double,
+        val p50Micros: Long,
+        val p90Micros: Long,
+        val p99Micros: Long,
+        val maxMicros: Long
+    ) {
+        override fun toString(): String {
+            return "count=$count avg=${"%.0f".format(averageMicros)}us p50<=${p50Micros}us p90<=${p90Micros}us p99<=${p99Micros}us max=${maxMicros}us"
+        }
+    }
+
+    /**
+     * 统计结果
+     * @param targetFps 设定的帧率
+     * @param achievedFps 滚动时的实际帧率
+     * @param frameCount 滚动的帧数
+     * @param lateFrames 超过帧间隔（错过vsync）的帧数
+     * @param missedFrames 因此跳过的帧数
+     * @param lockCanvas 锁定画布的耗时
+     * @param draw 绘制的耗时
+     * @param post 提交画布的耗时
+     * @param targetSpeed 设定的滚动速度（像素/秒）
+     * @param achievedSpeed 实际的滚动速度：长时间卡顿时单帧滚动距离有上限，实际速度会低于设定速度
+     */
+    class Snapshot(
+        val targetFps: Int,
+        val achievedFps: Float,
+        val frameCount: Long,
+        val lateFrames: Long,
+        val missedFrames: Long,
+        val lockCanvas: TimeStats,
+        val draw: TimeStats,
+        val post: TimeStats,
+        val targetSpeed: Float,
+        val achievedSpeed: Float
+    ) {
+
+        /**
+         * 滚动速度的相对误差
+         */
+        val velocityError: Float
+            get() = if (targetSpeed > 0) (achievedSpeed - targetSpeed) / targetSpeed else 0f
+
+        override fun toString(): String {
+            val sb = StringBuilder("MarqueeFrameStats:")
+            sb.append("\n  fps=").append("%.1f".format(achievedFps)).append('/').append(targetFps)
+                .append(" frames=").append(frameCount)
+                .append(" late=").append(lateFrames)
+                .append(" missed=").append(missedFrames)
+            sb.append("\n  speed=").append("%.1f".format(achievedSpeed)).append('/').append("%.1f".format(targetSpeed))
+                .append("px/s error=").append("%.2f".format(velocityError * 100)).append('%')
+            sb.append("\n  lockCanvas: ").append(lockCanvas)
+            sb.append("\n  draw: ").append(draw)
+            sb.append("\n  post: ").append(post)
+            return sb.toString()
+        }
+    }
+
+    /**
+     * 按2的幂分桶的耗时直方图（微秒）：[0,1] (1,2] (2,4] ... (32768,65536] (65536,∞)
+     */
+    private class Histogram {
+
+        private val buckets = LongArray(BUCKET_COUNT)
+        private var sum = 0L
+        private var max = 0L
+
+        fun record(nanos: Long) {
+            val micros = nanos / 1000
+            buckets[bucketOf(micros)]++
+            sum += micros
+            if (micros > max)
+                max = micros
+        }
+
+        fun snapshot(): TimeStats {
+            val total = buckets.sum()
+            return TimeStats(
+                count = total,
+                averageMicros = if (total == 0L) 0.0 else sum.toDouble() / total,
+                p50Micros = percentile(total, 0.5),
+                p90Micros = percentile(total, 0.9),
+                p99Micros = percentile(total, 0.99),
+                maxMicros = max
+            )
+        }
+
+        fun reset() {
+            buckets.fill(0)
+            sum = 0
+            max = 0
+        }
+
+        private fun percentile(total: Long, p: Double): Long {
+            if (total == 0L)
+                return 0
+            val target = Math.ceil(total * p).toLong()
+            var accumulated = 0L
+            for (i in buckets.indices) {
+                accumulated += buckets[i]
+                if (accumulated >= target) {
+                    return if (i == BUCKET_COUNT - 1) max else minOf(1L shl i, max)
+                }
+            }
+            return max
+        }
+
+        private fun bucketOf(micros: Long): Int {
+            if (micros <= 1)
+                return 0
+            //(2^(i-1), 2^i]
+            val index = 64 - java.lang.Long.numberOfLeadingZeros(micros - 1)
+            return minOf(index, BUCKET_COUNT - 1)
+        }
+
+        companion object {
+            //最后一个分桶保存超过65536us的记录
+            private const val BUCKET_COUNT = 18
+        }
+    }
+
+    companion object {
+        private const val TAG = "MarqueeFrameStats"
+
+        const val DEFAULT_REPORT_INTERVAL_MILLIS = 10_000L
+    }
+}
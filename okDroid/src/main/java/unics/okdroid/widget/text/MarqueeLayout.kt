@@ -0,0 +1,97 @@
+package unics.okdroid.widget.text
+
+/**
+ * 跑马灯的一条文本：宽度在渲染线程中测量后缓存，样式不变时不会重复测量
+ */
+internal class MarqueeSegment(val text: String) {
+
+    //测量的宽度及测量时的样式版本
+    var width = 0f
+    var styleVersion = -1
+}
+
+/**
+ * 多条文本的水平布局：记录每条文本的起始位置，相邻文本之间间隔分隔符的宽度。
+ * 非线程安全，只在渲染线程中使用。
+ */
+internal class MarqueeLayout {
+
+    var segments: List<MarqueeSegment> = emptyList()
+        private set
+
+    /**
+     * 每条文本相对第一条文本起点的位置
+     */
+    var offsets: FloatArray = FloatArray(0)
+        private set
+
+    /**
+     * 所有文本（包括中间的分隔）的总宽度
+     */
+    var totalWidth = 0f
+        private set
+
+    private var separator: String? = null
+    private var gap = 0f
+    private var styleVersion = -1
+
+    val isEmpty: Boolean
+        get() = segments.isEmpty()
+
+    /**
+     * 更新布局：只测量新增的文本，样式变化时重新测量所有文本
+     * @param viewportStart 可见区域左侧相对第一条文本起点的位置
+     * @return 为了让可见区域中的第一条文本保持在原位置，滚动位置需要增加的距离；该文本已被移除时为0
+     */
+    fun update(
+        segments: List<MarqueeSegment>,
+        separator: String,
+        styleVersion: Int,
+        viewportStart: Float,
+        measure: (String) -> Float
+    ): Float {
+        val anchorIndex = firstVisible(viewportStart)
+        val anchor = if (anchorIndex < this.segments.size) this.segments[anchorIndex] else null
+        val anchorOffset = if (anchor != null) offsets[anchorIndex] else 0f
+
+        if (styleVersion != this.styleVersion || separator != this.separator) {
+            gap = measure(separator)
+            this.separator = separator
+        }
+        this.styleVersion = styleVersion
+        val newOffsets = FloatArray(segments.size)
+        var x = 0f
+        var newAnchorOffset = Float.NaN
+        segments.forEachIndexed { index, segment ->
+            if (segment.styleVersion != styleVersion) {
+                segment.width = measure(segment.text)
+                segment.styleVersion = styleVersion
+            }
+            if (segment === anchor)
+                newAnchorOffset = x
+            newOffsets[index] = x
+            x += segment.width + gap
+        }
+        this.segments = segments
+        offsets = newOffsets
+        totalWidth = if (segments.isEmpty()) 0f else x - gap
+        return if (newAnchorOffset.isNaN()) 0f else anchorOffset - newAnchorOffset
+    }
+
+    /**
+     * 第一条右侧超出[viewportStart]的文本的位置，没有时为文本数量
+     */
+    fun firstVisible(viewportStart: Float): Int {
+        var low = 0
+        var high = segments.size
+        while (low < high) {
+            val mid = (low + high) ushr 1
+            if (offsets[mid] + segments[mid].width > viewportStart) {
+                high = mid
+            } else {
+                low = mid + 1
+            }
+        }
+        return low
+    }
+}
@@ -0,0 +1,168 @@
+package unics.okdroid.widget.text
+
+import android.graphics.Canvas
+import android.os.Handler
+import android.os.HandlerThread
+import android.view.Choreographer
+import android.view.SurfaceHolder
+import kotlin.math.max
+
+/**
+ * 所有[MarqueeSurfaceView]共用的渲染调度：一个渲染线程，通过该线程的[Choreographer]在同一个vsync中驱动所有需要绘制的跑马灯，
+ * 同一帧的所有绘制先全部完成，再统一提交（[SurfaceHolder.unlockCanvasAndPost]）。
+ * 只按所有跑马灯中最近一次需要绘制的时间注册帧回调：全部暂停或者不可见时不注册任何回调，渲染线程完全休眠；
+ * 所有跑马灯都销毁后结束渲染线程，再次使用时重新创建。
+ */
+internal object MarqueeRenderScheduler : Choreographer.FrameCallback {
+
+    /**
+     * 不需要绘制
+     */
+    const val IDLE = Long.MAX_VALUE
+
+    /**
+     * 在下一个vsync绘制
+     */
+    const val NEXT_FRAME = 0L
+
+    /**
+     * 由调度器驱动的跑马灯，所有方法都在渲染线程中调用
+     */
+    interface Client {
+
+        /**
+         * 下一次需要绘制的时间（[System.nanoTime]）：[NEXT_FRAME]表示下一个vsync，[IDLE]表示休眠直到被唤醒
+         */
+        var nextFrameNanos: Long
+
+        /**
+         * 绘制一帧：绘制完成的画布加入[batch]，由调度器统一提交；结束时更新[nextFrameNanos]
+         */
+        fun doFrame(frameTimeNanos: Long, batch: Batch)
+    }
+
+    /**
+     * 同一帧中待提交的画布
+     */
+    class Batch {
+
+        private val holders = ArrayList<SurfaceHolder>()
+        private val canvases = ArrayList<Canvas>()
+        private val stats = ArrayList<MarqueeFrameStats?>()
+
+        /**
+         * @param frameStats 不为空时记录提交的耗时
+         */
+        fun add(holder: SurfaceHolder, canvas: Canvas, frameStats: MarqueeFrameStats? = null) {
+            holders.add(holder)
+            canvases.add(canvas)
+            stats.add(frameStats)
+        }
+
+        /**
+         * 提交所有画布
+         */
+        fun post() {
+            for (i in holders.indices) {
+                val frameStats = stats[i]
+                val start = if (frameStats != null) System.nanoTime() else 0L
+                try {
+                    holders[i].unlockCanvasAndPost(canvases[i])
+                } catch (e: Exception) {
+                    e.printStackTrace()
+                }
+                frameStats?.recordPost(System.nanoTime() - start)
+            }
+            holders.clear()
+            canvases.clear()
+            stats.clear()
+        }
+    }
+
+    private val lock = Any()
+
+    //以下字段由lock保护
+    private var sThread: HandlerThread? = null
+    private var sHandler: Handler? = null
+    private var sClientCount = 0
+
+    //以下字段只在渲染线程中访问
+    private var sChoreographer: Choreographer? = null
+    private val sClients = ArrayList<Client>()
+    private val sBatch = Batch()
+    private var sFrameScheduled = false
+
+    /**
+     * 注册跑马灯，必要时启动渲染线程；注册后在下一个vsync绘制
+     * @return 渲染线程的Handler，用于唤醒、注销等操作
+     */
+    fun register(client: Client): Handler {
+        val handler = synchronized(lock) {
+            sClientCount++
+            sHandler ?: HandlerThread("MarqueeSurfaceView").let { thread ->
+                thread.start()
+                sThread = thread
+                Handler(thread.looper).also {
+                    sHandler = it
+                }
+            }
+        }
+        handler.post {
+            if (sChoreographer == null)
+                sChoreographer = Choreographer.getInstance()
+            client.nextFrameNanos = NEXT_FRAME
+            sClients.add(client)
+            scheduleFrame()
+        }
+        return handler
+    }
+
+    /**
+     * 注销跑马灯，在渲染线程中调用；没有跑马灯时结束渲染线程
+     */
+    fun unregister(client: Client) {
+        sClients.remove(client)
+        scheduleFrame()
+        synchronized(lock) {
+            sClientCount--
+            if (sClientCount == 0) {
+                sChoreographer?.removeFrameCallback(this)
+                sChoreographer = null
+                sFrameScheduled = false
+                sThread?.quit()
+                sThread = null
+                sHandler = null
+            }
+        }
+    }
+
+    /**
+     * 按所有跑马灯中最近一次需要绘制的时间重新注册帧回调，在渲染线程中调用
+     */
+    fun scheduleFrame() {
+        val choreographer = sChoreographer ?: return
+        var next = IDLE
+        for (client in sClients) {
+            next = minOf(next, client.nextFrameNanos)
+        }
+        if (sFrameScheduled) {
+            choreographer.removeFrameCallback(this)
+            sFrameScheduled = false
+        }
+        if (next == IDLE)
+            return
+        sFrameScheduled = true
+        choreographer.postFrameCallbackDelayed(this, max(0L, (next - System.nanoTime()) / 1_000_000))
+    }
+
+    override fun doFrame(frameTimeNanos: Long) {
+        sFrameScheduled = false
+        for (client in sClients) {
+            if (client.nextFrameNanos <= frameTimeNanos) {
+                client.doFrame(frameTimeNanos, sBatch)
+            }
+        }
+        sBatch.post()
+        scheduleFrame()
+    }
+}
@@ -8,6 +8,7 @@ import android.graphics.Color
 import android.graphics.Paint
 import android.graphics.PixelFormat
 import android.graphics.PorterDuff
+import android.os.Handler
 import android.util.AttributeSet
 import android.view.SurfaceHolder
 import android.view.SurfaceView
@@ -21,15 +22,22 @@ import androidx.lifecycle.LifecycleOwner
 import unics.okdroid.tools.graphics.fontHeight
 import unics.okdroid.tools.graphics.textCenterVerticalBaseY
 import unics.okdroid.R
-import java.util.concurrent.locks.LockSupport
-import kotlin.math.abs
+import unics.okdroid.kit.debugger.MessageHandler
+import java.util.IdentityHashMap
+import kotlin.math.min
 
 /**
  * 基于[SurfaceView]实现的双缓冲跑马灯
  * 注意：如果该控件的Context是[androidx.activity.ComponentActivity]的子类，则默认会自动管理跑马灯的暂停和销毁，也可以用户自己管理生命周期，两者不冲突。
  *
+ * 绘制在所有跑马灯共用的渲染线程中进行（[MarqueeRenderScheduler]），按vsync统一驱动并批量提交：
+ * 滚动位置根据两帧之间实际经过的时间与滚动速度计算（支持亚像素位置），负载较高时跳过的帧不会导致滚动变慢；
+ * 暂停、不可见、内容为空或者surface不可用时不再请求绘制，所有跑马灯都无需绘制时渲染线程完全休眠。
+ *
  * @see setText 设置跑马灯内容 ；对应属性[R.styleable.MarqueeSurfaceView_android_text]
- * @see setTexts 设置多条文本（目前采用拼接成一个字符串绘制的形式：未来考虑采取一条一条绘制的模式）
+ * @see setTexts 设置多条文本：每条文本单独测量并缓存宽度，只绘制与可见区域相交的文本
+ * @see appendText 追加一条文本，不影响当前的滚动位置
+ * @see removeText 移除一条文本，不影响当前可见文本的位置
  * @see setTextColor 设置文字颜色；对应属性[R.styleable.MarqueeSurfaceView_android_textColor]
  * @see setTextSize 设置文字大小：对应属性[R.styleable.MarqueeSurfaceView_android_textSize]
  * @see setShadowLayer 设置文字阴影  对应属性：
@@ -37,8 +45,11 @@ import kotlin.math.abs
  * [R.styleable.MarqueeSurfaceView_android_shadowDx]
  * [R.styleable.MarqueeSurfaceView_android_shadowDy]
  * [R.styleable.MarqueeSurfaceView_android_shadowColor]
- * @see setFPS 设置帧率 越大绘制越快（默认30帧，不建议过大）;对应属性[R.styleable.MarqueeSurfaceView_fps]
- * @see setScrollStep 设置滚动步长（单次滚动的长度，默认4px），值越大，单次滚动距离越长 ;对应属性[R.styleable.MarqueeSurfaceView_scrollStep]
+ * @see setFPS 设置最大帧率（默认30帧，不建议过大）;对应属性[R.styleable.MarqueeSurfaceView_fps]
+ * @see setScrollStep 设置滚动步长（每帧滚动的长度，默认4px），未设置滚动速度时，滚动速度为步长*帧率 ;对应属性[R.styleable.MarqueeSurfaceView_scrollStep]
+ * @see setScrollSpeed 设置滚动速度（每秒滚动的像素数）;对应属性[R.styleable.MarqueeSurfaceView_scrollSpeed]
+ * @see setFrameStatsEnabled 开启帧统计（实际帧率、绘制耗时、错过的帧、滚动速度偏差），通过[getFrameStats]获取
+ * @see setTextCacheEnabled 是否预渲染文本（长文本或者带阴影的文本建议开启）;对应属性[R.styleable.MarqueeSurfaceView_textCache]
  * @see startScroll 开始滚动（默认自动开始滚动） ;对应属性[R.styleable.MarqueeSurfaceView_autoStart]
  * @see stopScroll 停止滚动
  * @see onDestroy 销毁，释放资源
@@ -49,40 +60,85 @@ class MarqueeSurfaceView @JvmOverloads constructor(
 ) : SurfaceView(context, attrs) {
 
     //surface 是否可用
+    @Volatile
     private var mSurfaceValid = false
 
     //是否调用开始滚动
+    @Volatile
     private var mStarted = true
 
-    //当前设置的文本
-    private var mText: String = ""
+    //是否暂停
+    @Volatile
+    private var mPaused = false
+
+    //当前设置的文本：每次修改都替换为新的列表，渲染线程通过引用判断内容是否变化
+    @Volatile
+    private var mSegments: List<MarqueeSegment> = emptyList()
+
+    //多条文本之间的分隔
+    @Volatile
+    private var mSeparator: String = DEFAULT_SEPARATOR
+
+    //整体替换内容（setText、setTexts）的版本，变化时渲染线程重置滚动位置
+    @Volatile
+    private var mContentVersion = 0
+
+    //文字样式（大小、阴影等影响测量或者绘制的属性）的版本，样式变化时渲染线程重新测量
+    @Volatile
+    private var mStyleVersion = 0
 
     @ColorInt
     private var mTextColor: Int = Color.BLACK
     private var mTextSize: Int
 
-    private var mThread: Thread? = null
-    private val mDrawRunnable: DrawRunnable = DrawRunnable()
+    //阴影参数：预渲染时用于计算阴影超出文本的范围
+    @Volatile
+    private var mShadowRadius: Float = 0f
+
+    @Volatile
+    private var mShadowDx: Float = 0f
+
+    /**
+     * 是否预渲染文本：文本按块渲染为Bitmap，每帧只绘制可见的块
+     */
+    @Volatile
+    private var mTextCacheEnabled: Boolean = false
+
+    private var mRenderer: Renderer? = null
 
     //字体垂直方向的基础线：提供该变量的目的是为了避免draw的过程中反复测量浪费性能和内存，该变量只会在字体大小发生变化时才会改变
     private var mFontBase: Float = 0f
     private val mTextPaint: Paint
 
+    /**
+     * 最大帧率
+     */
+    @Volatile
     private var mFPS: Int = 30
-        set(value) {
-            field = value
-            mPerFrameTimeMills = (1000 / value).toLong()
-        }
 
     /**
-     * 一帧时间
+     * 滚动偏移步长：未设置滚动速度时，滚动速度为步长*帧率
      */
-    private var mPerFrameTimeMills: Long = (1000 / mFPS).toLong()
+    @Volatile
+    private var mScrollStep: Int = 4
 
     /**
-     * 滚动偏移步长
+     * 滚动速度，每秒滚动的像素数；小于等于0时使用步长*帧率
      */
-    private var mScrollStep: Int = 4
+    @Volatile
+    private var mScrollSpeed: Float = 0f
+
+    /**
+     * 屏幕刷新周期的一半：用于将帧率限制对齐到最近的vsync
+     */
+    @Volatile
+    private var mHalfVsyncNanos: Long = DEFAULT_HALF_VSYNC_NANOS
+
+    /**
+     * 帧统计，为空时不统计
+     */
+    @Volatile
+    private var mFrameStats: MarqueeFrameStats? = null
 
     /**
      * 对齐位置
@@ -103,6 +159,8 @@ class MarqueeSurfaceView @JvmOverloads constructor(
 
         override fun surfaceChanged(holder: SurfaceHolder, format: Int, width: Int, height: Int) {
 //            log("SurfaceHolder:surfaceChanged ${format} ${width} ${height}")
+            //尺寸变化后重新绘制
+            mRenderer?.requestRender()
         }
 
         override fun surfaceDestroyed(holder: SurfaceHolder) {
@@ -124,23 +182,27 @@ class MarqueeSurfaceView @JvmOverloads constructor(
             spToPixel(context, 16f).toInt()
         )
         if (ta.hasValue(R.styleable.MarqueeSurfaceView_android_text)) {
-            mText = ta.getString(R.styleable.MarqueeSurfaceView_android_text) ?: ""
+            mSegments = segmentsOf(listOf(ta.getString(R.styleable.MarqueeSurfaceView_android_text).orEmpty()))
         }
         mStarted = ta.getBoolean(R.styleable.MarqueeSurfaceView_autoStart, mStarted)
 
         mFPS = ta.getInt(R.styleable.MarqueeSurfaceView_fps, mFPS)
         mScrollStep = ta.getInt(R.styleable.MarqueeSurfaceView_scrollStep, mScrollStep)
+        mScrollSpeed = ta.getDimension(R.styleable.MarqueeSurfaceView_scrollSpeed, mScrollSpeed)
         mAlignFrom = ta.getInt(R.styleable.MarqueeSurfaceView_alignFrom, mAlignFrom)
+        mTextCacheEnabled = ta.getBoolean(R.styleable.MarqueeSurfaceView_textCache, mTextCacheEnabled)
 
-        val mShadowColor = ta.getColor(R.styleable.MarqueeSurfaceView_android_shadowColor, 0)
-        val mShadowDx = ta.getFloat(R.styleable.MarqueeSurfaceView_android_shadowDx, 0f)
-        val mShadowDy = ta.getFloat(R.styleable.MarqueeSurfaceView_android_shadowDy, 0f)
-        val mShadowRadius = ta.getFloat(R.styleable.MarqueeSurfaceView_android_shadowRadius, 0f)
+        val shadowColor = ta.getColor(R.styleable.MarqueeSurfaceView_android_shadowColor, 0)
+        val shadowDy = ta.getFloat(R.styleable.MarqueeSurfaceView_android_shadowDy, 0f)
+        mShadowDx = ta.getFloat(R.styleable.MarqueeSurfaceView_android_shadowDx, 0f)
+        mShadowRadius = ta.getFloat(R.styleable.MarqueeSurfaceView_android_shadowRadius, 0f)
         ta.recycle()
         mTextPaint = Paint(Paint.ANTI_ALIAS_FLAG).also {
             it.color = mTextColor
             it.textSize = mTextSize.toFloat()
-            it.setShadowLayer(mShadowRadius, mShadowDx, mShadowDy, mShadowColor)
+            //滚动位置是亚像素的，开启亚像素文字定位避免文字抖动
+            it.isSubpixelText = true
+            it.setShadowLayer(mShadowRadius, mShadowDx, shadowDy, shadowColor)
         } //创建画笔
         updateFontBase()
 
@@ -155,7 +217,7 @@ class MarqueeSurfaceView @JvmOverloads constructor(
                     if (visibility == View.VISIBLE && mInternalPause) {
 //                        log("Context:内部恢复")
                         log("[bug] onResume2")
-                        mDrawRunnable.resume()
+                        resumeRender()
                         mInternalPause = false
                     }
                 }
@@ -167,7 +229,7 @@ class MarqueeSurfaceView @JvmOverloads constructor(
                     if (mStarted) {//不可见的时候，如果使用者没有调用stop方法，则内部调用stop
 //                        log("Context:内部暂停")
                         log("[bug] onPause2")
-                        mDrawRunnable.pause()
+                        pauseRender()
                         mInternalPause = true
                     }
                 }
@@ -188,30 +250,81 @@ class MarqueeSurfaceView @JvmOverloads constructor(
      * 设置文本内容
      */
     fun setText(str: String?) {
-        if (str == mText)
-            return
-        mText = str ?: ""
-        mDrawRunnable.onTextChanged(mText)
+        setTexts(str?.let { listOf(it) }, mSeparator)
     }
 
     /**
-     * 设置多条文本（采用拼接的形式：本身可以采取一条一条绘制的模式）
+     * 设置多条文本，从头开始滚动：每条文本单独测量、只绘制可见的部分，适合大量文本轮播
+     * @param separator 相邻文本之间的分隔
      */
-    fun setTexts(contents: List<String>?, separator: String = "                            ") {
-        setText(contents?.filter {
+    @JvmOverloads
+    fun setTexts(contents: List<String>?, separator: String = DEFAULT_SEPARATOR) {
+        val texts = contents.orEmpty().filter {
             it.isNotEmpty()
-        }?.joinToString(separator).orEmpty())
+        }
+        if (separator == mSeparator && texts == getTexts())
+            return
+        mSeparator = separator
+        mSegments = segmentsOf(texts)
+        mContentVersion++
+        mRenderer?.requestRender()
+    }
+
+    /**
+     * 当前的所有文本
+     */
+    fun getTexts(): List<String> {
+        return mSegments.map {
+            it.text
+        }
+    }
+
+    /**
+     * 在末尾追加一条文本：不会重置滚动位置，也不会重新测量已有的文本
+     */
+    fun appendText(text: String) {
+        if (text.isEmpty())
+            return
+        mSegments = mSegments + MarqueeSegment(text)
+        mRenderer?.requestRender()
+    }
+
+    /**
+     * 移除第一条与[text]相同的文本：不会重置滚动位置，当前可见的文本保持在原位置
+     * @return 是否移除
+     */
+    fun removeText(text: String): Boolean {
+        val segments = mSegments
+        val index = segments.indexOfFirst {
+            it.text == text
+        }
+        if (index < 0)
+            return false
+        removeTextAt(index)
+        return true
+    }
+
+    /**
+     * 移除指定位置的文本：不会重置滚动位置，当前可见的文本保持在原位置
+     */
+    fun removeTextAt(index: Int) {
+        val segments = mSegments.toMutableList()
+        segments.removeAt(index)
+        mSegments = segments
+        mRenderer?.requestRender()
     }
 
     fun setTextColor(@ColorInt color: Int) {
         mTextColor = color
         mTextPaint.color = color
+        onStyleChanged()
     }
 
     fun setTextSize(@Px size: Int) {
         mTextSize = size
         mTextPaint.textSize = size.toFloat()
         updateFontBase()
+        onStyleChanged()
         requestLayout()
     }
 
@@ -219,12 +332,27 @@ class MarqueeSurfaceView @JvmOverloads constructor(
      * 设置文字阴影
      */
     fun setShadowLayer(radius: Float, dx: Float, dy: Float, @ColorInt shadowColor: Int) {
+        mShadowRadius = radius
+        mShadowDx = dx
         mTextPaint.setShadowLayer(radius, dx, dy, shadowColor)
+        onStyleChanged()
     }
 
     /**
-     * 设置帧率,值越大，绘制越快，，默认值24
-     * 通常Android每秒满帧为60帧（现在也有120帧的设备了），但是这种需求一般有20帧的fps就足够了，默认24fps
+     * 设置是否预渲染文本：开启后文本（包括阴影）只在内容、样式或者尺寸变化时按块渲染一次，
+     * 每帧只绘制可见的块，每帧的开销与文本长度、阴影无关；代价是缓存占用的内存（每块约 512*高度*4 字节）
+     */
+    fun setTextCacheEnabled(enabled: Boolean) {
+        if (enabled == mTextCacheEnabled)
+            return
+        mTextCacheEnabled = enabled
+        onStyleChanged()
+    }
+
+    /**
+     * 设置最大帧率,值越大，绘制越平滑，默认值30
+     * 通常Android每秒满帧为60帧（现在也有120帧的设备了），但是这种需求一般有20帧的fps就足够了；
+     * 绘制与vsync对齐，实际帧率为不超过该值的最接近的屏幕刷新率的约数
      */
     fun setFPS(@IntRange(from = 1) fps: Int) {
         require(fps > 1) {
@@ -235,6 +363,7 @@ class MarqueeSurfaceView @JvmOverloads constructor(
 
     /**
      * 设置滚动步长；值越大，单次滚动距离有越长
+     * 未通过[setScrollSpeed]设置滚动速度时，滚动速度为步长*帧率
      */
     fun setScrollStep(@Px @IntRange(from = 1) value: Int) {
         require(value > 1) {
@@ -243,6 +372,35 @@ class MarqueeSurfaceView @JvmOverloads constructor(
         mScrollStep = value
     }
 
+    /**
+     * 设置滚动速度：每秒滚动的像素数，与帧率无关
+     * @param pxPerSecond 小于等于0时恢复为步长*帧率
+     */
+    fun setScrollSpeed(@Px pxPerSecond: Float) {
+        mScrollSpeed = pxPerSecond
+    }
+
+    /**
+     * 开启或者关闭帧统计（默认关闭），开启时重新开始统计
+     * @param reportHandler 不为空时每隔[reportIntervalMillis]输出一次统计结果，例如[MessageHandler.Printer]
+     * @param reportIntervalMillis 定期输出的间隔
+     */
+    @JvmOverloads
+    fun setFrameStatsEnabled(
+        enabled: Boolean,
+        reportHandler: MessageHandler? = null,
+        reportIntervalMillis: Long = MarqueeFrameStats.DEFAULT_REPORT_INTERVAL_MILLIS
+    ) {
+        mFrameStats = if (enabled) MarqueeFrameStats(reportHandler, reportIntervalMillis) else null
+    }
+
+    /**
+     * 帧统计，未开启时为空
+     */
+    fun getFrameStats(): MarqueeFrameStats? {
+        return mFrameStats
+    }
+
     /**
      * 开始滚动
      */
@@ -250,7 +408,7 @@ class MarqueeSurfaceView @JvmOverloads constructor(
         log("[bug] startScroll")
         mStarted = true
         mInternalPause = false
-        mDrawRunnable.resume()
+        resumeRender()
         checkWorkThread()
     }
 
@@ -261,7 +419,7 @@ class MarqueeSurfaceView @JvmOverloads constructor(
         log("[bug] stopScroll")
         mStarted = false
         mInternalPause = false
-        mDrawRunnable.pause()
+        pauseRender()
     }
 
     /**
@@ -271,16 +429,14 @@ class MarqueeSurfaceView @JvmOverloads constructor(
         log("[bug] onDestroy")
         mStarted = false
         mInternalPause = false
-        mDrawRunnable.stop()
-        mThread?.let {
-            try {
-                if (it.isAlive && !it.isInterrupted) {
-                    it.interrupt()
-                }
-            } catch (e: Throwable) {
-                mThread = null
-            }
-        }
+        mRenderer?.quit()
+        mRenderer = null
+    }
+
+    override fun onAttachedToWindow() {
+        super.onAttachedToWindow()
+        val refreshRate = display?.refreshRate ?: 0f
+        mHalfVsyncNanos = if (refreshRate > 0) (500_000_000 / refreshRate).toLong() else DEFAULT_HALF_VSYNC_NANOS
     }
 
     override fun onWindowVisibilityChanged(visibility: Int) {
@@ -303,29 +459,44 @@ class MarqueeSurfaceView @JvmOverloads constructor(
 
     private fun handleVisibilityChanged(isVisible: Boolean) {
         if (isVisible && mInternalPause) {
-            mDrawRunnable.resume()
+            resumeRender()
             mInternalPause = false
             log("[bug] [handleVisibilityChanged(resume)")
         } else {
             if (!isVisible && mStarted) {//不可见的时候，如果使用者没有调用stop方法，则内部调用stop
-                mDrawRunnable.pause()
+                pauseRender()
                 mInternalPause = true
                 log("[bug] [handleVisibilityChanged(pause)")
             }
         }
     }
 
+    private fun pauseRender() {
+        mPaused = true
+    }
+
+    private fun resumeRender() {
+        mPaused = false
+        mRenderer?.requestRender()
+    }
+
+    private fun onStyleChanged() {
+        mStyleVersion++
+        mRenderer?.requestRender()
+    }
+
     //检查工作线程
     private fun checkWorkThread() {
         //未调用开始或者surface当前不可用，则不处理
         if (!mStarted || !mSurfaceValid)
             return
-        val thread = mThread
+        val renderer = mRenderer
         //当前线程已运行
-        if (thread != null && thread.isAlive && !thread.isInterrupted && mDrawRunnable.sEnable)
+        if (renderer != null) {
+            renderer.requestRender()
             return
-        mThread = Thread(mDrawRunnable)
-        mThread!!.start()
+        }
+        mRenderer = Renderer()
         log("[bug] [checkWorkThread(start)")
     }
 
@@ -352,14 +523,22 @@ class MarqueeSurfaceView @JvmOverloads constructor(
         holder.setFixedSize(w, h)
     }
 
-    internal inner class DrawRunnable : Runnable {
-        private var sPause: Boolean = false
-        var sEnable: Boolean = true
+    /**
+     * 渲染器：由[MarqueeRenderScheduler]在共用的渲染线程中按vsync驱动绘制。
+     * 除[requestRender]、[quit]外，所有状态只在渲染线程中访问。
+     */
+    internal inner class Renderer : MarqueeRenderScheduler.Client {
+
+        @Volatile
+        private var sEnable: Boolean = true
+
+        //下一次需要绘制的时间
+        override var nextFrameNanos: Long = MarqueeRenderScheduler.NEXT_FRAME
 
         /**
-         * 文本宽度
+         * 文本布局
          */
-        private var sTextLength = 0f
+        private val sLayout = MarqueeLayout()
 
         /**
          * X方向滚动之后的位置
@@ -369,128 +548,205 @@ class MarqueeSurfaceView @JvmOverloads constructor(
         /**
          * 已经绘制过的内容
          */
-        private var sHasDrawnText: String? = null
+        private var sHasDrawnContent = -1
+        private var sHasDrawnSegments: List<MarqueeSegment>? = null
+        private var sHasDrawnStyle = -1
 
-        fun onTextChanged(newText: String) {
-            if (sPause && newText != sHasDrawnText) {//已经处于暂停中，则绘制一次,否则不用额外处理，循环工作中会重新处理文本内容变化
-                log("文本发生变化，并处于暂停状态，执行一次绘制")
-                resetXScrollDistance()
-                sTextLength = mTextPaint.measureText(newText)
-                draw(newText)
-                sHasDrawnText = newText
+        /**
+         * 可见文本的预渲染缓存及其对应的样式和高度
+         */
+        private val sTilePool = MarqueeTilePool()
+        private val sStrips = IdentityHashMap<MarqueeSegment, MarqueeTextStrip>()
+        private val sVisibleSegments = ArrayList<MarqueeSegment>()
+        private var sStripStyle = -1
+        private var sStripHeight = -1
+
+        //上一次绘制对应的vsync时间，0表示滚动未开始或者刚从休眠中恢复
+        private var sLastDrawNanos = 0L
+
+        //在该时间之前不滚动（从左侧开始显示的文本先停留一段时间）
+        private var sHoldUntilNanos = 0L
+
+        //结束时的重置绘制不经过调度器的帧回调，单独提交
+        private val sQuitBatch = MarqueeRenderScheduler.Batch()
+
+        private val sScheduleRunnable = Runnable {
+            if (sEnable) {
+                schedule()
+                MarqueeRenderScheduler.scheduleFrame()
             }
         }
 
-        private fun resetXScrollDistance() {
-            sScrolledX = 0f
+        private val sHandler: Handler = MarqueeRenderScheduler.register(this)
 
-//            sScrolledX = if (mBeginPosition == POSITION_START) {
-//                0f
-//            } else {
-//                try {
-//                    val canvasWidth = holder.surfaceFrame.width().toFloat()
-//                    if (canvasWidth > 0)
-//                        canvasWidth
-//                    else width.toFloat()
-//                } catch (e: Throwable) {
-//                    width.toFloat()
-//                }
-//            }
+        /**
+         * 请求绘制，可在任意线程调用：渲染线程休眠时唤醒
+         */
+        fun requestRender() {
+            if (!sEnable)
+                return
+            sHandler.removeCallbacks(sScheduleRunnable)
+            sHandler.post(sScheduleRunnable)
         }
 
-        fun pause() {
-            sPause = true
+        /**
+         * 停止渲染，重置到初始位置后从调度器中注销
+         */
+        fun quit() {
+            sEnable = false
+            sHandler.removeCallbacks(sScheduleRunnable)
+            sHandler.post {
+                // reset
+                log("[bug] 结束，重置")
+                sScrolledX = 0f
+                layout(mSegments)
+                draw(sQuitBatch)
+                sQuitBatch.post()
+                releaseStrips()
+                sTilePool.clear()
+                MarqueeRenderScheduler.unregister(this)
+            }
         }
 
-        fun resume() {
-            sPause = false
-            sEnable = true
-            mThread?.let {
-                //避免因为内部等待，导致无法结束逻辑
-                LockSupport.unpark(it)
-            }
+        //在下一个vsync绘制
+        private fun schedule() {
+            nextFrameNanos = MarqueeRenderScheduler.NEXT_FRAME
         }
 
-        fun stop() {
-            sEnable = false
-            mThread?.let {
-                //避免因为内部等待，导致无法结束逻辑
-                LockSupport.unpark(it)
-            }
+        private fun scheduleAt(targetNanos: Long) {
+            //提前半个vsync周期，使绘制落在最接近目标时间的vsync上
+            nextFrameNanos = targetNanos - mHalfVsyncNanos
         }
 
-        override fun run() {
-            try {
-                while (sEnable) {//循环绘制
-                    if (sPause) {
-                        LockSupport.park()
-                    }
-                    if (!mSurfaceValid) {
-                        log("[bug] surface未创建，不做任何处理")
-                        safeSleep(200)
-                        continue
-                    }
+        //休眠直到被唤醒
+        private fun sleep() {
+            nextFrameNanos = MarqueeRenderScheduler.IDLE
+        }
 
-                    val content = mText
-                    if (content != sHasDrawnText) {
-                        log("[bug] 当前内容与之前内容不一致，说明内容发生了变化，重置内容")
-                        resetXScrollDistance()
-                        sTextLength = mTextPaint.measureText(content)
-                        draw(content)
-                        sHasDrawnText = content
-                        if (mAlignFrom == ALIGN_FROM_START) {
-                            safeSleep(3000)
-                            log("[bug] safeSleep(3000)")
-                        } else {
-                            sleepOneFrameTime()
-                            log("[bug] sleepOneFrameTime")
-                        }
-                        continue
-                    }
+        override fun doFrame(frameTimeNanos: Long, batch: MarqueeRenderScheduler.Batch) {
+            if (!sEnable) {
+                sleep()
+                return
+            }
+            if (!mSurfaceValid) {
+                log("[bug] surface未创建，休眠直到surface可用")
+                sLastDrawNanos = 0
+                sleep()
+                return
+            }
 
-                    //用户没有调用滚动方法，此时进行等待
-                    if (!mStarted) {
-                        log("[bug] s用户未调用开始滚动的情况下，不做任何处理")
-                        sleepWaitValidate()
-                        continue
-                    }
+            val contentVersion = mContentVersion
+            if (contentVersion != sHasDrawnContent) {
+                log("[bug] 内容被整体替换，重置内容")
+                sHasDrawnContent = contentVersion
+                resetXScrollDistance()
+                layout(mSegments)
+                draw(batch)
+                sLastDrawNanos = 0
+                if (mAlignFrom == ALIGN_FROM_START && !sLayout.isEmpty) {
+                    sHoldUntilNanos = frameTimeNanos + START_HOLD_NANOS
+                }
+                schedule()
+                return
+            }
+            //追加、移除文本或者样式变化：保持当前可见文本的位置
+            val segments = mSegments
+            val layoutChanged = mStyleVersion != sHasDrawnStyle || segments !== sHasDrawnSegments
+            if (layoutChanged) {
+                sScrolledX += layout(segments)
+            }
 
-                    if (content.isEmpty()) {
-                        log("[bug] 用户内容设置为空，不做任何处理")
-                        sleepWaitValidate()
-                        continue
-                    }
-                    log("[bug] 开始绘制")
+            //暂停、用户没有调用滚动方法或者内容为空时，不再请求绘制，等待唤醒
+            if (mPaused || !mStarted || sLayout.isEmpty) {
+                log("[bug] 无需滚动，休眠")
+                if (layoutChanged)
+                    draw(batch)
+                sLastDrawNanos = 0
+                sleep()
+                return
+            }
 
-                    val totalScrollDistance = sTextLength
-                    val viewWidth = canvasWidth
-                    if (mAlignFrom == ALIGN_FROM_END) {
-                        totalScrollDistance + viewWidth
-                    }
+            if (frameTimeNanos < sHoldUntilNanos) {
+                if (layoutChanged)
+                    draw(batch)
+                sLastDrawNanos = 0
+                nextFrameNanos = sHoldUntilNanos
+                return
+            }
 
-                    //偏移的距离大于目标距离时，说明当次已经滑动完成，重新开始
-                    if (abs(sScrolledX) >= totalScrollDistance) {
-                        //说明已经完整滚动过一次，此时让文本从末尾开始重新绘制
-                        sScrolledX = if (mAlignFrom == ALIGN_FROM_START) {
-                            viewWidth.toFloat()
-                        } else {
-                            0f
-                        }
-                    }
-                    draw(content)
-                    sleepOneFrameTime()
+            val frameIntervalNanos = 1_000_000_000L / mFPS
+            val lastDrawNanos = sLastDrawNanos
+            if (lastDrawNanos != 0L && frameTimeNanos - lastDrawNanos < frameIntervalNanos - mHalfVsyncNanos) {
+                //未到帧率限制的时间
+                scheduleAt(lastDrawNanos + frameIntervalNanos)
+                return
+            }
+
+            log("[bug] 开始绘制")
+            //根据实际经过的时间计算滚动距离：掉帧时滚动速度不变；长时间卡顿后不会一次跳过太远
+            val elapsedNanos = if (lastDrawNanos == 0L) 0L else min(frameTimeNanos - lastDrawNanos, MAX_FRAME_DELTA_NANOS)
+            val speed = scrollSpeed
+            val distance = speed * elapsedNanos / 1_000_000_000f
+            sScrolledX -= distance
+            if (lastDrawNanos != 0L) {
+                mFrameStats?.recordScroll(
+                    frameTimeNanos,
+                    frameTimeNanos - lastDrawNanos,
+                    frameIntervalNanos,
+                    mHalfVsyncNanos,
+                    distance,
+                    mFPS,
+                    speed
+                )
+            }
+            wrapScrollDistance()
+            draw(batch)
+            sLastDrawNanos = frameTimeNanos
+            scheduleAt(frameTimeNanos + frameIntervalNanos)
+        }
+
+        /**
+         * 更新文本布局
+         * @return 为了保持当前可见文本位置不变，滚动位置需要增加的距离
+         */
+        private fun layout(segments: List<MarqueeSegment>): Float {
+            sHasDrawnSegments = segments
+            sHasDrawnStyle = mStyleVersion
+            return sLayout.update(segments, mSeparator, sHasDrawnStyle, -(xOffset + sScrolledX)) {
+                mTextPaint.measureText(it)
+            }
+        }
+
+        private val scrollSpeed: Float
+            get() {
+                val speed = mScrollSpeed
+                return if (speed > 0) speed else mScrollStep.toFloat() * mFPS
+            }
+
+        /**
+         * 文本完全滚出左侧后重新开始
+         */
+        private fun wrapScrollDistance() {
+            val viewWidth = canvasWidth
+            val totalScrollDistance = if (mAlignFrom == ALIGN_FROM_END) {
+                sLayout.totalWidth + viewWidth
+            } else {
+                sLayout.totalWidth
+            }
+            if (sScrolledX <= -totalScrollDistance) {
+                //说明已经完整滚动过一次，此时让文本从末尾开始重新绘制
+                sScrolledX = if (mAlignFrom == ALIGN_FROM_START) {
+                    viewWidth.toFloat()
+                } else {
+                    0f
                 }
-                // reset
-                log("[bug] 结束，重置")
-                sScrolledX = 0f
-                val content = mText
-                draw(content)
-                sHasDrawnText = content
-            } catch (e: Throwable) {
-                e.printStackTrace()
             }
         }
 
+        private fun resetXScrollDistance() {
+            sScrolledX = 0f
+        }
+
         private val canvasWidth: Int
             get() {
                 val width = this@MarqueeSurfaceView.width
@@ -499,61 +755,101 @@ class MarqueeSurfaceView @JvmOverloads constructor(
                 else holder?.surfaceFrame?.width() ?: 0
             }
 
-        private fun safeSleep(time: Long) {
-            try {
-                Thread.sleep(time)
-            } catch (e: InterruptedException) {
-                e.printStackTrace()
+        //文本起始位置相对滚动位置的偏移
+        private val xOffset: Float
+            get() = if (mAlignFrom == ALIGN_FROM_START) {
+                0f
+            } else {
+                canvasWidth.toFloat()
             }
-        }
 
-        private fun sleepWaitValidate() {
-            safeSleep(500)
-        }
-
-        private fun sleepOneFrameTime() {
-            safeSleep(mPerFrameTimeMills)
-        }
-
-        private fun draw(text: String) {
+        /**
+         * 绘制，画布加入[batch]中由调度器统一提交
+         */
+        private fun draw(batch: MarqueeRenderScheduler.Batch) {
             if (!mSurfaceValid) {
                 return
             }
 
             holder?.let { holder ->
+                val frameStats = mFrameStats
                 var c: Canvas? = null
                 try {
+                    val start = if (frameStats != null) System.nanoTime() else 0L
                     //锁定画布，一般在锁定后就可以通过其返回的画布对象Canvas，在其上面画图等操作了。
                     c = holder.lockCanvas() ?: return
-                    drawImpl(c, holder, text)
-                    //绘制完成之后继续偏移 -是往左偏移
-                    sScrolledX -= mScrollStep
+                    val locked = if (frameStats != null) System.nanoTime() else 0L
+                    drawImpl(c, holder)
+                    frameStats?.recordDraw(locked - start, System.nanoTime() - locked)
                 } catch (e: Exception) {
                     e.printStackTrace()
                 } finally {
                     if (c != null) {
-                        holder.unlockCanvasAndPost(c) //结束锁定画图，并提交改变。
+                        batch.add(holder, c, frameStats) //结束锁定画图，提交改变。
                     }
                 }
             }
         }
 
-        private fun drawImpl(canvas: Canvas, surfaceHolder: SurfaceHolder, text: String) {
+        private fun drawImpl(canvas: Canvas, surfaceHolder: SurfaceHolder) {
             //先清空canvas
             canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR)
 
             //使用surfaceFrame的height()来绘制，发现绘制位置不是很准确（不同的textsize才有可能）
             val preferredHeight = surfaceHolder.surfaceFrame.height()
-//            if (preferredHeight == 0)
-//                preferredHeight = surfaceHolder.surfaceFrame.height()
             val baselineY = preferredHeight / 2f + mFontBase
-            val xOffset: Float = if (mAlignFrom == ALIGN_FROM_START) {
-                0f
-            } else {
-                canvasWidth.toFloat()
+            val viewWidth = canvasWidth
+            val textCache = mTextCacheEnabled
+            if (!textCache || sHasDrawnStyle != sStripStyle || preferredHeight != sStripHeight) {
+                releaseStrips()
+                if (preferredHeight != sStripHeight)
+                    sTilePool.clear()
+                sStripStyle = sHasDrawnStyle
+                sStripHeight = preferredHeight
+            }
+
+            //只绘制与可见区域相交的文本
+            val x = xOffset + sScrolledX
+            val segments = sLayout.segments
+            val offsets = sLayout.offsets
+            var index = sLayout.firstVisible(-x)
+            while (index < segments.size) {
+                val segmentX = x + offsets[index]
+                if (segmentX >= viewWidth)
+                    break
+                val segment = segments[index]
+                if (textCache) {
+                    val strip = sStrips[segment] ?: MarqueeTextStrip(sTilePool).also {
+                        it.invalidate(segment.text, segment.width, mTextPaint, preferredHeight, baselineY, mShadowRadius, mShadowDx)
+                        sStrips[segment] = it
+                    }
+                    strip.draw(canvas, segmentX, viewWidth, mTextPaint)
+                    sVisibleSegments.add(segment)
+                } else {
+                    canvas.drawText(segment.text, segmentX, baselineY, mTextPaint)
+                }
+                index++
+            }
+
+            //释放已经不可见的文本的缓存
+            if (sStrips.size > sVisibleSegments.size) {
+                val iterator = sStrips.entries.iterator()
+                while (iterator.hasNext()) {
+                    val entry = iterator.next()
+                    if (sVisibleSegments.none { it === entry.key }) {
+                        entry.value.release()
+                        iterator.remove()
+                    }
+                }
             }
-//            val baseLineY = height / 2 + mFontHeight / 2
-            canvas.drawText(text, xOffset + sScrolledX, baselineY, mTextPaint)
+            sVisibleSegments.clear()
+        }
+
+        private fun releaseStrips() {
+            for (strip in sStrips.values) {
+                strip.release()
+            }
+            sStrips.clear()
         }
     }
 
@@ -562,6 +858,18 @@ class MarqueeSurfaceView @JvmOverloads constructor(
         private const val ALIGN_FROM_START = 0
         private const val ALIGN_FROM_END = 1
 
+        //从左侧开始显示的文本首次滚动前的停留时间
+        private const val START_HOLD_NANOS = 3_000_000_000L
+
+        //单帧最大滚动时间：长时间卡顿（或者休眠恢复）后不会一次跳过太远
+        private const val MAX_FRAME_DELTA_NANOS = 250_000_000L
+
+        //多条文本之间默认的分隔
+        private const val DEFAULT_SEPARATOR = "                            "
+
+        //60Hz屏幕刷新周期的一半
+        private const val DEFAULT_HALF_VSYNC_NANOS = 8_333_333L
+
         private inline fun log(msg: String) {
 //            Log.d("双缓冲跑马灯", msg)
         }
@@ -579,6 +887,15 @@ class MarqueeSurfaceView @JvmOverloads constructor(
 //            return px / scaledDensity
 //        }
 
+        @JvmStatic
+        private fun segmentsOf(texts: List<String>): List<MarqueeSegment> {
+            return texts.filter {
+                it.isNotEmpty()
+            }.map {
+                MarqueeSegment(it)
+            }
+        }
+
         @JvmStatic
         private fun spToPixel(context: Context, sp: Float): Float {
             val scaledDensity = context.resources.displayMetrics.scaledDensity
@@ -599,4 +916,4 @@ class MarqueeSurfaceView @JvmOverloads constructor(
             return null
         }
     }
-}
\ No newline at end of file
+}
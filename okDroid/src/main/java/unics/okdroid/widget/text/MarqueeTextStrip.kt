@@ -0,0 +1,253 @@
+package unics.okdroid.widget.text
+
+import android.graphics.Bitmap
+import android.graphics.Canvas
+import android.graphics.Color
+import android.graphics.Paint
+import android.graphics.Rect
+import android.graphics.RectF
+import kotlin.math.abs
+import kotlin.math.ceil
+
+/**
+ * 跑马灯文本的预渲染缓存：文本（包括阴影）按[MarqueeTilePool.tileWidth]切分成多个Bitmap，每一块在首次可见时绘制一次，
+ * 之后每帧只绘制可见的块，每帧的耗时与文本长度无关；每一块只绘制覆盖该块的字符，绘制一块的耗时也与文本长度无关。
+ * 文本、样式或者高度变化时调用[invalidate]，块所用的Bitmap从[pool]中获取并在失效后归还。
+ * 非线程安全，只在渲染线程中使用。
+ *
+ * @param pool Bitmap复用池，同一个渲染线程中的缓存可以共用
+ * @param maxCachedTiles 最多缓存的块数：超过时释放已经滚出左侧的块（循环滚动时重新绘制）
+ */
+internal class MarqueeTextStrip(
+    private val pool: MarqueeTilePool,
+    private val maxCachedTiles: Int = DEFAULT_MAX_CACHED_TILES
+) {
+
+    private val tileWidth = pool.tileWidth
+
+    private var text: String = ""
+    private var height = 0
+    private var baselineY = 0f
+
+    //阴影超出文本左侧的距离
+    private var padStart = 0
+
+    //整条文本（包括两侧阴影）的宽度
+    private var stripWidth = 0
+
+    //前i个字符的宽度，用于确定每一块需要绘制的字符范围
+    private var advances = FloatArray(1)
+
+    //绘制一块时两侧额外包含的距离：阴影、字形超出字宽的部分以及与相邻字符的字距调整都不会在块的边界被截断
+    private var overlap = 0f
+
+    private var tiles: Array<Bitmap?> = emptyArray()
+    private var cachedCount = 0
+
+    private val bitmapPaint = Paint(Paint.FILTER_BITMAP_FLAG)
+    private val srcRect = Rect()
+    private val dstRect = RectF()
+
+    /**
+     * 更新文本或样式，已绘制的块全部失效
+     * @param textWidth 文本宽度
+     * @param paint 文本画笔，用于测量每个字符的宽度
+     * @param height 绘制区域高度
+     * @param baselineY 文本基线
+     * @param shadowRadius 阴影半径
+     * @param shadowDx 阴影x方向偏移
+     */
+    fun invalidate(
+        text: String,
+        textWidth: Float,
+        paint: Paint,
+        height: Int,
+        baselineY: Float,
+        shadowRadius: Float,
+        shadowDx: Float
+    ) {
+        release()
+        this.text = text
+        this.height = height
+        this.baselineY = baselineY
+        val shadowExtent = if (shadowRadius > 0) ceil(shadowRadius + abs(shadowDx)).toInt() + 1 else 0
+        padStart = shadowExtent
+        stripWidth = if (text.isEmpty() || height <= 0) 0 else ceil(textWidth).toInt() + shadowExtent * 2
+        tiles = arrayOfNulls((stripWidth + tileWidth - 1) / tileWidth)
+        overlap = shadowExtent + paint.textSize
+        measureAdvances(paint)
+    }
+
+    private fun measureAdvances(paint: Paint) {
+        val length = text.length
+        if (stripWidth <= 0) {
+            advances = FloatArray(1)
+            return
+        }
+        val widths = FloatArray(length)
+        paint.getTextWidths(text, widths)
+        val sums = FloatArray(length + 1)
+        for (i in 0 until length) {
+            sums[i + 1] = sums[i] + widths[i]
+        }
+        advances = sums
+    }
+
+    /**
+     * 绘制可见的块
+     * @param x 文本起始位置（与[Canvas.drawText]的x一致）
+     * @param viewWidth 可见区域宽度
+     * @param paint 文本画笔，用于首次绘制块
+     */
+    fun draw(canvas: Canvas, x: Float, viewWidth: Int, paint: Paint) {
+        if (stripWidth <= 0)
+            return
+        val stripLeft = x - padStart
+        val first = ((-stripLeft) / tileWidth).toInt().coerceAtLeast(0)
+        for (i in first until tiles.size) {
+            val tileLeft = stripLeft + i * tileWidth
+            if (tileLeft >= viewWidth)
+                break
+            val tile = tiles[i] ?: rasterize(i, paint)
+            //最后一块只绘制有内容的部分
+            val width = minOf(tileWidth, stripWidth - i * tileWidth)
+            srcRect.set(0, 0, width, height)
+            dstRect.set(tileLeft, 0f, tileLeft + width, height.toFloat())
+            canvas.drawBitmap(tile, srcRect, dstRect, bitmapPaint)
+        }
+        if (cachedCount > maxCachedTiles) {
+            //释放已经滚出左侧的块
+            for (i in 0 until first) {
+                val tile = tiles[i] ?: continue
+                tiles[i] = null
+                cachedCount--
+                pool.recycle(tile)
+            }
+        }
+    }
+
+    private fun rasterize(index: Int, paint: Paint): Bitmap {
+        val bitmap = pool.obtain(height)
+        val canvas = Canvas(bitmap)
+        canvas.translate((padStart - index * tileWidth).toFloat(), 0f)
+        //块在文本坐标中覆盖的范围
+        val left = index * tileWidth - padStart - overlap
+        val right = (index + 1) * tileWidth - padStart + overlap
+        val start = clusterStart(charIndexAt(left))
+        val end = clusterEnd(charIndexAt(right) + 1)
+        if (start < end)
+            canvas.drawText(text, start, end, advances[start], baselineY, paint)
+        tiles[index] = bitmap
+        cachedCount++
+        return bitmap
+    }
+
+    /**
+     * 起始位置不超过[x]的最后一个字符
+     */
+    private fun charIndexAt(x: Float): Int {
+        val length = text.length
+        var low = 0
+        var high = length
+        while (low < high) {
+            val mid = (low + high + 1) ushr 1
+            if (advances[mid] <= x) {
+                low = mid
+            } else {
+                high = mid - 1
+            }
+        }
+        return low.coerceAtMost(length)
+    }
+
+    /**
+     * 向前调整到字素的起始位置：同一个字素中除第一个字符外宽度都为0（代理对、组合字符等），避免从字素中间截断
+     */
+    private fun clusterStart(index: Int): Int {
+        var i = index.coerceAtMost(text.length)
+        while (i > 0 && i < text.length && advances[i + 1] == advances[i]) {
+            i--
+        }
+        return i
+    }
+
+    /**
+     * 向后调整到字素的结束位置
+     */
+    private fun clusterEnd(index: Int): Int {
+        var i = index.coerceAtMost(text.length)
+        while (i < text.length && advances[i + 1] == advances[i]) {
+            i++
+        }
+        return i
+    }
+
+    /**
+     * 将所有块归还到复用池
+     */
+    fun release() {
+        for (i in tiles.indices) {
+            tiles[i]?.let {
+                pool.recycle(it)
+            }
+            tiles[i] = null
+        }
+        cachedCount = 0
+        stripWidth = 0
+        advances = FloatArray(1)
+    }
+
+    companion object {
+        const val DEFAULT_MAX_CACHED_TILES = 16
+    }
+}
+
+/**
+ * 预渲染块的Bitmap复用池：所有块宽度相同，高度相同时即可复用。
+ * 非线程安全，只在渲染线程中使用。
+ *
+ * @param tileWidth 块宽度
+ * @param maxSize 最多保留的空闲Bitmap数
+ */
+internal class MarqueeTilePool(
+    val tileWidth: Int = DEFAULT_TILE_WIDTH,
+    private val maxSize: Int = DEFAULT_MAX_POOL_SIZE
+) {
+
+    private val bitmaps = ArrayList<Bitmap>()
+
+    fun obtain(height: Int): Bitmap {
+        for (i in bitmaps.indices.reversed()) {
+            val bitmap = bitmaps[i]
+            if (bitmap.height == height) {
+                bitmaps.removeAt(i)
+                bitmap.eraseColor(Color.TRANSPARENT)
+                return bitmap
+            }
+        }
+        return Bitmap.createBitmap(tileWidth, height, Bitmap.Config.ARGB_8888)
+    }
+
+    fun recycle(bitmap: Bitmap) {
+        if (bitmaps.size < maxSize) {
+            bitmaps.add(bitmap)
+        } else {
+            bitmap.recycle()
+        }
+    }
+
+    /**
+     * 释放所有空闲Bitmap
+     */
+    fun clear() {
+        for (bitmap in bitmaps) {
+            bitmap.recycle()
+        }
+        bitmaps.clear()
+    }
+
+    companion object {
+        const val DEFAULT_TILE_WIDTH = 512
+        const val DEFAULT_MAX_POOL_SIZE = 16
+    }
+}
@@ -0,0 +1,41 @@
+package unics.droid.core.android
+
+import org.junit.Assert
+import org.junit.Test
+import unics.okdroid.util.Base64AppendableOutputStream
+import java.io.StringWriter
+import java.util.Base64
+import kotlin.random.Random
+
+/**
+ * 增量Base64编码与JDK实现的结果一致性
+ */
+class Base64StreamUnitTest {
+
+    @Test
+    fun encodeSameAsJdk() {
+        val random = Random(7)
+        for (size in listOf(0, 1, 2, 3, 4, 5, 100, 4096 * 3 + 1, 100_000)) {
+            val data = random.nextBytes(size)
+            val expected = Base64.getEncoder().encodeToString(data)
+
+            val builder = StringBuilder()
+            Base64AppendableOutputStream(builder).use {
+                //分块写入，覆盖跨块的剩余字节
+                var offset = 0
+                while (offset < data.size) {
+                    val len = minOf(data.size - offset, random.nextInt(1, 17))
+                    it.write(data, offset, len)
+                    offset += len
+                }
+            }
+            Assert.assertEquals(expected, builder.toString())
+
+            val writer = StringWriter()
+            Base64AppendableOutputStream(writer).use {
+                data.forEach { b -> it.write(b.toInt()) }
+            }
+            Assert.assertEquals(expected, writer.toString())
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package unics.droid.core.android
+
+import org.junit.Assert
+import org.junit.Test
+import unics.okdroid.kit.imageloader.CanonicalCacheKeyStrategy
+
+/**
+ * 缓存key去掉易变参数、宽度参数映射到已请求的尺寸
+ */
+class CacheKeyStrategyUnitTest {
+
+    @Test
+    fun stripVolatileParams() {
+        val strategy = CanonicalCacheKeyStrategy()
+        val first = strategy.resolve("https://cdn.com/a.jpg?id=1&sign=abc&expires=100&utm_source=x", 0, 0)
+        val second = strategy.resolve("https://cdn.com/a.jpg?expires=200&sign=def&id=1#top", 0, 0)
+        Assert.assertEquals("https://cdn.com/a.jpg?id=1", first.cacheKey)
+        Assert.assertEquals(first.cacheKey, second.cacheKey)
+        //请求地址不变
+        Assert.assertEquals("https://cdn.com/a.jpg?expires=200&sign=def&id=1#top", second.url)
+    }
+
+    @Test
+    fun mapWidthToKnownSize() {
+        val strategy = CanonicalCacheKeyStrategy()
+        val first = strategy.resolve("https://cdn.com/a.jpg?w=600&token=1", 0, 0)
+        Assert.assertEquals("https://cdn.com/a.jpg?w=640&token=1", first.url)
+        Assert.assertEquals("https://cdn.com/a.jpg?w=640", first.cacheKey)
+
+        //已请求过640，更小的宽度直接复用
+        val smaller = strategy.resolve("https://cdn.com/a.jpg?w=300&token=2", 0, 0)
+        Assert.assertEquals("https://cdn.com/a.jpg?w=640", smaller.cacheKey)
+
+        //略大于已请求的尺寸时也复用
+        val similar = strategy.resolve("https://cdn.com/a.jpg?w=700", 0, 0)
+        Assert.assertEquals("https://cdn.com/a.jpg?w=640", similar.cacheKey)
+
+        val larger = strategy.resolve("https://cdn.com/a.jpg?w=1000", 0, 0)
+        Assert.assertEquals("https://cdn.com/a.jpg?w=1080", larger.cacheKey)
+    }
+
+    @Test
+    fun keepGenericParamsByDefault() {
+        val strategy = CanonicalCacheKeyStrategy()
+        //通用参数可能携带内容，默认保留在缓存key中
+        Assert.assertEquals("https://cdn.com/a.jpg?t=thumb", strategy.resolve("https://cdn.com/a.jpg?t=thumb", 0, 0).cacheKey)
+        Assert.assertEquals("https://cdn.com/a.jpg?t=large", strategy.resolve("https://cdn.com/a.jpg?t=large", 0, 0).cacheKey)
+
+        val busting = CanonicalCacheKeyStrategy(
+            CanonicalCacheKeyStrategy.DEFAULT_VOLATILE_PARAMS + CanonicalCacheKeyStrategy.CACHE_BUSTER_PARAMS
+        )
+        Assert.assertEquals("https://cdn.com/a.jpg", busting.resolve("https://cdn.com/a.jpg?t=123&_=456", 0, 0).cacheKey)
+    }
+}
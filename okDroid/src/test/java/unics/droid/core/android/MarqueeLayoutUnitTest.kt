@@ -0,0 +1,66 @@
+package unics.droid.core.android
+
+import org.junit.Assert
+import org.junit.Test
+import unics.okdroid.widget.text.MarqueeLayout
+import unics.okdroid.widget.text.MarqueeSegment
+
+/**
+ * 多条文本布局：只测量新增文本、追加或移除时保持可见文本的位置
+ */
+class MarqueeLayoutUnitTest {
+
+    private var measureCount = 0
+
+    private val measure: (String) -> Float = {
+        measureCount++
+        it.length * 10f
+    }
+
+    private fun segments(vararg texts: String) = texts.map { MarqueeSegment(it) }
+
+    @Test
+    fun layoutAndVisibleWindow() {
+        val layout = MarqueeLayout()
+        val segments = segments("aaaa", "bb", "cccccc")
+        layout.update(segments, "-", 0, 0f, measure)
+        Assert.assertArrayEquals(floatArrayOf(0f, 50f, 80f), layout.offsets, 0f)
+        Assert.assertEquals(140f, layout.totalWidth)
+        Assert.assertEquals(0, layout.firstVisible(0f))
+        Assert.assertEquals(1, layout.firstVisible(40f))
+        Assert.assertEquals(2, layout.firstVisible(75f))
+        Assert.assertEquals(3, layout.firstVisible(140f))
+    }
+
+    @Test
+    fun appendOnlyMeasuresNewSegment() {
+        val layout = MarqueeLayout()
+        val segments = segments("aaaa", "bb")
+        layout.update(segments, "-", 0, 0f, measure)
+        measureCount = 0
+        val shift = layout.update(segments + MarqueeSegment("ccc"), "-", 0, 60f, measure)
+        Assert.assertEquals(1, measureCount)
+        Assert.assertEquals(0f, shift)
+        Assert.assertEquals(110f, layout.totalWidth)
+
+        //样式变化时重新测量所有文本
+        measureCount = 0
+        layout.update(layout.segments, "-", 1, 0f, measure)
+        Assert.assertEquals(4, measureCount)
+    }
+
+    @Test
+    fun removeKeepsVisibleSegment() {
+        val layout = MarqueeLayout()
+        val segments = segments("aaaa", "bb", "cccccc")
+        layout.update(segments, "-", 0, 0f, measure)
+        //可见区域从第三条文本开始，移除第一条后第三条文本的位置前移50，滚动位置需要增加50
+        val shift = layout.update(segments.drop(1), "-", 0, 85f, measure)
+        Assert.assertEquals(50f, shift)
+        Assert.assertArrayEquals(floatArrayOf(0f, 30f), layout.offsets, 0f)
+
+        //移除可见的文本时滚动位置不变
+        val removed = layout.update(layout.segments.take(1), "-", 0, 35f, measure)
+        Assert.assertEquals(0f, removed)
+    }
+}
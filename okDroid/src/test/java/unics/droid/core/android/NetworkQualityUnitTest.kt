@@ -0,0 +1,33 @@
+package unics.droid.core.android
+
+import org.junit.Assert
+import org.junit.Test
+import unics.okdroid.kit.imageloader.NetworkQuality
+import unics.okdroid.tools.net.NETWORK_TYPE_MOBILE
+import unics.okdroid.tools.net.NETWORK_TYPE_WIFI
+
+/**
+ * 网络质量评估：带宽在等级边界附近波动时保持当前等级
+ */
+class NetworkQualityUnitTest {
+
+    @Test
+    fun hysteresisAroundBoundary() {
+        val type = NETWORK_TYPE_WIFI
+        //刚超过边界时不提升
+        Assert.assertEquals(NetworkQuality.MODERATE, NetworkQuality.of(type, 620, NetworkQuality.MODERATE))
+        Assert.assertEquals(NetworkQuality.GOOD, NetworkQuality.of(type, 750, NetworkQuality.MODERATE))
+        //刚低于边界时不降低
+        Assert.assertEquals(NetworkQuality.GOOD, NetworkQuality.of(type, 580, NetworkQuality.GOOD))
+        Assert.assertEquals(NetworkQuality.MODERATE, NetworkQuality.of(type, 480, NetworkQuality.GOOD))
+        //变化较大时可以跨越多个等级
+        Assert.assertEquals(NetworkQuality.POOR, NetworkQuality.of(type, 100, NetworkQuality.EXCELLENT))
+        Assert.assertEquals(NetworkQuality.EXCELLENT, NetworkQuality.of(type, 5000, NetworkQuality.POOR))
+    }
+
+    @Test
+    fun unknownBandwidthUsesNetworkType() {
+        Assert.assertEquals(NetworkQuality.MODERATE, NetworkQuality.of(NETWORK_TYPE_MOBILE, -1, NetworkQuality.EXCELLENT))
+        Assert.assertEquals(NetworkQuality.EXCELLENT, NetworkQuality.of(NETWORK_TYPE_WIFI, -1, NetworkQuality.POOR))
+    }
+}